@@ -42,6 +42,9 @@ public class AppLogger extends MagnumLogger {
 	/** Set this flag if the thread should check for interrupt */
 	private boolean checkInterrupt = false;
 	
+	/** Set by another thread to abort the job at its next print (e.g. lease lost, see QueueWorker) */
+	private volatile boolean aborted = false;
+	
 	/** Flag sets whether output is printed to System.out */
 	private boolean systemOut = true;
 	/** A text area / console */
@@ -67,6 +70,8 @@ public class AppLogger extends MagnumLogger {
 			printAll("\nJOB INTERRUPTED!\n");
 			throw new RuntimeException("Thread interrupted");
 		}
+		if (aborted)
+			throw new RuntimeException("Job aborted");
 
 		printAll(msg);
 	}
@@ -126,6 +131,11 @@ public class AppLogger extends MagnumLogger {
 	}
 
 
+	public void abort() {
+		aborted = true;
+	}
+
+
 	public void setSystemOut(boolean systemOut) {
 		this.systemOut = systemOut;
 	}
@@ -26,8 +26,27 @@ THE SOFTWARE.
 package ch.unil.magnumapp;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
+import ch.unil.magnumapp.model.ConnectivityEnrichment;
+import ch.unil.magnumapp.model.DenseKernel;
+import ch.unil.magnumapp.model.GeneScores;
+import ch.unil.magnumapp.model.Kernel;
+import ch.unil.magnumapp.model.KernelCache;
+import ch.unil.magnumapp.model.KernelFile;
+import ch.unil.magnumapp.model.KernelManifest;
+import ch.unil.magnumapp.model.KernelMode;
+import ch.unil.magnumapp.model.KernelUpdate;
+import ch.unil.magnumapp.model.MatrixFreeKernel;
+import ch.unil.magnumapp.model.NetworkDelta;
 import ch.unil.magnumapp.model.NetworkModel;
+import ch.unil.magnumapp.model.PStepKernel;
+import ch.unil.magnumapp.model.PermutationPlan;
+import ch.unil.magnumapp.model.PermutationState;
+import ch.unil.magnumapp.model.SparseKernel;
+import ch.unil.magnumapp.model.SparseNetwork;
 import ch.unil.magnumapp.view.EnrichmentController;
 import ch.unil.magnumapp.view.JobController;
 import edu.mit.magnum.FileExport;
@@ -39,14 +58,21 @@ import edu.mit.magnum.MagnumLogger;
 public class JobEnrichment extends JobMagnum {
 
 	/** The network */
-    private NetworkModel network;
+    protected NetworkModel network;
     /** The controller with the settings */
-    private EnrichmentController controller;
+    protected EnrichmentController controller;
     
     /** Output directory */
     private File outputDir;   
+    /** The gene scores, preprocessed once and shared by all jobs of the run */
+    protected GeneScores geneScores;
     /** The settings file */
-    private File settingsFile;
+    protected File settingsFile;
+    /** Number of permutations (the same for all jobs, except for a permutation budget) */
+    protected int numPermutations;
+    
+    /** Time between checks for results of the shared job queue (ms) */
+    final static private long QUEUE_POLL_INTERVAL = 5000;
     
     
 	// ============================================================================
@@ -60,6 +86,8 @@ public class JobEnrichment extends JobMagnum {
 		this.network = network;
 		
     	outputDir = controller.getOutputDir();
+    	geneScores = controller.getGeneScores();
+    	numPermutations = controller.getNumPermutations();
 	}
 
 	
@@ -87,25 +115,44 @@ public class JobEnrichment extends JobMagnum {
     	// Write settings file
     	writeSettingsFile(myMag.log);
     	
+    	// Kernel and enrichment computed by the app
+    	// (the filters were applied to the gene scores, see EnrichmentController.checkOptions())
+    	if (controller.getKernelMode() != KernelMode.ENGINE) {
+    		myMag.log.println("Gene scores: " + geneScores.getNumGenes() + " genes (preprocessed once for all networks)");
+    		runInApp();
+    		return;
+    	}
+    	
+    	// Let a headless worker run magnum
+    	if (controller.getUseJobQueue()) {
+    		runOnQueue();
+    		return;
+    	}
+    	
     	// Run magnum
     	myMag.log.println("\nStarting job...\n");
 		myMag.set.loadSettings(settingsFile.getAbsolutePath());
 		myMag.run();
 		
 		// Get result
-		controller.writeScore(network.getName(), myMag.getEnrichMain().getEnrichmentScore(), settingsFile.getName());
+		controller.writeScore(network.getName(), myMag.getEnrichMain().getEnrichmentScore(), settingsFile.getName(), numPermutations);
 	}
 	
 	
 	// ----------------------------------------------------------------------------
 
-    /** Write settings file for magnum */
+    /** 
+     * Write settings file for magnum. For the kernel modes of the app, magnum would not reproduce
+     * the result: the file is named <job>.app_settings.txt, the mode is disabled and the app
+     * parameters are listed as comments.
+     */
     public void writeSettingsFile(MagnumLogger log) {
     	
     	log.println("Writing settings file...");
+    	boolean inApp = controller.getKernelMode() != KernelMode.ENGINE;
     	
     	// The content of the file
-    	String text = "##########################################################################\n"
+    	String text = (inApp ? getAppHeader() : "##########################################################################\n"
     			+ "# SETTINGS FILE --- Magnum v1.0\n"
     			+ "#\n"
     			+ "# This file can be used to:\n"
@@ -124,7 +171,7 @@ public class JobEnrichment extends JobMagnum {
     			+ "#\n"
     			+ "# NOTE: If your run the job on a cluster, you have to edit the file paths\n"
     			+ "#       below so that they point to the right location.\n"
-    			+ "##########################################################################\n"
+    			+ "##########################################################################\n")
     			+ "\n"
     			+ "############\n"
     			+ "# FILE PATHS\n"
@@ -148,7 +195,7 @@ public class JobEnrichment extends JobMagnum {
     			+ "# PARAMETERS\n"
     			+ "\n"
     			+ "# Number of random permutations used to compute empirical p-values [--permut <int>]\n"
-    			+ "numPermutations = " + controller.getNumPermutations() + "\n"
+    			+ "numPermutations = " + numPermutations + "\n"
     			+ "\n"
     			+ "# Exclude HLA genes\n"
     			+ "excludeHlaGenes = " + controller.getExcludeHlaGenes() + "\n"
@@ -162,13 +209,14 @@ public class JobEnrichment extends JobMagnum {
     			+ "# Save network kernels for use in subsequent runs (takes a lot of space!)\n"
     			+ "exportKernels = " + controller.getExportKernels() + "\n"
     			+ "\n"
+    			+ (inApp ? getAppParameters() : "")
     			+ "# Tell magnum to launch connectivity enrichment analysis\n"
-    			+ "mode = 3\n"
+    			+ (inApp ? "# mode = 3 (disabled, magnum would not reproduce the result of the app, see above)\n" : "mode = 3\n")
     			+ "# Verbose console output\n"
     			+ "verbose = false\n";
     			
     	// The settings file
-    	String filename = jobName + ".settings.txt";
+    	String filename = jobName + (inApp ? ".app_settings.txt" : ".settings.txt");
     	settingsFile = new File(outputDir, filename);
 
     	// Write the file
@@ -178,12 +226,315 @@ public class JobEnrichment extends JobMagnum {
     }
 
 	
+	// ----------------------------------------------------------------------------
+
+	/** Read the kernel file in the background if it will be loaded */
+	@Override
+	public void prefetch() {
+		
+		if (controller.getKernelMode() == KernelMode.DENSE_FLOAT && controller.getUsePrecomputedKernels())
+			controller.getKernelCache().prefetch(KernelFile.getFile(controller.getKernelDir(), network));
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The network file (the base network for variants) and flags, kernels are derived from it */
+	@Override
+	public String getLocalityKey() {
+		
+		File file = network.getFile();
+		if (NetworkDelta.isDeltaFile(file)) {
+			try {
+				file = NetworkDelta.load(file).getBaseFile();
+			} catch (RuntimeException e) {
+				// Invalid delta file, reported by the job
+			}
+		}
+		return file.getAbsolutePath() + "|" + network.getIsWeighted() + "|" + network.getRemoveSelf();
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Dense kernels of variants are derived from the kernel file of the base network */
+	@Override
+	public List<String> getInputs() {
+		
+		ArrayList<String> inputs = new ArrayList<>();
+		if (controller.getKernelMode() == KernelMode.DENSE_FLOAT && NetworkDelta.isDeltaFile(network.getFile())) {
+			try {
+				inputs.add(KernelCache.getArtefact(KernelUpdate.getBaseKernelFile(network, controller.getKernelDir())));
+			} catch (RuntimeException e) {
+				// Invalid delta file, reported by the job
+			}
+		}
+		return inputs;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The exported dense kernel file */
+	@Override
+	public List<String> getOutputs() {
+		
+		ArrayList<String> outputs = new ArrayList<>();
+		if (controller.getKernelMode() == KernelMode.DENSE_FLOAT && controller.getExportKernels())
+			outputs.add(KernelCache.getArtefact(KernelFile.getFile(controller.getKernelDir(), network)));
+		return outputs;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The kernel file can be evicted from the cache once the variants derived from it are done */
+	@Override
+	public void release(String output) {
+		controller.getKernelCache().release(KernelFile.getFile(controller.getKernelDir(), network));
+	}
+
+	
+	// ============================================================================
+	// PROTECTED METHODS
+
+	/** Run the connectivity enrichment with a kernel computed by the app (see KernelMode) */
+	protected void runInApp() {
+		
+    	myMag.log.println("\nStarting job (kernel: " + controller.getKernelMode() + ")...\n");
+		
+		// The permutations of a previous run, only the additional ones are drawn
+		File stateFile = null;
+		PermutationState state = null;
+		if (controller.getTopUpPermutations()) {
+			stateFile = PermutationState.getFile(controller.getPermutationStateDir(), jobName);
+			state = PermutationState.load(stateFile, getStateKey());
+			if (state != null && state.getNumPermutations() >= numPermutations) {
+				myMag.log.println("Previous run has " + state.getNumPermutations() + " permutations, nothing to top up");
+				controller.writeScore(network.getName(), state.getPval(0), settingsFile.getName(), state.getNumPermutations());
+				return;
+			}
+		}
+		
+		// Off-heap, released when the job finishes
+		SparseNetwork sparseNetwork = register(controller.getPipeline().takeNetwork(network, myMag.log));
+		PStepKernel exact = register(new PStepKernel(sparseNetwork));
+		Kernel kernel = createKernel(exact, sparseNetwork);
+		
+		myMag.log.println("Running " + numPermutations + " permutations...");
+		ConnectivityEnrichment enrichment = new ConnectivityEnrichment(kernel, sparseNetwork.getRanks(geneScores), 
+				numPermutations, new Random());
+		enrichment.setPlan(controller.getPermutationPlan());
+		enrichment.setResume(state);
+		if (kernel instanceof MatrixFreeKernel) {
+			int[] cutoffSizes = enrichment.getCutoffSizes();
+			((MatrixFreeKernel) kernel).printValidation(enrichment.getRankedNodes(), cutoffSizes[cutoffSizes.length-1], myMag.log);
+		}
+		double pval = enrichment.run(myMag.log);
+		myMag.log.println("Enrichment p-value: " + pval + " (" + enrichment.getNumScoredNodes() + " network genes with scores)");
+		
+		controller.writeScore(network.getName(), pval, settingsFile.getName(), numPermutations);
+		if (stateFile != null)
+			enrichment.getState(getStateKey()).write(stateFile);
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Header of the settings file for the kernel modes of the app */
+	protected String getAppHeader() {
+		
+		return "##########################################################################\n"
+    			+ "# SETTINGS FILE --- Magnum v1.0 (kernel computed by the app)\n"
+    			+ "#\n"
+    			+ "# WARNING: The result was computed by the app with the kernel mode\n"
+    			+ "#          \"" + controller.getKernelMode() + "\", not by the magnum engine. The command-line\n"
+    			+ "#          tool computes full kernels and would NOT reproduce it, the\n"
+    			+ "#          mode is therefore disabled below.\n"
+    			+ "#\n"
+    			+ "# This file can be used to reload the settings in the App (click the\n"
+    			+ "# \"Settings\" button). To reproduce the result, also set the app\n"
+    			+ "# parameters listed below (APP PARAMETERS, not read by magnum).\n"
+    			+ "##########################################################################\n";
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The parameters of the app kernel modes that define the result, as comments of the settings file */
+	protected String getAppParameters() {
+		
+		KernelMode mode = controller.getKernelMode();
+		String text = "################\n"
+				+ "# APP PARAMETERS (not read by magnum)\n"
+				+ "\n"
+				+ "# kernelMode = " + mode.name() + "\n";
+		
+		if (mode == KernelMode.EIGEN_SWEEP) {
+			double[][] grid = controller.getKernelSweep();
+			String sweep = "";
+			for (int t=0; grid != null && t<grid.length; t++)
+				sweep += (t == 0 ? "" : ", ") + "a=" + grid[t][0] + " p=" + (int) grid[t][1];
+			text += "# kernelSweep = " + sweep + "\n";
+		} else {
+			text += "# kernelAlpha = " + PStepKernel.DEFAULT_ALPHA + "\n"
+					+ "# kernelP = " + PStepKernel.DEFAULT_P + "\n";
+		}
+		if (mode == KernelMode.SPARSE)
+			text += "# kernelTopK = " + controller.getKernelTopK() + "\n";
+		if (mode == KernelMode.DENSE_FLOAT && controller.getUsePrecomputedKernels())
+			text += "# kernelFileBits = " + controller.getKernelFileBits() + "\n";
+		
+		File coordinatesFile = App.app.getPreferencesController().getGeneCoordinatesFile();
+		if (coordinatesFile != null)
+			text += "# geneCoordinatesFile = " + coordinatesFile.getAbsolutePath() + "\n";
+		
+		PermutationPlan plan = controller.getPermutationPlan();
+		text += "# permutationPlanSeed = " + (plan == null ? PermutationPlan.DEFAULT_SEED : plan.getSeed()) + "\n"
+				+ "# permutationPlanVersion = " + PermutationPlan.VERSION + "\n"
+				+ "\n";
+		return text;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Compute (or load) the kernel for the selected kernel mode, released when the job finishes */
+	protected Kernel createKernel(PStepKernel exact, SparseNetwork sparseNetwork) {
+		
+		switch (controller.getKernelMode()) {
+		case SPARSE:
+			myMag.log.println("Computing sparse kernel (top " + controller.getKernelTopK() + " entries per row)...");
+			SparseKernel kernel = SparseKernel.compute(exact, controller.getKernelTopK(), 0);
+			kernel.printErrorReport(exact, myMag.log);
+			return register(kernel);
+		case MATRIX_FREE:
+			return register(new MatrixFreeKernel(exact));
+		case DENSE_FLOAT:
+			return createDenseKernel(exact, sparseNetwork);
+		default:
+			throw new IllegalArgumentException("Kernel mode is not computed by the app: " + controller.getKernelMode());
+		}
+	}
+
+	
 	// ============================================================================
 	// PRIVATE METHODS
 
+	/** The gene scores, network, kernel and permutation plan of the result, permutations of runs with the same key can be added */
+	private String getStateKey() {
+		
+		File scores = controller.getGeneScoreFile();
+		File file = network.getFile();
+		String kernelKey = controller.getKernelMode() + "|" + PStepKernel.DEFAULT_ALPHA + "|" + PStepKernel.DEFAULT_P;
+		if (controller.getKernelMode() == KernelMode.SPARSE)
+			kernelKey += "|" + controller.getKernelTopK();
+		return scores.getAbsolutePath() + "|" + scores.length() + "|" + scores.lastModified() + "|"
+				+ controller.getExcludeHlaGenes() + "|" + controller.getExcludeXYChromosomes() + "|"
+				+ file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" 
+				+ network.getIsWeighted() + "|" + network.getRemoveSelf() + "|" + kernelKey + "|" 
+				+ controller.getPermutationPlan().getSeed() + "|" + PermutationPlan.VERSION;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** 
+	 * Load the dense kernel from the kernel directory if available, otherwise compute it. Kernels are 
+	 * exported in the background (see KernelCache.export()), the job runs the permutations meanwhile.
+	 */
+	private Kernel createDenseKernel(PStepKernel exact, SparseNetwork sparseNetwork) {
+		
+		File kernelFile = KernelFile.getFile(controller.getKernelDir(), network);
+		String sourceKey = KernelFile.getSourceKey(network, exact);
+		KernelCache cache = controller.getKernelCache();
+		KernelManifest manifest = cache.getManifest();
+		if (controller.getUsePrecomputedKernels())
+			cache.awaitExport(kernelFile);
+		if (controller.getUsePrecomputedKernels() && kernelFile.exists()) {
+			// Files listed with another source key are outdated, unlisted files are validated when reading
+			if (manifest.isUpToDate(kernelFile, sourceKey) || !manifest.isListed(kernelFile)) {
+				Kernel kernel = KernelFile.read(kernelFile, sparseNetwork, sourceKey, myMag.log);
+				if (kernel != null) {
+					cache.touch(kernelFile);
+					return register(kernel);
+				}
+			}
+			myMag.log.println("Kernel file is outdated, recomputing: " + kernelFile.getPath());
+		}
+		
+		// Network variants: derived from the kernel of the base network if available
+		long t0 = System.currentTimeMillis();
+		DenseKernel kernel = null;
+		if (NetworkDelta.isDeltaFile(network.getFile())) {
+			cache.awaitExport(KernelUpdate.getBaseKernelFile(network, controller.getKernelDir()));
+			kernel = KernelUpdate.derive(network, controller.getKernelDir(), exact, myMag.log);
+		}
+		if (kernel == null) {
+			myMag.log.println("Computing dense kernel (float32)...");
+			kernel = DenseKernel.compute(exact);
+		}
+		if (controller.getExportKernels()) {
+			// Logged to the console, the log file of the job may be closed before the export is done
+			long buildTime = System.currentTimeMillis() - t0;
+			myMag.log.println("Exporting kernel in the background: " + kernelFile.getPath());
+			register(cache.export(kernelFile, kernel, controller.getKernelFileBits(), sparseNetwork, sourceKey, buildTime, App.log));
+		} else {
+			register(kernel);
+		}
+		return kernel;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Submit the settings file to the shared job queue and wait for the result of a worker */
+	private void runOnQueue() {
+		
+		JobQueue queue = new JobQueue(controller.getJobQueueDir());
+		queue.submit(jobName, settingsFile);
+		myMag.log.println("\nSubmitted job to queue: " + queue.getDir().getPath());
+		myMag.log.println("Waiting for a worker ...\n");
+		
+		String worker = null;
+		while (true) {
+			// Throws an exception if the job failed on the worker
+			Double score = queue.pollResult(jobName);
+			if (score != null) {
+				controller.writeScore(network.getName(), score, settingsFile.getName(), numPermutations);
+				return;
+			}
+			
+			// Report when a worker (re)claims the job
+			String claimedBy = queue.getWorker(jobName);
+			if (claimedBy != null && !claimedBy.equals(worker)) {
+				myMag.log.println("Job claimed by worker: " + claimedBy);
+				worker = claimedBy;
+			}
+			
+			// Withdraw the ticket so that workers don't start it anymore
+			if (JobController.interrupted) {
+				queue.cancel(jobName);
+				throw new RuntimeException("Thread interrupted");
+			}
+			
+			try {
+				Thread.sleep(QUEUE_POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				queue.cancel(jobName);
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+
 	// ============================================================================
 	// SETTERS AND GETTERS
 
+	public NetworkModel getNetwork() { return network; }
+	
+	/** Set the number of permutations of this job (permutation budget) */
+	public void setNumPermutations(int numPermutations) { this.numPermutations = numPermutations; }
 
 
 }
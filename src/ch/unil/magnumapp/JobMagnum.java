@@ -26,6 +26,9 @@ THE SOFTWARE.
 package ch.unil.magnumapp;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import ch.unil.magnumapp.view.JobController;
 import edu.mit.magnum.Magnum;
@@ -51,6 +54,8 @@ abstract public class JobMagnum extends Thread {
     protected String jobName;
     /** The runtime */
     protected long runtime = -1;
+    /** Off-heap resources (kernels, networks), released as soon as the job finishes */
+    private ArrayList<AutoCloseable> resources = new ArrayList<>();
 
     
 	// ============================================================================
@@ -99,6 +104,7 @@ abstract public class JobMagnum extends Thread {
 				// Print stack trace
 				myLog.setConsole(null);
 				myLog.printStackTrace(e);
+				releaseResources();
 				myLog.closeLogFile();
 				myMag = null;
 				myLog = null;
@@ -107,6 +113,7 @@ abstract public class JobMagnum extends Thread {
 				return;
 			}	
 			// else we start the next job below
+			releaseResources();
 		
 		} catch (OutOfMemoryError e) {
 			// Print error
@@ -118,6 +125,7 @@ abstract public class JobMagnum extends Thread {
 					"- Export settings and run jobs with the command-line tool\n" +
 					"  (increase memory using -Xmx, e.g. \"-Xmx8g\" for 8GB)\n\n" +
 					"See the user guide for further instructions.");
+			releaseResources();
 			myLog.closeLogFile();
 			myMag = null;
 			myLog = null;
@@ -127,6 +135,7 @@ abstract public class JobMagnum extends Thread {
         }
 		
 		// Cleanup
+		releaseResources();
 		myLog.closeLogFile();
 		myMag = null;
 		myLog = null;
@@ -137,11 +146,76 @@ abstract public class JobMagnum extends Thread {
 	}
 	
 	
+	// ----------------------------------------------------------------------------
+
+	/** Called by the scheduler when this job is next in line, e.g. to read its input in the background (nothing by default) */
+	public void prefetch() {
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Jobs with the same key build the same network representation, the scheduler runs them back to back (null for none) */
+	public String getLocalityKey() {
+		return null;
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Artefacts (e.g. kernel files) used by this job, it starts when their producers in the same run finished (none by default) */
+	public List<String> getInputs() {
+		return Collections.emptyList();
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Artefacts produced by this job (none by default) */
+	public List<String> getOutputs() {
+		return Collections.emptyList();
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Called by the scheduler on the FX thread when the last consumer of the given output finished (nothing by default) */
+	public void release(String output) {
+	}
+	
+	
 	// ============================================================================
 	// PROTECTED METHODS
 
 	/** The method called by run() -- also has to extract all results, because myMag will be deleted after that to save space!!! */
 	protected abstract void runJob();
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Register an off-heap resource, it is closed when the job finishes (also if it fails) */
+	protected <T extends AutoCloseable> T register(T resource) {
+		
+		resources.add(resource);
+		return resource;
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Close the registered resources (in reverse order) */
+	private void releaseResources() {
+		
+		for (int i=resources.size()-1; i>=0; i--) {
+			try {
+				resources.get(i).close();
+			} catch (Exception e) {
+				myLog.printStackTrace(e);
+			}
+		}
+		resources.clear();
+	}
 	
 	
 	// ============================================================================
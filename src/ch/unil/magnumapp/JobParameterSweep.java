@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp;
+
+import java.io.File;
+import java.util.Random;
+
+import ch.unil.magnumapp.model.ConnectivityEnrichment;
+import ch.unil.magnumapp.model.KernelEigen;
+import ch.unil.magnumapp.model.NetworkModel;
+import ch.unil.magnumapp.model.PStepKernel;
+import ch.unil.magnumapp.model.SparseNetwork;
+import ch.unil.magnumapp.view.EnrichmentController;
+import ch.unil.magnumapp.view.JobController;
+
+/**
+ * Enrichment job scoring a grid of kernel parameters (a, p) in one run: all kernels 
+ * derive from the eigendecomposition of the network (see KernelEigen), which is loaded 
+ * from the kernel directory or computed once and exported. The kernels are scored on
+ * the same permutations, one p-value per parameter pair is written to the score file.
+ */
+public class JobParameterSweep extends JobEnrichment {
+
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor */
+	public JobParameterSweep(JobController jobManager, String jobName, EnrichmentController controller, NetworkModel network) {
+		super(jobManager, jobName, controller, network);
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Read the eigendecomposition file in the background if it will be loaded */
+	@Override
+	public void prefetch() {
+		
+		if (controller.getUsePrecomputedKernels())
+			controller.getKernelCache().prefetch(KernelEigen.getFile(controller.getKernelDir(), network));
+	}
+	
+	
+	// ============================================================================
+	// PROTECTED METHODS
+
+	/** Run the enrichment for all parameters of the grid */
+	@Override
+	protected void runInApp() {
+		
+		double[][] grid = controller.getKernelSweep();
+    	myMag.log.println("\nStarting parameter sweep (" + grid.length + " kernels)...\n");
+		
+		// Off-heap, released when the job finishes
+		SparseNetwork sparseNetwork = register(controller.getPipeline().takeNetwork(network, myMag.log));
+		KernelEigen eigen = register(loadEigen(sparseNetwork));
+		
+		double[][] weights = new double[grid.length][];
+		for (int t=0; t<grid.length; t++)
+			weights[t] = eigen.getWeights(grid[t][0], (int) grid[t][1]);
+		
+		myMag.log.println("Running " + numPermutations + " permutations...");
+		ConnectivityEnrichment enrichment = new ConnectivityEnrichment(eigen, weights, sparseNetwork.getRanks(geneScores), 
+				numPermutations, new Random());
+		enrichment.setPlan(controller.getPermutationPlan());
+		
+		// Check the decomposition against the default kernel
+		try (PStepKernel exact = new PStepKernel(sparseNetwork)) {
+			int[] cutoffSizes = enrichment.getCutoffSizes();
+			eigen.printValidation(exact, enrichment.getRankedNodes(), cutoffSizes[cutoffSizes.length-1], myMag.log);
+		}
+		enrichment.run(myMag.log);
+		
+		double[] pvals = enrichment.getPvals();
+		for (int t=0; t<grid.length; t++) {
+			String name = network.getName() + " (a=" + grid[t][0] + ", p=" + (int) grid[t][1] + ")";
+			myMag.log.println("Enrichment p-value, " + name + ": " + pvals[t]);
+			controller.writeScore(name, pvals[t], settingsFile.getName(), numPermutations);
+		}
+	}
+
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Load the eigendecomposition from the kernel directory if available, otherwise compute (and export) it */
+	private KernelEigen loadEigen(SparseNetwork sparseNetwork) {
+		
+		File eigenFile = KernelEigen.getFile(controller.getKernelDir(), network);
+		String sourceKey = KernelEigen.getSourceKey(network);
+		if (controller.getUsePrecomputedKernels() && eigenFile.exists()) {
+			KernelEigen eigen = KernelEigen.read(eigenFile, sparseNetwork, sourceKey, myMag.log);
+			if (eigen != null) {
+				controller.getKernelCache().touch(eigenFile);
+				return eigen;
+			}
+			myMag.log.println("Eigendecomposition file is outdated, recomputing: " + eigenFile.getPath());
+		}
+		
+		KernelEigen eigen = KernelEigen.compute(sparseNetwork, myMag.log);
+		if (controller.getExportKernels()) {
+			eigen.write(eigenFile, sparseNetwork, sourceKey, myMag.log);
+			controller.getKernelCache().touch(eigenFile);
+			controller.getKernelCache().enforceBudget(myMag.log);
+		}
+		return eigen;
+	}
+	
+}
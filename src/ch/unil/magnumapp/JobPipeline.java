@@ -0,0 +1,286 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import ch.unil.magnumapp.model.NetworkModel;
+import ch.unil.magnumapp.model.SparseNetwork;
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * Staged pipeline for the jobs of a run, so that the disk and the cores are busy at the same time:
+ * 
+ * - I/O stage: a loader thread reads, decompresses and parses the networks of the upcoming 
+ *   jobs (in the order of the job list), at most "depth" networks ahead of the jobs
+ * - Compute stage: the jobs (see JobController), which take their preloaded network
+ * - Write stage: a writer thread for the results, fed by a bounded queue (jobs block when
+ *   it is full)
+ * 
+ * A job whose network is not loaded yet (or failed to load, e.g. a parse error) loads it 
+ * itself, so that errors are reported by the job. The gene scores are loaded once for all 
+ * jobs before the run (see GeneScores), they are not part of the pipeline.
+ */
+public class JobPipeline {
+
+	/** Capacity of the queue of the write stage */
+	final static private int WRITE_QUEUE_CAPACITY = 64;
+	
+	/** State of a network of the I/O stage */
+	private enum State { PENDING, LOADING, READY, TAKEN }
+	
+	/** The networks of the jobs, in the order of the job list */
+	private ArrayList<NetworkModel> networks = new ArrayList<>();
+	/** State of each network */
+	private ArrayList<State> states = new ArrayList<>();
+	/** The loaded networks (READY) */
+	private ArrayList<SparseNetwork> loaded = new ArrayList<>();
+	/** Number of loaded networks that were not taken yet */
+	private int numReady = 0;
+	/** Maximum number of loaded networks that were not taken yet */
+	private int depth;
+	
+	/** The queue of the write stage */
+	private ArrayBlockingQueue<Runnable> writeQueue = new ArrayBlockingQueue<>(WRITE_QUEUE_CAPACITY);
+	/** The threads of the I/O and write stages */
+	private Thread loader;
+	private Thread writer;
+	/** The logger for the stages */
+	private MagnumLogger log;
+	/** Set when the run is done */
+	private volatile boolean closed = false;
+	
+	/** Marks the end of the write queue */
+	final static private Runnable END = () -> {};
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor, example networks are loaded by their jobs (exported first) */
+	public JobPipeline(List<NetworkModel> jobNetworks, int depth, MagnumLogger log) {
+		
+		for (NetworkModel network : jobNetworks) {
+			if (network.getName().startsWith("Example"))
+				continue;
+			networks.add(network);
+			states.add(State.PENDING);
+			loaded.add(null);
+		}
+		this.depth = depth;
+		this.log = log;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Start the loader and writer threads */
+	public void start() {
+		
+		loader = new Thread(this::runLoader, "pipeline-loader");
+		loader.setDaemon(true);
+		loader.start();
+		
+		writer = new Thread(this::runWriter, "pipeline-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The network of a job: preloaded by the I/O stage if available, otherwise loaded on the calling thread */
+	public SparseNetwork takeNetwork(NetworkModel network, MagnumLogger jobLog) {
+		
+		SparseNetwork sparseNetwork = null;
+		synchronized (this) {
+			int i = find(network);
+			while (i != -1 && states.get(i) == State.LOADING) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				i = find(network);
+			}
+			if (i != -1) {
+				if (states.get(i) == State.READY) {
+					sparseNetwork = loaded.get(i);
+					loaded.set(i, null);
+					numReady--;
+					notifyAll();
+				}
+				states.set(i, State.TAKEN);
+			}
+		}
+		
+		if (sparseNetwork != null) {
+			jobLog.println("Network preloaded: " + network.getFile().getPath());
+			jobLog.println("- " + sparseNetwork.getNumNodes() + " nodes, " + sparseNetwork.getNumEdges() + " undirected edges");
+			return sparseNetwork;
+		}
+		return SparseNetwork.load(network.getFile(), network.getIsWeighted(), network.getRemoveSelf(), jobLog);
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Hand a task to the write stage (runs on the calling thread if the pipeline is closed) */
+	public void write(Runnable task) {
+		
+		if (closed) {
+			task.run();
+			return;
+		}
+		try {
+			writeQueue.put(task);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Wait for the pending writes, stop the loader and release the networks that were not taken */
+	public void close() {
+		
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writeQueue.put(END);
+			writer.join();
+			loader.interrupt();
+			loader.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		// Tasks submitted while closing
+		for (Runnable task : writeQueue)
+			if (task != END)
+				task.run();
+		
+		synchronized (this) {
+			for (int i=0; i<loaded.size(); i++) {
+				if (loaded.get(i) != null)
+					loaded.get(i).close();
+				loaded.set(i, null);
+			}
+		}
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** The I/O stage */
+	private void runLoader() {
+		
+		for (int i=0; i<networks.size(); i++) {
+			NetworkModel network = networks.get(i);
+			synchronized (this) {
+				while (numReady >= depth && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (closed)
+					return;
+				// Taken (and loaded) by its job in the meantime
+				if (states.get(i) != State.PENDING)
+					continue;
+				states.set(i, State.LOADING);
+			}
+			
+			SparseNetwork sparseNetwork = null;
+			try {
+				sparseNetwork = SparseNetwork.load(network.getFile(), network.getIsWeighted(), network.getRemoveSelf(), log);
+			} catch (Exception e) {
+				// The job loads it again and reports the error
+				log.println("Pipeline: failed to preload " + network.getName() + ", the job will retry");
+			}
+			
+			synchronized (this) {
+				if (sparseNetwork == null) {
+					states.set(i, State.PENDING);
+				} else if (closed) {
+					sparseNetwork.close();
+					states.set(i, State.TAKEN);
+				} else {
+					loaded.set(i, sparseNetwork);
+					states.set(i, State.READY);
+					numReady++;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The write stage */
+	private void runWriter() {
+		
+		while (true) {
+			Runnable task;
+			try {
+				task = writeQueue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (task == END)
+				return;
+			try {
+				task.run();
+			} catch (Exception e) {
+				log.printStackTrace(e);
+			}
+		}
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Index of the first network of the I/O stage matching the given one that was not taken yet, -1 if none */
+	private int find(NetworkModel network) {
+		
+		for (int i=0; i<networks.size(); i++) {
+			NetworkModel other = networks.get(i);
+			if (states.get(i) != State.TAKEN && other.getFile().equals(network.getFile()) 
+					&& other.getIsWeighted() == network.getIsWeighted() && other.getRemoveSelf() == network.getRemoveSelf())
+				return i;
+		}
+		return -1;
+	}
+
+}
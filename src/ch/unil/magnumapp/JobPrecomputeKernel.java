@@ -0,0 +1,159 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.unil.magnumapp.model.DenseKernel;
+import ch.unil.magnumapp.model.KernelCache;
+import ch.unil.magnumapp.model.KernelFile;
+import ch.unil.magnumapp.model.KernelManifest;
+import ch.unil.magnumapp.model.KernelUpdate;
+import ch.unil.magnumapp.model.NetworkDelta;
+import ch.unil.magnumapp.model.NetworkModel;
+import ch.unil.magnumapp.model.PStepKernel;
+import ch.unil.magnumapp.model.SparseNetwork;
+import ch.unil.magnumapp.view.JobController;
+
+/**
+ * Computes the dense kernel of a network and exports it to the kernel directory, without
+ * running an enrichment. The kernel file is recorded in the manifest of the directory
+ * (see KernelManifest), kernels that are already up to date are skipped. Variants of 
+ * networks (see NetworkDelta) are derived from the kernel of their base network if it
+ * was exported before. The disk budget of the kernel cache is enforced after each export.
+ */
+public class JobPrecomputeKernel extends JobMagnum {
+
+	/** The network */
+    private NetworkModel network;
+    /** The kernel cache (directory and manifest), shared by all jobs of the run */
+    private KernelCache cache;
+    /** Preloads the networks of the upcoming jobs */
+    private JobPipeline pipeline;
+    /** Precision of the kernel file */
+    private int bits;
+    
+    
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor */
+	public JobPrecomputeKernel(JobController jobManager, String jobName, NetworkModel network, KernelCache cache, JobPipeline pipeline, int bits) {
+
+		super(jobManager, jobName);
+		this.network = network;
+		this.cache = cache;
+		this.pipeline = pipeline;
+		this.bits = bits;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Main method called by the thread */
+	@Override
+	protected void runJob() {
+		
+		SparseNetwork sparseNetwork = register(pipeline.takeNetwork(network, myMag.log));
+		PStepKernel exact = register(new PStepKernel(sparseNetwork));
+		
+		File kernelFile = KernelFile.getFile(cache.getKernelDir(), network);
+		String sourceKey = KernelFile.getSourceKey(network, exact);
+		KernelManifest manifest = cache.getManifest();
+		if (manifest.isUpToDate(kernelFile, sourceKey)) {
+			if (manifest.verifyChecksum(kernelFile)) {
+				myMag.log.println("Kernel is up to date: " + kernelFile.getPath());
+				cache.touch(kernelFile);
+				return;
+			}
+			myMag.log.println("Kernel file is corrupted (checksum), recomputing: " + kernelFile.getPath());
+		}
+		
+		long t0 = System.currentTimeMillis();
+		DenseKernel kernel = NetworkDelta.isDeltaFile(network.getFile()) 
+				? KernelUpdate.derive(network, cache.getKernelDir(), exact, myMag.log) : null;
+		if (kernel == null) {
+			myMag.log.println("Computing dense kernel (float32)...");
+			kernel = DenseKernel.compute(exact);
+		}
+		register(kernel);
+		long buildTime = System.currentTimeMillis() - t0;
+		
+		long checksum = KernelFile.write(kernelFile, kernel, bits, sparseNetwork, sourceKey, myMag.log);
+		manifest.put(kernelFile, sourceKey, bits, kernel.getNumNodes(), checksum, buildTime);
+		myMag.log.println("Kernel added to manifest: " + manifest.getFile().getPath());
+		cache.touch(kernelFile);
+		cache.enforceBudget(myMag.log);
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Variants are derived from the kernel file of the base network */
+	@Override
+	public List<String> getInputs() {
+		
+		ArrayList<String> inputs = new ArrayList<>();
+		if (NetworkDelta.isDeltaFile(network.getFile())) {
+			try {
+				inputs.add(KernelCache.getArtefact(KernelUpdate.getBaseKernelFile(network, cache.getKernelDir())));
+			} catch (RuntimeException e) {
+				// Invalid delta file, reported by the job
+			}
+		}
+		return inputs;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The kernel file */
+	@Override
+	public List<String> getOutputs() {
+		
+		ArrayList<String> outputs = new ArrayList<>();
+		outputs.add(KernelCache.getArtefact(KernelFile.getFile(cache.getKernelDir(), network)));
+		return outputs;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The kernel file can be evicted once the variants derived from it are done */
+	@Override
+	public void release(String output) {
+		cache.release(KernelFile.getFile(cache.getKernelDir(), network));
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public NetworkModel getNetwork() { return network; }
+
+}
@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp;
+
+import java.util.Random;
+
+import ch.unil.magnumapp.model.ConnectivityEnrichment;
+import ch.unil.magnumapp.model.Kernel;
+import ch.unil.magnumapp.model.KernelMode;
+import ch.unil.magnumapp.model.MatrixFreeKernel;
+import ch.unil.magnumapp.model.NetworkModel;
+import ch.unil.magnumapp.model.PStepKernel;
+import ch.unil.magnumapp.model.PermutationBudget;
+import ch.unil.magnumapp.model.PermutationState;
+import ch.unil.magnumapp.model.SparseNetwork;
+import ch.unil.magnumapp.view.EnrichmentController;
+import ch.unil.magnumapp.view.JobController;
+
+/**
+ * Enrichment job for interactive use: a rough p-value is shown within seconds, then it 
+ * is refined until the number of permutations of the run is reached. Each estimate (with 
+ * its confidence interval) is streamed to the enrichment pane and the live plot, only 
+ * the final p-value is written to the score file.
+ * 
+ * 1. Matrix-free kernel (no precomputation): FIRST_PERMUTATIONS, then GROWTH times more
+ *    in each step, up to MATRIX_FREE_PERMUTATIONS
+ * 2. Kernel of the selected mode (e.g. the dense kernel, computed or loaded meanwhile 
+ *    the first estimates are shown): the permutations continue in steps up to the total
+ * 
+ * Each step only runs the additional permutations (see PermutationState). The matrix-free
+ * kernel is exact, so the dense kernel continues its permutations. The statistic of a 
+ * sparse kernel differs, its permutations start from scratch.
+ */
+public class JobPreview extends JobEnrichment {
+
+	/** Permutations of the first estimate */
+	final static public int FIRST_PERMUTATIONS = 100;
+	/** Maximum number of permutations with the matrix-free kernel */
+	final static public int MATRIX_FREE_PERMUTATIONS = 1000;
+	/** Factor by which the permutations grow in each step */
+	final static public int GROWTH = 4;
+	
+	/** The permutations done so far */
+	private PermutationState state;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor */
+	public JobPreview(JobController jobManager, String jobName, EnrichmentController controller, NetworkModel network) {
+		super(jobManager, jobName, controller, network);
+	}
+	
+	
+	// ============================================================================
+	// PROTECTED METHODS
+
+	/** Refine the p-value in steps, with the matrix-free kernel first */
+	@Override
+	protected void runInApp() {
+		
+    	myMag.log.println("\nStarting preview (kernel: " + controller.getKernelMode() + ")...\n");
+		
+		// Off-heap, released when the job finishes
+		SparseNetwork sparseNetwork = register(controller.getPipeline().takeNetwork(network, myMag.log));
+		PStepKernel exact = register(new PStepKernel(sparseNetwork));
+		int[] ranks = sparseNetwork.getRanks(geneScores);
+		
+		// Rough estimates, up to the total if the matrix-free kernel is the selected one
+		boolean matrixFree = controller.getKernelMode() == KernelMode.MATRIX_FREE;
+		int end = matrixFree ? numPermutations : Math.min(MATRIX_FREE_PERMUTATIONS, numPermutations/GROWTH);
+		if (end > 0)
+			refine(register(new MatrixFreeKernel(exact)), KernelMode.MATRIX_FREE, ranks, end);
+		
+		// The kernel of the selected mode
+		if (!matrixFree)
+			refine(createKernel(exact, sparseNetwork), controller.getKernelMode(), ranks, numPermutations);
+		
+		myMag.log.println("Enrichment p-value: " + state.getPval(0));
+		controller.writeScore(network.getName(), state.getPval(0), settingsFile.getName(), numPermutations);
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Run the permutations with the given kernel in steps up to the given number, stream the estimate after each step */
+	private void refine(Kernel kernel, KernelMode mode, int[] ranks, int end) {
+		
+		int n = (state == null) ? FIRST_PERMUTATIONS : state.getNumPermutations() * GROWTH;
+		while (true) {
+			n = Math.min(n, end);
+			ConnectivityEnrichment enrichment = new ConnectivityEnrichment(kernel, ranks, n, new Random());
+			enrichment.setPlan(controller.getPermutationPlan());
+			enrichment.setResume(state);
+			double pval = enrichment.run(myMag.log);
+			state = enrichment.getState(mode.toString());
+			
+			double[] interval = PermutationBudget.getConfidenceInterval(pval, n);
+			myMag.log.println("Preview p-value: " + pval + " [" + interval[0] + ", " + interval[1] + "] (" + n + " permutations, " + mode + ")");
+			controller.previewScore(network.getName(), pval, interval, n, mode);
+			
+			if (n >= end)
+				return;
+			n *= GROWTH;
+		}
+	}
+
+}
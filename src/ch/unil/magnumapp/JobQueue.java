@@ -0,0 +1,413 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Work queue on a shared file system, used to distribute enrichment jobs to
+ * headless workers (see QueueWorker) on machines without a batch system.
+ *
+ * For each job, the queue directory contains:
+ * - <job>.job          ticket with the path of the settings file (written by the App)
+ * - <job>.lock         claim token of a worker, created atomically
+ * - <job>.lock.<id>    heartbeat of the claim with the given token id, touched by its worker
+ * - <job>.result.txt   score or error message (written by the worker)
+ *
+ * A lock whose heartbeat was not touched for longer than the lease is considered 
+ * stale (crashed worker) and can be reclaimed by another worker. Each claim writes
+ * a unique token into the lock and has its own heartbeat file, so a worker never 
+ * touches the lease of another claim. The release of a worker only removes a lock
+ * that still holds its token, a worker whose lease was reclaimed must abort the job. Note that all machines must use the same paths for the 
+ * shared directory and have synchronized clocks (NTP).
+ */
+public class JobQueue {
+
+	/** Ticket file extension */
+	final static public String TICKET = ".job";
+	/** Lock file extension */
+	final static public String LOCK = ".lock";
+	/** Result file extension */
+	final static public String RESULT = ".result.txt";
+
+	/** Interval between heartbeats of a worker (ms) */
+	final static public long HEARTBEAT_INTERVAL = 30000;
+	/** A lock without heartbeat for this long is considered stale (ms) */
+	final static public long LEASE = 10*HEARTBEAT_INTERVAL;
+
+	/** The shared queue directory */
+	private File dir;
+
+
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor, creates the directory if needed */
+	public JobQueue(File dir) {
+
+		this.dir = dir;
+		dir.mkdirs();
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Unique id of this process (pid@host) */
+	public static String getWorkerId() {
+		return ManagementFactory.getRuntimeMXBean().getName();
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Submit a job, results of a previous submission with the same name are removed */
+	public void submit(String jobName, File settingsFile) {
+
+		delete(file(jobName, RESULT));
+		writeAtomic(file(jobName, TICKET), settingsFile.getAbsolutePath());
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Withdraw a job (workers that already claimed it will still finish it) */
+	public void cancel(String jobName) {
+		delete(file(jobName, TICKET));
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Jobs that were submitted and do not have a result yet */
+	public List<String> listOpenJobs() {
+
+		ArrayList<String> jobs = new ArrayList<>();
+		File[] tickets = dir.listFiles((d, name) -> name.endsWith(TICKET));
+		if (tickets == null)
+			return jobs;
+
+		for (File ticket : tickets) {
+			String jobName = ticket.getName().substring(0, ticket.getName().length() - TICKET.length());
+			if (!file(jobName, RESULT).exists())
+				jobs.add(jobName);
+		}
+		Collections.sort(jobs);
+		return jobs;
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Try to claim the given job, returns the claim token or null if it is locked by a live worker */
+	public String tryClaim(String jobName, String workerId) {
+
+		if (!file(jobName, TICKET).exists() || file(jobName, RESULT).exists())
+			return null;
+
+		// Reclaim stale locks (only removed if still stale once taken, see removeLock())
+		if (isStale(jobName, file(jobName, LOCK)))
+			removeLock(jobName, null);
+
+		// Atomic create, fails if the file exists
+		String token = workerId + "#" + UUID.randomUUID();
+		try {
+			Files.write(file(jobName, LOCK).toPath(), token.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		} catch (FileAlreadyExistsException e) {
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// Another worker reclaiming a stale lock at the same time could have taken ours
+		if (!holdsToken(jobName, token))
+			return null;
+		// The ticket could have been cancelled in the meantime
+		if (!file(jobName, TICKET).exists()) {
+			release(jobName, token);
+			return null;
+		}
+		touch(getHeartbeatFile(jobName, token));
+		return token;
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Renew the lease of a claimed job, returns false if the lock does not hold the token anymore (the job must be aborted) */
+	public boolean heartbeat(String jobName, String token) {
+
+		if (!holdsToken(jobName, token))
+			return false;
+		// Only touches the heartbeat of this claim, also if the lock is reclaimed meanwhile
+		touch(getHeartbeatFile(jobName, token));
+		return true;
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Release the lock of a job if it still holds the given claim token */
+	public void release(String jobName, String token) {
+		
+		removeLock(jobName, token);
+		delete(getHeartbeatFile(jobName, token));
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** True if the lock of the job holds the given claim token */
+	public boolean holdsToken(String jobName, String token) {
+		return token.equals(readLock(file(jobName, LOCK)));
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Write the result of a job (error is null if the job was successful) */
+	public void writeResult(String jobName, String workerId, double score, long runtime, String error) {
+
+		String text;
+		if (error == null)
+			text = "OK\t" + score + "\t" + workerId + "\t" + runtime + "\n";
+		else
+			text = "ERROR\t" + error.replace('\n', ' ').replace('\t', ' ') + "\t" + workerId + "\t" + runtime + "\n";
+		writeAtomic(file(jobName, RESULT), text);
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Returns the score if the job is done, null otherwise, throws an exception if the job failed */
+	public Double pollResult(String jobName) {
+
+		File resultFile = file(jobName, RESULT);
+		if (!resultFile.exists())
+			return null;
+
+		String[] result = read(resultFile).trim().split("\t");
+		if (result.length != 4)
+			throw new RuntimeException("Invalid result file: " + resultFile.getPath());
+		if (result[0].equals("ERROR"))
+			throw new RuntimeException("Job failed on worker " + result[2] + ": " + result[1]);
+
+		return Double.parseDouble(result[1]);
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** The worker that has currently claimed the job (null if none) */
+	public String getWorker(String jobName) {
+
+		String token = readLock(file(jobName, LOCK));
+		if (token == null)
+			return null;
+		int sep = token.lastIndexOf('#');
+		return (sep == -1) ? token : token.substring(0, sep);
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** The settings file of a submitted job */
+	public File getSettingsFile(String jobName) {
+		return new File(read(file(jobName, TICKET)).trim());
+	}
+
+
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** A file of the given job */
+	private File file(String jobName, String extension) {
+		return new File(dir, jobName + extension);
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** True if the given lock of the job exists but the lease of its claim expired (last heartbeat, or creation of the lock) */
+	private boolean isStale(String jobName, File lock) {
+
+		// Zero if the file does not exist
+		long created = lock.lastModified();
+		String token = readLock(lock);
+		if (created == 0 || token == null)
+			return false;
+		long lastModified = Math.max(created, getHeartbeatFile(jobName, token).lastModified());
+		return System.currentTimeMillis() - lastModified > LEASE;
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** The heartbeat file of the claim with the given token */
+	private File getHeartbeatFile(String jobName, String token) {
+		return file(jobName, LOCK + "." + token.substring(token.lastIndexOf('#') + 1));
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Set the modification time of the file to now, the file is created if needed */
+	private void touch(File file) {
+
+		try {
+			Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (NoSuchFileException e) {
+			try {
+				Files.write(file.toPath(), new byte[0]);
+			} catch (IOException e2) {
+				throw new RuntimeException(e2);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** The token of a lock (null if it does not exist) */
+	private String readLock(File lock) {
+
+		try {
+			return new String(Files.readAllBytes(lock.toPath()), StandardCharsets.UTF_8).trim();
+		} catch (IOException e) {
+			// Released while reading
+			return null;
+		}
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** 
+	 * Remove the lock if it holds the given token (if it is stale for a null token). The lock 
+	 * is first renamed, so that only one worker gets it, and it is only deleted if it is the
+	 * expected one. Otherwise (e.g. it was reclaimed by another worker since we checked), it 
+	 * is put back unless a new lock was created meanwhile -- the owner then sees the missing 
+	 * token at its next heartbeat.
+	 */
+	private void removeLock(String jobName, String token) {
+
+		File lock = file(jobName, LOCK);
+		File taken = new File(dir, jobName + LOCK + ".taken." + UUID.randomUUID());
+		try {
+			Files.move(lock.toPath(), taken.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// Already removed by another worker
+			return;
+		}
+
+		String takenToken = readLock(taken);
+		boolean expected = (token == null) ? isStale(jobName, taken) : token.equals(takenToken);
+		// The heartbeat of a crashed worker
+		if (expected && token == null && takenToken != null)
+			delete(getHeartbeatFile(jobName, takenToken));
+		if (!expected && takenToken != null) {
+			try {
+				Files.write(lock.toPath(), takenToken.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				Files.setLastModifiedTime(lock.toPath(), FileTime.fromMillis(taken.lastModified()));
+			} catch (FileAlreadyExistsException e) {
+				// Claimed by another worker in the meantime
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		delete(taken);
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Write to a temporary file and rename it, so that readers never see partial files */
+	private void writeAtomic(File file, String text) {
+
+		Path tmp = new File(dir, file.getName() + ".tmp." + getWorkerId().replace('@', '_')).toPath();
+		try {
+			Files.write(tmp, text.getBytes(StandardCharsets.UTF_8));
+			try {
+				Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Read a small text file */
+	private String read(File file) {
+
+		try {
+			return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Delete file if it exists */
+	private void delete(File file) {
+
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public File getDir() {
+		return dir;
+	}
+
+}
@@ -0,0 +1,317 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import ch.unil.magnumapp.model.ConnectivityEnrichment;
+import ch.unil.magnumapp.model.DenseKernel;
+import ch.unil.magnumapp.model.GeneScores;
+import ch.unil.magnumapp.model.Kernel;
+import ch.unil.magnumapp.model.KernelEigen;
+import ch.unil.magnumapp.model.KernelFile;
+import ch.unil.magnumapp.model.MatrixFreeKernel;
+import ch.unil.magnumapp.model.NetworkModel;
+import ch.unil.magnumapp.model.PStepKernel;
+import ch.unil.magnumapp.model.PermutationPlan;
+import ch.unil.magnumapp.model.QuantizedKernel;
+import ch.unil.magnumapp.model.SparseKernel;
+import ch.unil.magnumapp.model.SparseNetwork;
+
+/**
+ * Headless comparison of the kernels computed by the app: runs the connectivity 
+ * enrichment with each kernel (same permutations) and reports p-values, memory 
+ * and runtime. Use it to validate kernel modes on a given network, e.g., the 
+ * example network and gene scores exported to <output_dir>/example_data:
+ *
+ *    java -Xmx8g -cp magnum-app.jar ch.unil.magnumapp.KernelBenchmark <network_file> <gene_score_file> 
+ *        [num_permutations] [exclude_hla] [exclude_xy] [gene_coordinates_file]
+ *
+ * The filters default to the app defaults (exclude HLA genes and X, Y chromosomes).
+ * The p-value deltas are only informative if the p-values are above the permutation 
+ * floor 1/(num_permutations+1), a warning is printed otherwise.
+ */
+public class KernelBenchmark {
+
+	/** Seed used for the permutations of all kernels */
+	final static private long SEED = 42;
+	/** Reference kernel of the p-value deltas */
+	final static private String REFERENCE = "Dense float32";
+	/** Number of random gene sets (and repetitions) for the scoring loop benchmark */
+	final static private int NUM_SCORING_SETS = 1000;
+	final static private int NUM_SCORING_REPEATS = 5;
+	
+	/** The logger */
+	private AppLogger log;
+	/** The network */
+	private SparseNetwork network;
+	/** The network model (file and flags) */
+	private NetworkModel networkModel;
+	/** Ranks of the network nodes */
+	private int[] ranks;
+	/** Number of permutations */
+	private int numPermutations;
+	/** Gene scores */
+	private GeneScores geneScores;
+	/** Shared permutations (null to use the seed) */
+	private PermutationPlan plan;
+	/** Compute the curves incrementally */
+	private boolean incremental = true;
+	/** P-value of each benchmark */
+	private LinkedHashMap<String, Double> pvals = new LinkedHashMap<>();
+	
+	
+	// ============================================================================
+	// STATIC METHODS
+
+	/** Main */
+	public static void main(String[] args) {
+		
+		if (args.length < 2 || args.length > 6) {
+			System.out.println("Usage: java -cp magnum-app.jar ch.unil.magnumapp.KernelBenchmark <network_file> <gene_score_file> "
+					+ "[num_permutations] [exclude_hla] [exclude_xy] [gene_coordinates_file]");
+			System.exit(-1);
+		}
+		int numPermutations = (args.length > 2) ? Integer.parseInt(args[2]) : 10000;
+		boolean excludeHla = (args.length > 3) ? Boolean.parseBoolean(args[3]) : true;
+		boolean excludeXY = (args.length > 4) ? Boolean.parseBoolean(args[4]) : true;
+		File coordinatesFile = (args.length > 5) ? new File(args[5]) : null;
+		KernelBenchmark benchmark = new KernelBenchmark(new File(args[0]), new File(args[1]), numPermutations, excludeHla, excludeXY, coordinatesFile);
+		benchmark.run();
+	}
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor, loads the network and gene scores (filtered as in the app, coordinatesFile can be null) */
+	public KernelBenchmark(File networkFile, File geneScoreFile, int numPermutations, boolean excludeHla, boolean excludeXY, File coordinatesFile) {
+		
+		this.numPermutations = numPermutations;
+		log = new AppLogger();
+		
+		// Same check as the app: the filters are not silently skipped without coordinates
+		if ((excludeHla || excludeXY) && coordinatesFile == null && !GeneScores.hasCoordinates(geneScoreFile, excludeHla, excludeXY, log))
+			throw new RuntimeException("The gene score file has no coordinates: give a gene coordinates file or disable the filters (exclude_hla, exclude_xy)");
+		
+		networkModel = new NetworkModel(networkFile.getName(), networkFile.getName(), false, false, true);
+		networkModel.setFile(networkFile);
+		network = SparseNetwork.load(networkFile, networkModel.getIsWeighted(), networkModel.getRemoveSelf(), log);
+		geneScores = GeneScores.load(geneScoreFile, excludeHla, excludeXY, coordinatesFile, null, log);
+		ranks = network.getRanks(geneScores);
+		log.println("");
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Run the benchmark */
+	public void run() {
+		
+		ArrayList<String> results = new ArrayList<>();
+		
+		try (PStepKernel exact = new PStepKernel(network)) {
+			results.add(benchmark("Matrix-free", () -> new MatrixFreeKernel(exact), true, true));
+			Kernel[] sparse = new Kernel[1];
+			results.add(benchmark("Sparse top-" + SparseKernel.DEFAULT_TOP_K, () -> sparse[0] = SparseKernel.compute(exact, SparseKernel.DEFAULT_TOP_K, 0), false, true));
+			incremental = false;
+			results.add(benchmark("Sparse top-" + SparseKernel.DEFAULT_TOP_K + ", per cutoff", () -> sparse[0], true, true));
+			incremental = true;
+
+			try (DenseKernel dense = DenseKernel.compute(exact)) {
+				results.add(benchmark("Dense float32", () -> dense, false, true));
+				results.add(benchmark("Dense float32, unbatched", () -> dense, false, false));
+				incremental = false;
+				results.add(benchmark("Dense float32, unbatched per cutoff", () -> dense, false, false));
+				incremental = true;
+				plan = PermutationPlan.create(geneScores.getNumGenes(), SEED);
+				results.add(benchmark("Dense float32, shared plan", () -> dense, false, true));
+				plan = null;
+				for (int bits : KernelFile.BITS)
+					results.add(benchmark("Kernel file " + bits + "-bit", () -> writeAndRead(dense, bits, exact), true, true));
+				
+				benchmarkScoring("Dense float32", dense, dense::sumSquare, dense::sumTriangle);
+				try (QuantizedKernel quantized = QuantizedKernel.quantize(dense, 16)) {
+					benchmarkScoring("Quantized 16-bit", quantized, quantized::sumSquare, quantized::sumTriangle);
+				}
+			}
+		}
+		benchmarkSweep();
+		network.close();
+		
+		log.println("\nKernel\tp-value\tstatistic\tmemory_MB\tkernel_ms\tpermutations_ms");
+		for (String result : results)
+			log.println(result);
+		printPvalDeltas();
+	}
+
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Compute a kernel */
+	private interface KernelSupplier {
+		public Kernel get();
+	}
+	
+	/** A scoring loop: sum of the kernel entries within the given nodes */
+	private interface ScoringLoop {
+		public double sum(int[] nodes, int numNodes);
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Run the enrichment with the given kernel (closed at the end if close is set), returns a line of the result table */
+	private String benchmark(String name, KernelSupplier supplier, boolean close, boolean batched) {
+		
+		log.println("Benchmark: " + name);
+		long t0 = System.currentTimeMillis();
+		Kernel kernel = supplier.get();
+		long t1 = System.currentTimeMillis();
+		
+		ConnectivityEnrichment enrichment = new ConnectivityEnrichment(kernel, ranks, numPermutations, new Random(SEED));
+		enrichment.setBatched(batched);
+		enrichment.setPlan(plan);
+		enrichment.setIncremental(incremental);
+		double pval = enrichment.run(log);
+		long t2 = System.currentTimeMillis();
+		if (close)
+			kernel.close();
+		pvals.put(name, pval);
+		
+		return name + "\t" + pval + "\t" + enrichment.getObservedStatistic() + "\t" + (kernel.getMemory() >> 20) 
+				+ "\t" + (t1 - t0) + "\t" + (t2 - t1);
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Print the p-value delta of each kernel relative to the reference (dense float32) kernel */
+	private void printPvalDeltas() {
+		
+		double floor = 1.0 / (1.0 + numPermutations);
+		double reference = pvals.get(REFERENCE);
+		log.println("\nP-value deltas relative to " + REFERENCE + " (p = " + reference + ", permutation floor " + floor + "):");
+		if (reference <= floor)
+			log.println("WARNING: the reference p-value is at the permutation floor, the deltas are not informative");
+		for (Map.Entry<String, Double> entry : pvals.entrySet())
+			log.println("- " + entry.getKey() + ": " + String.format("%+.2e", entry.getValue() - reference) 
+					+ " (" + String.format("%.1f", Math.abs(entry.getValue() - reference) / floor) + " permutations)");
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Compare the reference and fast scoring loops (GatherSum) on random gene sets of the largest cutoff */
+	private void benchmarkScoring(String name, Kernel kernel, ScoringLoop reference, ScoringLoop fast) {
+		
+		// Random gene sets among the nodes with a score
+		ConnectivityEnrichment enrichment = new ConnectivityEnrichment(kernel, ranks, 0, null);
+		int[] cutoffSizes = enrichment.getCutoffSizes();
+		int setSize = cutoffSizes[cutoffSizes.length-1];
+		Random random = new Random(SEED);
+		int[][] sets = new int[NUM_SCORING_SETS][];
+		for (int s=0; s<sets.length; s++) {
+			int[] nodes = enrichment.getRankedNodes().clone();
+			for (int k=0; k<setSize; k++) {
+				int swap = k + random.nextInt(nodes.length - k);
+				int tmp = nodes[k]; nodes[k] = nodes[swap]; nodes[swap] = tmp;
+			}
+			sets[s] = nodes;
+		}
+		
+		ScoringLoop[] loops = {reference, fast};
+		double[] checksums = new double[2];
+		long[] times = new long[2];
+		// Alternate the loops, the first repeat is warm-up
+		for (int repeat=0; repeat<=NUM_SCORING_REPEATS; repeat++) {
+			for (int loop=0; loop<2; loop++) {
+				long t0 = System.nanoTime();
+				double checksum = 0;
+				for (int[] set : sets)
+					checksum += loops[loop].sum(set, setSize);
+				if (repeat > 0) {
+					times[loop] += System.nanoTime() - t0;
+					checksums[loop] = checksum;
+				}
+			}
+		}
+		log.println("Scoring loop, " + name + " (" + NUM_SCORING_SETS + " gene sets of " + setSize + " genes):");
+		log.println("- Reference: " + times[0]/1000000/NUM_SCORING_REPEATS + " ms");
+		log.println("- Fast:      " + times[1]/1000000/NUM_SCORING_REPEATS + " ms (speedup " 
+				+ String.format("%.2f", (double) times[0] / times[1]) + ", relative difference " 
+				+ String.format("%.1e", Math.abs(checksums[0] - checksums[1]) / Math.abs(checksums[0])) + ")");
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Score a grid of kernel parameters with the eigendecomposition (the default parameters come first) */
+	private void benchmarkSweep() {
+		
+		double[][] grid = {{PStepKernel.DEFAULT_ALPHA, PStepKernel.DEFAULT_P}, {1.5, 2}, {1.5, 4}, {2, 2}, {3, 2}, {3, 4}};
+		long t0 = System.currentTimeMillis();
+		try (KernelEigen eigen = KernelEigen.compute(network, log)) {
+			long t1 = System.currentTimeMillis();
+			double[][] weights = new double[grid.length][];
+			for (int t=0; t<grid.length; t++)
+				weights[t] = eigen.getWeights(grid[t][0], (int) grid[t][1]);
+			
+			ConnectivityEnrichment enrichment = new ConnectivityEnrichment(eigen, weights, ranks, numPermutations, new Random(SEED));
+			enrichment.run(log);
+			long t2 = System.currentTimeMillis();
+			
+			log.println("Parameter sweep (" + grid.length + " kernels, eigendecomposition " + (t1 - t0) + " ms, permutations " + (t2 - t1) + " ms):");
+			log.println("- Statistic (a=" + grid[0][0] + ", p=" + (int) grid[0][1] + "): " + enrichment.getObservedStatistic());
+			for (int t=0; t<grid.length; t++)
+				log.println("- a=" + grid[t][0] + ", p=" + (int) grid[t][1] + ": " + enrichment.getPvals()[t]);
+		}
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** Write the kernel to a temporary file and read it back */
+	private Kernel writeAndRead(DenseKernel dense, int bits, PStepKernel exact) {
+		
+		try {
+			File file = File.createTempFile("benchmark", KernelFile.EXTENSION);
+			file.deleteOnExit();
+			String sourceKey = KernelFile.getSourceKey(networkModel, exact);
+			KernelFile.write(file, dense, bits, network, sourceKey, log);
+			return KernelFile.read(file, network, sourceKey, log);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+}
@@ -0,0 +1,224 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.mit.magnum.Magnum;
+
+/**
+ * Headless worker processing the jobs of a shared JobQueue. Start one instance
+ * per core on any machine that sees the shared directory:
+ *
+ *    java -Xmx8g -cp magnum-app.jar ch.unil.magnumapp.QueueWorker <queue_dir> [--exit-when-empty]
+ *
+ * The queue directory is <output_dir>/job_queue of the run launched in the App.
+ * To test locally, start several workers on the same machine and directory.
+ * 
+ * Jobs of several runs (e.g. one per GWAS) can share the queue. A worker prefers jobs
+ * on the network of its previous job (its kernel is still in the page cache), then
+ * takes the jobs grouped by network.
+ */
+public class QueueWorker {
+
+	/** Time to wait before checking the queue again when there is nothing to do (ms) */
+	final static private long POLL_INTERVAL = 10000;
+
+	/** The queue */
+	private JobQueue queue;
+	/** The id of this worker */
+	private String workerId;
+	/** The logger of this worker */
+	private AppLogger log;
+
+	/** Exit when there are no more open jobs */
+	private boolean exitWhenEmpty;
+
+
+	// ============================================================================
+	// STATIC METHODS
+
+	/** Main */
+	public static void main(String[] args) {
+
+		if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("--exit-when-empty"))) {
+			System.out.println("Usage: java -cp magnum-app.jar ch.unil.magnumapp.QueueWorker <queue_dir> [--exit-when-empty]");
+			System.exit(-1);
+		}
+		QueueWorker worker = new QueueWorker(new File(args[0]), args.length == 2);
+		worker.run();
+	}
+
+
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor */
+	public QueueWorker(File queueDir, boolean exitWhenEmpty) {
+
+		queue = new JobQueue(queueDir);
+		workerId = JobQueue.getWorkerId();
+		this.exitWhenEmpty = exitWhenEmpty;
+
+		log = new AppLogger();
+		log.println(AppSettings.magnumAppVersion + " -- queue worker " + workerId);
+		log.println("- Queue directory: " + queueDir.getAbsolutePath() + "\n");
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Process jobs until the queue is empty (if exitWhenEmpty is set) or forever */
+	public void run() {
+
+		String lastNetwork = null;
+		while (true) {
+			// List again after each job, so that the jobs on the last network come first
+			boolean claimedJob = false;
+			for (String jobName : orderByNetwork(queue.listOpenJobs(), lastNetwork)) {
+				String token = queue.tryClaim(jobName, workerId);
+				if (token != null) {
+					claimedJob = true;
+					runJob(jobName, token);
+					lastNetwork = getNetworkName(jobName);
+					break;
+				}
+			}
+
+			// Sleep if nothing was done during this pass (other workers are busy with all remaining jobs)
+			if (!claimedJob) {
+				if (exitWhenEmpty && queue.listOpenJobs().isEmpty())
+					break;
+				try {
+					Thread.sleep(POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		log.println("No more jobs in queue, bye!");
+	}
+
+
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Jobs on the given network first, then grouped by network (job names are <gwas>--<network>) */
+	private List<String> orderByNetwork(List<String> jobs, String lastNetwork) {
+		
+		ArrayList<String> ordered = new ArrayList<>(jobs);
+		ordered.sort(Comparator.comparing((String job) -> !getNetworkName(job).equals(lastNetwork))
+				.thenComparing(job -> getNetworkName(job))
+				.thenComparing(job -> job));
+		return ordered;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The network of a job (see EnrichmentController.getJobName()) */
+	private String getNetworkName(String jobName) {
+		
+		int sep = jobName.indexOf("--");
+		return (sep == -1) ? jobName : jobName.substring(sep + 2);
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Run a claimed job and write the result (unless the lease was lost, the new owner then runs the job) */
+	private void runJob(String jobName, String token) {
+
+		log.println("Running job:\t" + jobName);
+		AppLogger jobLog = new AppLogger();
+		Thread heartbeat = startHeartbeat(jobName, token, jobLog);
+		long t0 = System.currentTimeMillis();
+
+		try {
+			// Same as JobMagnum.run(), a personal magnum and log file per job
+			File settingsFile = queue.getSettingsFile(jobName);
+			jobLog.setSystemOut(false);
+			// Not <job>.log.txt, the App that submitted the job writes it in the same directory
+			jobLog.createLogFile(new File(settingsFile.getParentFile(), jobName + ".worker.log.txt"));
+			try {
+				Magnum mag = new Magnum(null, jobLog);
+				mag.set.loadSettings(settingsFile.getAbsolutePath());
+				mag.run();
+				double score = mag.getEnrichMain().getEnrichmentScore();
+				if (queue.holdsToken(jobName, token)) {
+					queue.writeResult(jobName, workerId, score, System.currentTimeMillis() - t0, null);
+					log.println("Job finished:\t" + jobName);
+				} else {
+					log.println("Lease lost, result discarded:\t" + jobName);
+				}
+			} finally {
+				jobLog.closeLogFile();
+			}
+
+		} catch (Exception e) {
+			if (queue.holdsToken(jobName, token)) {
+				log.println("\nJOB ABORTED:\t" + jobName);
+				log.printStackTrace(e);
+				queue.writeResult(jobName, workerId, Double.NaN, System.currentTimeMillis() - t0, e.toString());
+			} else {
+				log.println("Lease lost, job aborted:\t" + jobName);
+			}
+
+		} finally {
+			heartbeat.interrupt();
+			queue.release(jobName, token);
+		}
+	}
+
+
+	// ----------------------------------------------------------------------------
+
+	/** Start a daemon thread renewing the lease of the given job until interrupted, aborts the job if the lease was lost */
+	private Thread startHeartbeat(String jobName, String token, AppLogger jobLog) {
+
+		Thread heartbeat = new Thread(() -> {
+			try {
+				while (true) {
+					Thread.sleep(JobQueue.HEARTBEAT_INTERVAL);
+					if (!queue.heartbeat(jobName, token)) {
+						// Reclaimed by another worker (e.g. this one was suspended longer than the lease)
+						jobLog.abort();
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				// Job done
+			}
+		});
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+		return heartbeat;
+	}
+
+}
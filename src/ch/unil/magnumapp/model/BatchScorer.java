@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.util.Arrays;
+
+/**
+ * Scores a batch of rankings (permutations) together: the kernel rows are streamed 
+ * once per batch in increasing order, and each row is used by all the gene sets that
+ * contain it while it is in cache. Scoring one permutation at a time instead reads 
+ * random entries of the whole kernel for every permutation. Memory traffic per 
+ * permutation thus drops by roughly the number of gene sets sharing a row 
+ * (batch size * largest cutoff fraction).
+ * 
+ * The whole connectivity curve is obtained in the same pass: the genes of each set are
+ * grouped by cutoff bucket (rank position between two cutoffs), each pair of genes 
+ * contributes to the bucket of the lower-ranked gene, and the curve is the cumulative
+ * sum over buckets. Uses the symmetry of the kernel like GatherSum.
+ */
+public class BatchScorer {
+
+	/** The kernel */
+	final private RowKernel kernel;
+	/** Gene set size at each cutoff */
+	final private int[] cutoffSizes;
+	/** Bucket (cutoff index) of each rank position up to the largest cutoff */
+	final private int[] bucketOfPosition;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Constructor */
+	public BatchScorer(RowKernel kernel, int[] cutoffSizes) {
+		
+		this.kernel = kernel;
+		this.cutoffSizes = cutoffSizes;
+		
+		bucketOfPosition = new int[cutoffSizes[cutoffSizes.length-1]];
+		int bucket = 0;
+		for (int pos=0; pos<bucketOfPosition.length; pos++) {
+			while (pos >= cutoffSizes[bucket])
+				bucket++;
+			bucketOfPosition[pos] = bucket;
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** 
+	 * Connectivity curves of the given rankings (only the genes up to the largest cutoff 
+	 * are used), written to curves[(firstCurve + b)*numCutoffs + c]
+	 */
+	public void computeCurves(int[][] rankings, int numRankings, double[] curves, int firstCurve) {
+		
+		int numCutoffs = cutoffSizes.length;
+		int maxSize = bucketOfPosition.length;
+		int numNodes = kernel.getNumNodes();
+		boolean full = GatherSum.getScalar();
+		
+		// Gene sets, sorted by node within each bucket (increasing addresses within a row)
+		int[][] members = new int[numRankings][];
+		for (int b=0; b<numRankings; b++) {
+			members[b] = Arrays.copyOf(rankings[b], maxSize);
+			int from = 0;
+			for (int c=0; c<numCutoffs; c++) {
+				Arrays.sort(members[b], from, cutoffSizes[c]);
+				from = cutoffSizes[c];
+			}
+		}
+		
+		// For each node, the gene sets that contain it (CSR: set index and bucket)
+		int[] start = new int[numNodes+1];
+		for (int b=0; b<numRankings; b++)
+			for (int pos=0; pos<maxSize; pos++)
+				start[members[b][pos]+1]++;
+		for (int i=0; i<numNodes; i++)
+			start[i+1] += start[i];
+		int[] entrySet = new int[numRankings*maxSize];
+		int[] entryBucket = new int[numRankings*maxSize];
+		int[] next = Arrays.copyOf(start, numNodes);
+		for (int b=0; b<numRankings; b++) {
+			for (int pos=0; pos<maxSize; pos++) {
+				int k = next[members[b][pos]]++;
+				entrySet[k] = b;
+				entryBucket[k] = bucketOfPosition[pos];
+			}
+		}
+		
+		// Stream the rows, accumulate the contribution of each bucket
+		double[] acc = new double[numRankings*numCutoffs];
+		for (int i=0; i<numNodes; i++) {
+			for (int k=start[i]; k<start[i+1]; k++) {
+				int b = entrySet[k];
+				int bucket = entryBucket[k];
+				int[] set = members[b];
+				if (full) {
+					// Pairs (i,j) in the full square
+					int from = 0;
+					for (int c=0; c<numCutoffs; c++) {
+						acc[b*numCutoffs + Math.max(bucket, c)] += kernel.sumRow(i, set, from, cutoffSizes[c]);
+						from = cutoffSizes[c];
+					}
+				} else {
+					// Same bucket: both orders are visited from the rows of the bucket, 
+					// lower-ranked buckets: count twice here, skip from their rows
+					int from = (bucket == 0) ? 0 : cutoffSizes[bucket-1];
+					acc[b*numCutoffs + bucket] += kernel.sumRow(i, set, from, cutoffSizes[bucket]);
+					for (int c=bucket+1; c<numCutoffs; c++)
+						acc[b*numCutoffs + c] += 2*kernel.sumRow(i, set, cutoffSizes[c-1], cutoffSizes[c]);
+				}
+			}
+		}
+		
+		// Cumulative sums
+		for (int b=0; b<numRankings; b++) {
+			double sum = 0;
+			for (int c=0; c<numCutoffs; c++) {
+				sum += acc[b*numCutoffs + c];
+				curves[(firstCurve + b)*numCutoffs + c] = sum;
+			}
+		}
+	}
+	
+}
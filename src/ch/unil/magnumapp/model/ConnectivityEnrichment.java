@@ -0,0 +1,370 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * In-app connectivity enrichment, used for the kernels computed by the app (see KernelMode).
+ * 
+ * The network genes with a score are ranked by score. For the top 1%, 2%, ..., 10% of 
+ * these genes, the connectivity is the sum of the kernel entries within the gene set.
+ * The enrichment statistic is the sum over cutoffs of the connectivity relative to its 
+ * mean over random gene sets (permutations of the ranking). The empirical p-value is 
+ * (1 + #permutations with statistic >= observed) / (1 + #permutations).
+ * 
+ * Permutations are computed in parallel chunks, each with its own random generator
+ * seeded from the given one (results are reproducible for a given seed). Kernels 
+ * must thus be thread-safe. For kernels with direct row access (RowKernel), each chunk
+ * is scored as one batch by a BatchScorer (same permutations, same results up to 
+ * rounding). The curves of the permutations are stored in a flat array (80 bytes per
+ * permutation), so that millions of permutations fit in memory. If a PermutationPlan
+ * is set, the permutations are taken from the plan instead of the random generator.
+ * The curves of the observed ranking and of unbatched permutations are computed 
+ * incrementally if the kernel allows it (see PrefixCurve).
+ * 
+ * For parameter sweeps, several kernels derived from the same eigendecomposition (see
+ * KernelEigen) are scored together on the same permutations, with one curve, 
+ * statistic and p-value per kernel.
+ * 
+ * A result can be refined with more permutations without rerunning the previous ones
+ * (see PermutationState): the permutations continue from the saved position in the 
+ * plan, the statistics are relative to the saved mean curves, and the counts of the
+ * permutations with a larger statistic are added.
+ */
+public class ConnectivityEnrichment {
+
+	/** Cutoffs (fraction of the network genes with a score) */
+	final static public double[] CUTOFFS = {0.01, 0.02, 0.03, 0.04, 0.05, 0.06, 0.07, 0.08, 0.09, 0.10};
+	/** Number of permutations per parallel chunk (and per batch) */
+	final static private int CHUNK_SIZE = 256;
+	/** Relative difference of the observed statistic tolerated when resuming (e.g. kernel loaded from a quantized file) */
+	final static private double RESUME_TOLERANCE = 1e-3;
+	
+	/** The kernel (null for parameter sweeps) */
+	final private Kernel kernel;
+	/** The eigendecomposition and the weights of each kernel of a parameter sweep (null otherwise) */
+	final private KernelEigen eigen;
+	final private double[][] eigenWeights;
+	/** Number of kernels scored together */
+	final private int numKernels;
+	/** Ranks of the network nodes in the gene scores (-1 if no score) */
+	final private int[] ranks;
+	/** Network nodes with a score, ordered by rank */
+	final private int[] rankedNodes;
+	/** Gene set size at each cutoff */
+	final private int[] cutoffSizes;
+	/** Number of permutations */
+	final private int numPermutations;
+	/** Random number generator for the permutations */
+	final private Random random;
+	/** Score the chunks as batches if the kernel supports it */
+	private boolean batched = true;
+	/** Shared permutations (null to draw them from the random generator) */
+	private PermutationPlan plan;
+	/** Compute the curves incrementally if the kernel supports it */
+	private boolean incremental;
+	/** The permutations of a previous run to continue from (null to start from scratch) */
+	private PermutationState resume;
+	
+	/** Connectivity at each cutoff for the observed ranking (curves[kernel*numCutoffs + cutoff]) */
+	private double[] observedCurves;
+	/** Mean connectivity at each cutoff over the permutations (same layout) */
+	private double[] meanCurves;
+	/** The enrichment statistic of the observed ranking for each kernel */
+	private double[] observedStatistics;
+	/** Number of permutations with a statistic >= observed for each kernel */
+	private int[] numLarger;
+	/** Empirical p-value of each kernel */
+	private double[] pvals;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Constructor, ranks are the ranks of the network nodes in the gene scores (-1 if no score), random can be null if a plan is set */
+	public ConnectivityEnrichment(Kernel kernel, int[] ranks, int numPermutations, Random random) {
+		this(kernel, null, null, ranks, numPermutations, random);
+	}
+
+	
+	/** Constructor for a parameter sweep, one kernel per vector of weights of the eigendecomposition (see KernelEigen.getWeights()) */
+	public ConnectivityEnrichment(KernelEigen eigen, double[][] weights, int[] ranks, int numPermutations, Random random) {
+		this(null, eigen, weights, ranks, numPermutations, random);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Run the permutations and compute the p-value (of the first kernel for parameter sweeps) */
+	public double run(MagnumLogger log) {
+		
+		int numCutoffs = cutoffSizes.length;
+		int stride = numKernels*numCutoffs;
+		int numNodes = (kernel != null) ? kernel.getNumNodes() : eigen.getNumNodes();
+		boolean[] mask = new boolean[numNodes];
+		int[] position = new int[numNodes];
+		Arrays.fill(position, -1);
+		
+		observedCurves = computeCurve(rankedNodes, mask, position);
+		int[] rankToNode = (plan == null) ? null : getRankToNode();
+		
+		// Continue after the permutations of the previous run
+		int first = (resume != null && checkResume(log)) ? resume.getNumPermutations() : 0;
+		int numNew = numPermutations - first;
+		if (first > 0)
+			log.println("Topping up " + first + " permutations of the previous run with " + numNew + " new permutations...");
+		
+		// Permutations in parallel chunks (curves of the new permutations)
+		double[] permutedCurves = new double[numNew*stride];
+		BatchScorer scorer = (batched && kernel instanceof RowKernel) ? new BatchScorer((RowKernel) kernel, cutoffSizes) : null;
+		int numChunks = (numNew + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		long[] seeds = new long[numChunks];
+		for (int chunk=0; chunk<numChunks && plan == null; chunk++)
+			seeds[chunk] = random.nextLong();
+		int reportInterval = Math.max(1, numNew / 10);
+		AtomicInteger numDone = new AtomicInteger();
+		
+		ParallelLoop.forEach(numChunks, chunk -> {
+			Random chunkRandom = (plan == null) ? new Random(seeds[chunk]) : null;
+			int[] workspace = (plan == null) ? null : plan.createWorkspace();
+			int[] permuted = rankedNodes.clone();
+			boolean[] chunkMask = new boolean[numNodes];
+			int[] chunkPosition = new int[numNodes];
+			Arrays.fill(chunkPosition, -1);
+			int maxSize = cutoffSizes[numCutoffs-1];
+
+			int chunkFirst = chunk*CHUNK_SIZE;
+			int end = Math.min(numNew, chunkFirst + CHUNK_SIZE);
+			int[][] batch = (scorer == null) ? null : new int[end - chunkFirst][];
+			for (int perm=chunkFirst; perm<end; perm++) {
+				// Only the genes up to the largest cutoff need to be shuffled
+				if (plan != null) {
+					plan.fill(first + perm, rankToNode, permuted, maxSize, workspace);
+				} else {
+					for (int k=0; k<maxSize; k++) {
+						int swap = k + chunkRandom.nextInt(permuted.length - k);
+						int tmp = permuted[k]; permuted[k] = permuted[swap]; permuted[swap] = tmp;
+					}
+				}
+				if (scorer != null) {
+					batch[perm - chunkFirst] = Arrays.copyOf(permuted, maxSize);
+					continue;
+				}
+				System.arraycopy(computeCurve(permuted, chunkMask, chunkPosition), 0, permutedCurves, perm*stride, stride);
+				
+				if (numDone.incrementAndGet() % reportInterval == 0)
+					log.println("- " + numDone.get() + " permutations");
+			}
+			if (scorer != null) {
+				scorer.computeCurves(batch, batch.length, permutedCurves, chunkFirst);
+				int before = numDone.getAndAdd(batch.length);
+				if ((before + batch.length) / reportInterval > before / reportInterval)
+					log.println("- " + numDone.get() + " permutations");
+			}
+		});
+		
+		// Mean curves (those of the previous run when topping up, so that the counts are for the same statistic)
+		if (first == 0) {
+			meanCurves = new double[stride];
+			for (int perm=0; perm<numPermutations; perm++)
+				for (int m=0; m<stride; m++)
+					meanCurves[m] += permutedCurves[perm*stride + m] / numPermutations;
+		}
+		
+		// Empirical p-values
+		observedStatistics = new double[numKernels];
+		numLarger = new int[numKernels];
+		pvals = new double[numKernels];
+		for (int t=0; t<numKernels; t++) {
+			observedStatistics[t] = (first == 0) ? computeStatistic(observedCurves, t*numCutoffs, t) : resume.getObservedStatistics()[t];
+			numLarger[t] = (first == 0) ? 0 : resume.getNumLarger()[t];
+			for (int perm=0; perm<numNew; perm++)
+				if (computeStatistic(permutedCurves, perm*stride + t*numCutoffs, t) >= observedStatistics[t])
+					numLarger[t]++;
+			pvals[t] = (1.0 + numLarger[t]) / (1.0 + numPermutations);
+		}
+		return pvals[0];
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The state of the last run with the given key, to top it up later (see PermutationState) */
+	public PermutationState getState(String key) {
+		return new PermutationState(key, numPermutations, numLarger.clone(), observedStatistics.clone(), meanCurves.clone());
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Constructor */
+	private ConnectivityEnrichment(Kernel kernel, KernelEigen eigen, double[][] eigenWeights, int[] ranks, int numPermutations, Random random) {
+		
+		this.kernel = kernel;
+		this.eigen = eigen;
+		this.eigenWeights = eigenWeights;
+		numKernels = (eigen != null) ? eigenWeights.length : 1;
+		this.ranks = ranks;
+		this.numPermutations = numPermutations;
+		this.random = random;
+		incremental = PrefixCurve.isIncremental(kernel);
+		
+		// Nodes with a score, ordered by rank
+		int numScored = 0;
+		for (int r : ranks)
+			if (r >= 0)
+				numScored++;
+		if (numScored == 0)
+			throw new RuntimeException("None of the network genes has a score");
+		
+		long[] packed = new long[numScored];
+		int n = 0;
+		for (int i=0; i<ranks.length; i++)
+			if (ranks[i] >= 0)
+				packed[n++] = ((long) ranks[i] << 32) | i;
+		Arrays.sort(packed);
+		rankedNodes = new int[numScored];
+		for (int k=0; k<numScored; k++)
+			rankedNodes[k] = (int) packed[k];
+		
+		cutoffSizes = new int[CUTOFFS.length];
+		for (int c=0; c<CUTOFFS.length; c++)
+			cutoffSizes[c] = Math.max(1, (int) Math.round(CUTOFFS[c] * numScored));
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** 
+	 * True if the previous run can be topped up: it has less permutations, the same number of
+	 * kernels and cutoffs, and the same observed statistics (sets the saved mean curves)
+	 */
+	private boolean checkResume(MagnumLogger log) {
+		
+		int numCutoffs = cutoffSizes.length;
+		if (resume.getNumPermutations() <= 0 || resume.getNumPermutations() >= numPermutations 
+				|| resume.getNumKernels() != numKernels || resume.getMeanCurves().length != numKernels*numCutoffs) {
+			log.println("Previous permutations don't match this run, starting from scratch");
+			return false;
+		}
+		meanCurves = resume.getMeanCurves().clone();
+		for (int t=0; t<numKernels; t++) {
+			double statistic = computeStatistic(observedCurves, t*numCutoffs, t);
+			double saved = resume.getObservedStatistics()[t];
+			if (Math.abs(statistic - saved) > RESUME_TOLERANCE * Math.abs(saved)) {
+				log.println("Observed statistic differs from the previous run (" + statistic + " vs. " + saved + "), starting from scratch");
+				meanCurves = null;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The network node of each rank of the plan (-1 if the gene is not in the network) */
+	private int[] getRankToNode() {
+		
+		int[] rankToNode = new int[plan.getNumGenes()];
+		Arrays.fill(rankToNode, -1);
+		for (int node : rankedNodes) {
+			if (ranks[node] >= rankToNode.length)
+				throw new RuntimeException("The permutation plan was created for other gene scores");
+			rankToNode[ranks[node]] = node;
+		}
+		return rankToNode;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Connectivity at each cutoff for the given ranking, for each kernel (mask is all false and position all -1 before and after) */
+	private double[] computeCurve(int[] ranking, boolean[] mask, int[] position) {
+		
+		if (eigen != null)
+			return eigen.computeCurves(ranking, cutoffSizes, eigenWeights);
+		if (incremental)
+			return PrefixCurve.compute(kernel, ranking, cutoffSizes, position);
+		
+		double[] curve = new double[cutoffSizes.length];
+		int size = 0;
+		for (int c=0; c<cutoffSizes.length; c++) {
+			for (; size<cutoffSizes[c]; size++)
+				mask[ranking[size]] = true;
+			curve[c] = kernel.sumWithin(ranking, size, mask);
+		}
+		for (int k=0; k<size; k++)
+			mask[ranking[k]] = false;
+		return curve;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum over cutoffs of the connectivity relative to the mean connectivity of the given kernel (curve starts at the given offset) */
+	private double computeStatistic(double[] curves, int offset, int kernelIndex) {
+		
+		int numCutoffs = cutoffSizes.length;
+		double statistic = 0;
+		for (int c=0; c<numCutoffs; c++) {
+			double mean = meanCurves[kernelIndex*numCutoffs + c];
+			statistic += (mean > 0) ? curves[offset + c] / mean : 0;
+		}
+		return statistic;
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public int getNumScoredNodes() { return rankedNodes.length; }
+	public int[] getRankedNodes() { return rankedNodes; }
+	public int[] getCutoffSizes() { return cutoffSizes; }
+	public int getNumKernels() { return numKernels; }
+	public double[] getObservedCurve() { return Arrays.copyOf(observedCurves, cutoffSizes.length); }
+	public double[] getMeanCurve() { return Arrays.copyOf(meanCurves, cutoffSizes.length); }
+	public double getObservedStatistic() { return observedStatistics[0]; }
+	public double getPval() { return (pvals == null) ? Double.NaN : pvals[0]; }
+	/** The p-value of each kernel (parameter sweeps) */
+	public double[] getPvals() { return pvals; }
+	
+	/** Score the permutations in batches (if the kernel is a RowKernel) */
+	public void setBatched(boolean b) { batched = b; }
+	/** Compute the curves incrementally if the kernel supports it (default), otherwise from scratch at each cutoff */
+	public void setIncremental(boolean b) { incremental = b && PrefixCurve.isIncremental(kernel); }
+	/** Take the permutations from the given plan (created for the same gene scores) */
+	public void setPlan(PermutationPlan plan) { this.plan = plan; }
+	/** Continue from the permutations of a previous run with the same gene scores, network, kernel and plan */
+	public void setResume(PermutationState state) { resume = state; }
+	
+}
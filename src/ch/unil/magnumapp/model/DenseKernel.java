@@ -0,0 +1,184 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Dense kernel in single precision (float32), half the memory of the double 
+ * kernels of magnum. The relative error of each entry is at most 2^-24 (~6e-8),
+ * the connectivity of a gene set is accumulated in double precision. Values are
+ * stored off-heap and freed by close().
+ */
+public class DenseKernel implements RowKernel {
+
+	/** Number of nodes */
+	final private int numNodes;
+	/** Row-major values (off-heap) */
+	private OffHeapRows values;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Compute the kernel, rows are computed in parallel */
+	public static DenseKernel compute(PStepKernel exact) {
+		
+		int numNodes = exact.getNumNodes();
+		DenseKernel kernel = new DenseKernel(numNodes);
+		
+		// Rows in parallel chunks, the buffers are freed with the chunk (not kept by the pool threads)
+		int numChunks = (numNodes + ParallelLoop.CHUNK_SIZE - 1) / ParallelLoop.CHUNK_SIZE;
+		ParallelLoop.forEach(numChunks, chunk -> {
+			double[] exactRow = new double[numNodes];
+			double[] tmp = new double[numNodes];
+			float[] row = new float[numNodes];
+			int end = Math.min(numNodes, (chunk + 1)*ParallelLoop.CHUNK_SIZE);
+			for (int i=chunk*ParallelLoop.CHUNK_SIZE; i<end; i++) {
+				exact.computeRow(i, exactRow, tmp);
+				for (int j=0; j<numNodes; j++)
+					row[j] = (float) exactRow[j];
+				kernel.setRow(i, row);
+			}
+		});
+		return kernel;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Kernel entry */
+	@Override
+	public double get(int i, int j) {
+		return values.floats(i).get(values.offset(i) + j);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum of the entries within the given nodes (the mask is not used), see GatherSum */
+	@Override
+	public double sumWithin(int[] nodes, int numNodes, boolean[] mask) {
+		return GatherSum.getScalar() ? sumSquare(nodes, numNodes) : sumTriangle(nodes, numNodes);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum of the entries within the given nodes, reference loop over the full square */
+	public double sumSquare(int[] nodes, int numNodes) {
+		
+		double sum = 0;
+		for (int n=0; n<numNodes; n++)
+			sum += sumRow(nodes[n], nodes, 0, numNodes);
+		return sum;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum of the entries within the given nodes, fast loop over the upper triangle of the sorted nodes */
+	public double sumTriangle(int[] nodes, int numNodes) {
+		
+		double sum = 0;
+		int[] sorted = GatherSum.sorted(nodes, numNodes);
+		for (int n=0; n<numNodes; n++) {
+			int i = sorted[n];
+			FloatBuffer row = values.floats(i);
+			int offset = values.offset(i);
+			sum += row.get(offset + i) + 2*GatherSum.sum(row, offset, sorted, n+1, numNodes);
+		}
+		return sum;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum of the entries of row i at the given nodes */
+	@Override
+	public double sumRow(int i, int[] nodes, int from, int to) {
+		return GatherSum.sum(values.floats(i), values.offset(i), nodes, from, to);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Memory used by the kernel (bytes, off-heap) */
+	@Override
+	public long getMemory() {
+		return values.getMemory();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Free the off-heap memory */
+	@Override
+	public void close() {
+		values.close();
+	}
+	
+	
+	// ============================================================================
+	// PACKAGE METHODS
+
+	/** Constructor, allocates the values */
+	DenseKernel(int numNodes) {
+		
+		this.numNodes = numNodes;
+		values = new OffHeapRows(numNodes, numNodes, 4);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Copy row i to the given array (thread-safe) */
+	void getRow(int i, float[] row) {
+		
+		FloatBuffer segment = values.floats(i).duplicate();
+		segment.position(values.offset(i));
+		segment.get(row, 0, numNodes);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Set row i (thread-safe for different rows) */
+	void setRow(int i, float[] row) {
+		
+		FloatBuffer segment = values.floats(i).duplicate();
+		segment.position(values.offset(i));
+		segment.put(row, 0, numNodes);
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	@Override
+	public int getNumNodes() { return numNodes; }
+	
+}
@@ -0,0 +1,107 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Inner loop of the permutation scoring: sums of the entries of a kernel row at the 
+ * indexes of a gene set (gather-sums). These loads are random accesses into a large 
+ * matrix, which the JIT cannot vectorize and which are limited by memory latency, not
+ * arithmetic. The fast path therefore (1) sorts the gene set, so that rows and entries 
+ * are visited in increasing address order, and (2) uses the symmetry of the kernel to 
+ * only sum the upper triangle, which halves the number of loads:
+ * 
+ *    sum_{i,j in S} K_ij = sum_i K_ii + 2 sum_{i<j} K_ij
+ * 
+ * Set -Dmagnum.scalarKernelLoops=true to use the reference loops over the full square
+ * instead (the results differ only by the asymmetry of the stored kernel, at most the
+ * precision of the kernel entries).
+ */
+public class GatherSum {
+
+	/** Use the reference loops (selected at startup, benchmarks call both loops explicitly) */
+	final static private boolean scalar = Boolean.getBoolean("magnum.scalarKernelLoops");
+	/** Sorted copy of the gene set of each thread */
+	final static private ThreadLocal<int[][]> sortedBuffer = ThreadLocal.withInitial(() -> new int[1][0]);
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** The given nodes sorted (thread-local copy, valid until the next call by this thread) */
+	public static int[] sorted(int[] nodes, int numNodes) {
+		
+		int[][] buffer = sortedBuffer.get();
+		if (buffer[0].length < numNodes)
+			buffer[0] = new int[Math.max(numNodes, 2*buffer[0].length)];
+		int[] sorted = buffer[0];
+		System.arraycopy(nodes, 0, sorted, 0, numNodes);
+		Arrays.sort(sorted, 0, numNodes);
+		return sorted;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Sum of row[offset + nodes[m]] for from <= m < to */
+	public static double sum(FloatBuffer row, int offset, int[] nodes, int from, int to) {
+		
+		double sum = 0;
+		for (int m=from; m<to; m++)
+			sum += row.get(offset + nodes[m]);
+		return sum;
+	}
+
+	/** Sum of row[offset + nodes[m]] for from <= m < to */
+	public static long sum(ShortBuffer row, int offset, int[] nodes, int from, int to) {
+		
+		long sum = 0;
+		for (int m=from; m<to; m++)
+			sum += row.get(offset + nodes[m]);
+		return sum;
+	}
+
+	/** Sum of row[offset + nodes[m]] for from <= m < to */
+	public static long sum(ByteBuffer row, int offset, int[] nodes, int from, int to) {
+		
+		long sum = 0;
+		for (int m=from; m<to; m++)
+			sum += row.get(offset + nodes[m]);
+		return sum;
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	/** True if the reference loops over the full square are used */
+	public static boolean getScalar() { return scalar; }
+	
+}
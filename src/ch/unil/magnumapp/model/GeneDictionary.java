@@ -0,0 +1,110 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide dictionary mapping gene symbols to dense integer ids. Gene scores,
+ * networks and kernels are all indexed by these ids, so that aligning them is an 
+ * array lookup and parallel jobs share a single copy of the symbols. Ids are only
+ * valid within the running process (files store symbols, not ids).
+ */
+public class GeneDictionary {
+
+	/** Symbol to id */
+	final static private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>(1 << 16);
+	/** Id to symbol */
+	static private volatile String[] symbols = new String[1 << 16];
+	/** Number of genes in the dictionary */
+	static private volatile int size = 0;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** The id of the given gene, it is added to the dictionary if needed (thread-safe) */
+	public static int getId(String symbol) {
+		
+		Integer id = ids.get(symbol);
+		if (id != null)
+			return id;
+		return add(symbol);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The id of the given gene, -1 if it is not in the dictionary */
+	public static int lookup(String symbol) {
+		
+		Integer id = ids.get(symbol);
+		return (id == null) ? -1 : id;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The symbol of the given gene id */
+	public static String getSymbol(int id) {
+		
+		if (id < 0 || id >= size)
+			throw new IllegalArgumentException("Invalid gene id: " + id);
+		return symbols[id];
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The number of genes in the dictionary (all ids are smaller than this) */
+	public static int size() {
+		return size;
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Add a new gene (the symbol and size are published before the id, see getSymbol()) */
+	private static synchronized int add(String symbol) {
+		
+		// Another thread may have added it in the meantime
+		Integer id = ids.get(symbol);
+		if (id != null)
+			return id;
+		
+		int newId = size;
+		if (newId == symbols.length)
+			symbols = Arrays.copyOf(symbols, 2*symbols.length);
+		symbols[newId] = symbol;
+		// Volatile write, a thread that sees the id below also sees the symbol and id < size
+		size = newId + 1;
+		ids.put(symbol, newId);
+		return newId;
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+/**
+ * Column layout of a gene score file (see GeneScores), detected from its first line:
+ * either two columns without header (gene, p-value) or a header line naming the 
+ * columns gene_id, pvalue, chromosome, start and end (PASCAL). Also knows which
+ * lines are excluded by the HLA and sex chromosome filters.
+ */
+public class GeneScoreColumns {
+
+	/** Column indexes, -1 if missing */
+	final public int gene;
+	final public int score;
+	final public int chromosome;
+	final public int start;
+	final public int end;
+	/** The first line is a header */
+	final public boolean header;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Detect the columns from the first (non-comment) line of the file */
+	public static GeneScoreColumns detect(String[] firstLine) {
+		
+		if (firstLine.length < 2)
+			throw new RuntimeException("Expected at least two columns (gene, score)");
+		// Header if the score column of the first line is not a number
+		if (isNumber(firstLine[1]))
+			return new GeneScoreColumns(0, 1, -1, -1, -1, false);
+		
+		int gene = 0;
+		int score = 1;
+		int chromosome = -1;
+		int start = -1;
+		int end = -1;
+		for (int i=0; i<firstLine.length; i++) {
+			String col = firstLine[i].trim().toLowerCase();
+			if (col.equals("gene_id") || col.equals("gene"))
+				gene = i;
+			else if (col.equals("pvalue") || col.equals("p-value") || col.equals("score"))
+				score = i;
+			else if (col.equals("chromosome") || col.equals("chr"))
+				chromosome = i;
+			else if (col.equals("start"))
+				start = i;
+			else if (col.equals("end"))
+				end = i;
+		}
+		return new GeneScoreColumns(gene, score, chromosome, start, end, true);
+	}
+	
+	
+    // ----------------------------------------------------------------------------
+
+	/** True if the file has the coordinates needed for the given filters (chromosome, and start and end for HLA) */
+	public boolean hasCoordinates(boolean excludeHla, boolean excludeXY) {
+		
+		if (!excludeHla && !excludeXY)
+			return true;
+		return chromosome != -1 && (!excludeHla || (start != -1 && end != -1));
+	}
+	
+	
+    // ----------------------------------------------------------------------------
+
+	/** True if the gene of the given line is excluded by the filters (never if the file has no chromosome column) */
+	public boolean isExcluded(String[] line, boolean excludeHla, boolean excludeXY) {
+		
+		if (chromosome == -1)
+			return false;
+		String chr = line[chromosome].trim().toUpperCase().replace("CHR", "");
+		if (excludeXY && (chr.equals("X") || chr.equals("Y") || chr.equals("23") || chr.equals("24")))
+			return true;
+		return excludeHla && chr.equals(GeneScores.HLA_CHROMOSOME) && start != -1 && end != -1
+				&& Integer.parseInt(line[end].trim()) >= GeneScores.HLA_START && Integer.parseInt(line[start].trim()) <= GeneScores.HLA_END;
+	}
+	
+	
+    // ----------------------------------------------------------------------------
+
+	/** True if the string can be parsed as a double */
+	public static boolean isNumber(String s) {
+		
+		try {
+			Double.parseDouble(s);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Constructor */
+	private GeneScoreColumns(int gene, int score, int chromosome, int start, int end, boolean header) {
+		
+		this.gene = gene;
+		this.score = score;
+		this.chromosome = chromosome;
+		this.start = start;
+		this.end = end;
+		this.header = header;
+	}
+	
+}
@@ -0,0 +1,375 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+
+import edu.mit.magnum.FileParser;
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * GWAS gene scores parsed, filtered and ranked once per sweep. Immutable, the 
+ * same instance is shared by all jobs of the in-app kernel modes (the magnum 
+ * engine reads the gene score file itself). Genes are ranked by increasing score 
+ * (p-value), rank 0 is the most significant gene. Genes are stored as ids of
+ * the GeneDictionary.
+ * 
+ * Supported formats: two columns (gene, p-value), or files with a header line
+ * including the columns gene_id, pvalue, chromosome, start and end (PASCAL). 
+ * HLA genes and sex chromosomes can only be excluded here if the file has 
+ * coordinates, or if the coordinates are given by a separate gene coordinates 
+ * file with the same header (gene_id, chromosome, start, end), otherwise only 
+ * the magnum engine can exclude them (see hasCoordinates()).
+ */
+public class GeneScores {
+
+	/** Extended MHC / HLA region (GRCh37) */
+	final static public String HLA_CHROMOSOME = "6";
+	final static public int HLA_START = 28477797;
+	final static public int HLA_END = 33448354;
+	
+	/** Binary cache format */
+	final static private int MAGIC = 0x4d474e53;
+	final static private int VERSION = 2;
+	
+	/** The gene score file */
+	final private File file;
+	/** Gene ids (GeneDictionary), ordered by rank */
+	final private int[] genes;
+	/** Scores (p-values) in increasing order */
+	final private double[] scores;
+	/** Rank of each gene id, -1 for genes without score */
+	final private int[] ranks;
+	/** Flag indicates that HLA/XY filters were applied using coordinates in the file */
+	final private boolean coordinatesFiltered;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** 
+	 * Load the gene scores. The coordinatesFile (can be null) is used for the filters if the 
+	 * gene score file has no coordinates. If cacheDir is not null, a binary sidecar is written to 
+	 * this directory and reused by later sweeps as long as the files and filters are unchanged.
+	 */
+	public static GeneScores load(File file, boolean excludeHla, boolean excludeXY, File coordinatesFile, File cacheDir, MagnumLogger log) {
+		
+		if (coordinatesFile != null && hasCoordinates(file, excludeHla, excludeXY, log))
+			coordinatesFile = null;
+		
+		File cacheFile = null;
+		String key = getCacheKey(file, excludeHla, excludeXY, coordinatesFile);
+		if (cacheDir != null) {
+			String basename = file.getName().replaceAll("\\.txt(\\.gz)?$", "");
+			cacheFile = new File(cacheDir, basename + "." + Integer.toHexString(key.hashCode()) + ".genescores.bin");
+			if (cacheFile.exists()) {
+				GeneScores cached = readCache(file, cacheFile, key);
+				if (cached != null) {
+					log.println("Loaded preprocessed gene scores: " + cacheFile.getPath());
+					return cached;
+				}
+			}
+		}
+		
+		GeneScores scores = parse(file, excludeHla, excludeXY, coordinatesFile, log);
+		if (cacheFile != null) {
+			cacheDir.mkdirs();
+			scores.writeCache(cacheFile, key);
+		}
+		return scores;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** True if the file has the coordinates needed for the given filters (header with chromosome, and start and end for HLA) */
+	public static boolean hasCoordinates(File file, boolean excludeHla, boolean excludeXY, MagnumLogger log) {
+		
+		FileParser reader = new FileParser(log, file);
+		try {
+			while (true) {
+				String[] nextLine = reader.readLine();
+				if (nextLine == null)
+					return false;
+				if (nextLine.length == 0 || nextLine[0].startsWith("#"))
+					continue;
+				return GeneScoreColumns.detect(nextLine).hasCoordinates(excludeHla, excludeXY);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The rank of the given gene id, -1 if it has no score */
+	public int getRank(int geneId) {
+		return (geneId < ranks.length) ? ranks[geneId] : -1;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The rank of the given gene, -1 if it has no score */
+	public int getRank(String gene) {
+		
+		int id = GeneDictionary.lookup(gene);
+		return (id == -1) ? -1 : getRank(id);
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Constructor, genes and scores must be sorted by rank */
+	private GeneScores(File file, String[] symbols, double[] scores, boolean coordinatesFiltered) {
+		
+		this.file = file;
+		this.scores = scores;
+		this.coordinatesFiltered = coordinatesFiltered;
+		
+		genes = new int[symbols.length];
+		for (int i=0; i<symbols.length; i++)
+			genes[i] = GeneDictionary.getId(symbols[i]);
+
+		ranks = new int[GeneDictionary.size()];
+		Arrays.fill(ranks, -1);
+		for (int i=0; i<genes.length; i++)
+			if (ranks[genes[i]] == -1) // Duplicates: keep the best score
+				ranks[genes[i]] = i;
+	}
+	
+	
+    // ----------------------------------------------------------------------------
+
+	/** Parse, filter and rank the gene scores (coordinatesFile is null if the file has its own coordinates) */
+	private static GeneScores parse(File file, boolean excludeHla, boolean excludeXY, File coordinatesFile, MagnumLogger log) {
+
+		log.println("Preprocessing gene scores: " + file.getPath());
+		HashSet<String> excludedGenes = null;
+		if (coordinatesFile != null)
+			excludedGenes = readExcludedGenes(coordinatesFile, excludeHla, excludeXY, log);
+		
+		FileParser reader = new FileParser(log, file);
+		
+		GeneScoreColumns cols = null;
+		ArrayList<String> geneList = new ArrayList<>();
+		ArrayList<Double> scoreList = new ArrayList<>();
+		int numFiltered = 0;
+		
+		while (true) {
+			String[] nextLine = reader.readLine();
+			if (nextLine == null)
+				break;
+			if (nextLine.length == 0 || nextLine[0].startsWith("#"))
+				continue;
+			
+			// The first line defines the columns
+			if (cols == null) {
+				try {
+					cols = GeneScoreColumns.detect(nextLine);
+				} catch (RuntimeException e) {
+					reader.error(e.getMessage());
+				}
+				if (cols.header)
+					continue;
+			}
+			
+			if (nextLine.length <= Math.max(cols.gene, cols.score))
+				reader.error("Expected at least " + (Math.max(cols.gene, cols.score)+1) + " columns");
+			double score = Double.parseDouble(nextLine[cols.score]);
+			if (Double.isNaN(score))
+				continue;
+			if (cols.isExcluded(nextLine, excludeHla, excludeXY) 
+					|| (excludedGenes != null && excludedGenes.contains(nextLine[cols.gene].trim()))) {
+				numFiltered++;
+				continue;
+			}
+			geneList.add(nextLine[cols.gene].trim());
+			scoreList.add(score);
+		}
+		reader.close();
+		
+		if (geneList.isEmpty())
+			throw new RuntimeException("No gene scores found in file: " + file.getPath());
+
+		// Rank (stable sort, ties keep the order of the file)
+		Integer[] order = new Integer[geneList.size()];
+		for (int i=0; i<order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, Comparator.comparingDouble(scoreList::get));
+		
+		String[] genes = new String[order.length];
+		double[] scores = new double[order.length];
+		for (int i=0; i<order.length; i++) {
+			genes[i] = geneList.get(order[i]);
+			scores[i] = scoreList.get(order[i]);
+		}
+		
+		boolean coordinatesFiltered = cols.hasCoordinates(excludeHla, excludeXY) || excludedGenes != null;
+		log.println("- " + genes.length + " genes");
+		if (coordinatesFiltered)
+			log.println("- " + numFiltered + " genes excluded (HLA region / sex chromosomes)");
+		return new GeneScores(file, genes, scores, coordinatesFiltered);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Genes of the coordinates file excluded by the filters */
+	private static HashSet<String> readExcludedGenes(File coordinatesFile, boolean excludeHla, boolean excludeXY, MagnumLogger log) {
+
+		log.println("Reading gene coordinates: " + coordinatesFile.getPath());
+		FileParser reader = new FileParser(log, coordinatesFile);
+		
+		GeneScoreColumns cols = null;
+		HashSet<String> excludedGenes = new HashSet<>();
+		while (true) {
+			String[] nextLine = reader.readLine();
+			if (nextLine == null)
+				break;
+			if (nextLine.length == 0 || nextLine[0].startsWith("#"))
+				continue;
+			
+			// Header line with the columns gene_id, chromosome, start and end
+			if (cols == null) {
+				cols = GeneScoreColumns.detect(nextLine);
+				if (!cols.header || !cols.hasCoordinates(excludeHla, excludeXY))
+					reader.error("Expected a header line with the columns gene_id, chromosome, start and end");
+				continue;
+			}
+			if (cols.isExcluded(nextLine, excludeHla, excludeXY))
+				excludedGenes.add(nextLine[cols.gene].trim());
+		}
+		reader.close();
+		
+		if (cols == null)
+			throw new RuntimeException("No gene coordinates found in file: " + coordinatesFile.getPath());
+		return excludedGenes;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Key identifying the content of the cache: the files, their size and date, and the filters */
+	private static String getCacheKey(File file, boolean excludeHla, boolean excludeXY, File coordinatesFile) {
+		
+		String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + excludeHla + "|" + excludeXY;
+		if (coordinatesFile != null)
+			key += "|" + coordinatesFile.getAbsolutePath() + "|" + coordinatesFile.length() + "|" + coordinatesFile.lastModified();
+		return key;
+	}
+	
+	
+    // ----------------------------------------------------------------------------
+
+	/** Read the binary sidecar, returns null if it is outdated */
+	private static GeneScores readCache(File file, File cacheFile, String key) {
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key))
+				return null;
+			
+			boolean coordinatesFiltered = in.readBoolean();
+			int numGenes = in.readInt();
+			String[] genes = new String[numGenes];
+			double[] scores = new double[numGenes];
+			for (int i=0; i<numGenes; i++) {
+				genes[i] = in.readUTF();
+				scores[i] = in.readDouble();
+			}
+			return new GeneScores(file, genes, scores, coordinatesFiltered);
+			
+		} catch (IOException e) {
+			// Corrupted cache, parse the file again
+			return null;
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Write the binary sidecar (to a temporary file first, sweeps may run concurrently) */
+	private void writeCache(File cacheFile, String key) {
+		
+		Path tmp = null;
+		try {
+			// A unique temporary file per writer
+			tmp = Files.createTempFile(cacheFile.getParentFile().toPath(), cacheFile.getName(), ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(key);
+				out.writeBoolean(coordinatesFiltered);
+				out.writeInt(genes.length);
+				for (int i=0; i<genes.length; i++) {
+					out.writeUTF(GeneDictionary.getSymbol(genes[i]));
+					out.writeDouble(scores[i]);
+				}
+			}
+			try {
+				Files.move(tmp, cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			try {
+				if (tmp != null)
+					Files.deleteIfExists(tmp);
+			} catch (IOException e2) {
+				// Only a leftover temporary file
+			}
+			throw new RuntimeException(e);
+		}
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public File getFile() { return file; }
+	public int getNumGenes() { return genes.length; }
+	public int getGeneId(int rank) { return genes[rank]; }
+	public String getGene(int rank) { return GeneDictionary.getSymbol(genes[rank]); }
+	public double getScore(int rank) { return scores[rank]; }
+	public boolean getCoordinatesFiltered() { return coordinatesFiltered; }
+	
+}
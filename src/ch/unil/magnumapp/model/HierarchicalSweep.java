@@ -0,0 +1,167 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * Hierarchical sweep of the FANTOM5 networks. The 394 individual networks are clustered 
+ * (network_clustering_dendrogram.txt), the 32 high-level networks correspond to the 32
+ * clusters of the dendrogram (32_clusters.txt). The inner nodes of the dendrogram below
+ * the clusters have no networks, so the sweep has two levels:
+ * 
+ * 1. The high-level networks of the clusters of the selected individual networks
+ * 2. The selected individual networks of the clusters with p-value < threshold, and a 
+ *    random sample of the pruned networks (to verify that they are not enriched)
+ * 
+ * Selected networks that are not individual FANTOM5 networks (or whose high-level network 
+ * is not downloaded) are scored in the first stage.
+ */
+public class HierarchicalSweep {
+
+	/** Default p-value threshold for descending into a cluster */
+	final static public double DEFAULT_THRESHOLD = 0.05;
+	
+	/** The selected individual networks of each cluster (by high-level network) */
+	private LinkedHashMap<NetworkModel, ArrayList<NetworkModel>> clusters = new LinkedHashMap<>();
+	/** Selected networks scored in the first stage */
+	private ArrayList<NetworkModel> direct = new ArrayList<>();
+	/** Pruned networks scored to verify the pruning */
+	private ArrayList<NetworkModel> verification = new ArrayList<>();
+	
+	/** Descend into clusters with a lower p-value */
+	private double threshold;
+	/** Fraction of the pruned networks that is scored for verification */
+	private double verifyFraction;
+	/** Draws the verification sample */
+	private Random random;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Constructor */
+	public HierarchicalSweep(List<NetworkModel> selected, NetworkCollection collection, double threshold, double verifyFraction, Random random) {
+		
+		this.threshold = threshold;
+		this.verifyFraction = verifyFraction;
+		this.random = random;
+		
+		for (NetworkModel network : selected) {
+			NetworkModel cluster = collection.getClusterNetwork(network);
+			if (cluster == null || !cluster.getFileExists())
+				direct.add(network);
+			else
+				clusters.computeIfAbsent(cluster, k -> new ArrayList<>()).add(network);
+		}
+		// Selected high-level networks are scored once
+		direct.removeAll(clusters.keySet());
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The networks of the first stage (high-level networks and other selected networks) */
+	public ArrayList<NetworkModel> getFirstStage() {
+		
+		ArrayList<NetworkModel> networks = new ArrayList<>(clusters.keySet());
+		networks.addAll(direct);
+		return networks;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The networks of the second stage given the p-values of the first stage (by network name) */
+	public ArrayList<NetworkModel> getSecondStage(Map<String, Double> pvals, MagnumLogger log) {
+		
+		ArrayList<NetworkModel> networks = new ArrayList<>();
+		ArrayList<NetworkModel> pruned = new ArrayList<>();
+		int numEnriched = 0;
+		for (Map.Entry<NetworkModel, ArrayList<NetworkModel>> cluster : clusters.entrySet()) {
+			// Descend if the high-level network failed
+			Double pval = pvals.get(cluster.getKey().getName());
+			if (pval == null || pval < threshold) {
+				networks.addAll(cluster.getValue());
+				numEnriched++;
+			} else {
+				pruned.addAll(cluster.getValue());
+			}
+		}
+		
+		Collections.shuffle(pruned, random);
+		int numVerify = (int) Math.ceil(verifyFraction * pruned.size());
+		verification = new ArrayList<>(pruned.subList(0, numVerify));
+		networks.addAll(verification);
+		
+		log.println("Hierarchical sweep: " + numEnriched + " of " + clusters.size() + " clusters with p < " + threshold);
+		log.println("- Scoring " + (networks.size() - numVerify) + " individual networks, pruned " + pruned.size() 
+				+ " (" + numVerify + " of them scored for verification)\n");
+		return networks;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Report the verification networks with p-value < threshold (missed by the pruning) */
+	public void printVerification(Map<String, Double> pvals, MagnumLogger log) {
+		
+		if (verification.isEmpty())
+			return;
+		int numMissed = 0;
+		for (NetworkModel network : verification) {
+			Double pval = pvals.get(network.getName());
+			if (pval != null && pval < threshold) {
+				log.println("- Pruned network with p < " + threshold + ": " + network.getName() + " (p = " + pval + ")");
+				numMissed++;
+			}
+		}
+		log.println("Hierarchical sweep verification: " + numMissed + " of " + verification.size() + " pruned networks with p < " + threshold);
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	/** Upper bound of the number of networks that are scored */
+	public int getMaxNumNetworks() {
+		
+		int num = clusters.size() + direct.size();
+		for (ArrayList<NetworkModel> leaves : clusters.values())
+			num += leaves.size();
+		return num;
+	}
+	
+	public int getNumClusters() { return clusters.size(); }
+	
+}
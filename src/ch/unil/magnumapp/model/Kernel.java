@@ -0,0 +1,53 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+/**
+ * Network kernel used by the in-app connectivity enrichment. Nodes are the local 
+ * indexes of the SparseNetwork the kernel was computed for.
+ */
+public interface Kernel extends AutoCloseable {
+
+	/** Number of nodes */
+	public int getNumNodes();
+	
+	/** The kernel entry K_ij */
+	public double get(int i, int j);
+	
+	/** 
+	 * Sum of the entries K_ij for all i, j in nodes[0..numNodes-1] (including the diagonal). 
+	 * The mask is true for exactly these nodes (some kernels need it, others ignore it).
+	 */
+	public double sumWithin(int[] nodes, int numNodes, boolean[] mask);
+	
+	/** Memory used by the kernel (bytes) */
+	public long getMemory();
+	
+	/** Free the off-heap memory of the kernel, it must not be used anymore */
+	@Override
+	public void close();
+	
+}
@@ -0,0 +1,335 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * The kernel directory of a run, managed as a cache of the kernel files written by the 
+ * app (dense kernels and eigendecompositions) with a disk budget:
+ * 
+ * - Eviction: when the files exceed the budget, the least recently used ones are deleted
+ *   until the budget is met (time of last use from the manifest, modification time for 
+ *   unlisted files). Files used or prefetched during this run are never evicted.
+ * - Prefetch: the scheduler announces the next job (see JobMagnum.prefetch()), its kernel 
+ *   file is read in the background on a single thread, so that it is in the page cache
+ *   of the OS when the job starts (the file is not kept in memory).
+ * - Export: kernels computed by the jobs are written on a single background thread with
+ *   a bandwidth limit, streaming from the in-memory kernel while the job runs its
+ *   permutations and the next jobs start. Readers of a file wait for its pending export.
+ *   At most MAX_PENDING_EXPORTS kernels are held for export, further jobs wait for a slot.
+ * 
+ * One instance per run, shared by all jobs.
+ */
+public class KernelCache {
+
+	/** Buffer size for prefetching */
+	final static private int PREFETCH_BUFFER = 1 << 20;
+	/** Maximum number of exports that are queued or running (each holds a dense kernel in memory) */
+	final static public int MAX_PENDING_EXPORTS = 2;
+	
+	/** The kernel directory */
+	private File kernelDir;
+	/** The manifest of the kernel directory */
+	private KernelManifest manifest;
+	/** The disk budget (bytes), 0 for unlimited */
+	private long budget;
+	/** Files used or prefetched during this run */
+	private HashSet<File> pinned = new HashSet<>();
+	/** Background thread reading prefetched files (created on first use) */
+	private ExecutorService prefetcher;
+	/** Background thread writing kernel files (created on first use) */
+	private ExecutorService exporter;
+	/** Exports of this run (queued, running, or done) */
+	private HashMap<File, Future<?>> exports = new HashMap<>();
+	/** Free slots for pending exports */
+	private Semaphore exportSlots = new Semaphore(MAX_PENDING_EXPORTS);
+	/** Bandwidth limit of the exports (bytes per second), 0 for unlimited */
+	private long exportBandwidth = 0;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Constructor, loads the manifest of the given directory */
+	public KernelCache(File kernelDir, long budget) {
+		
+		this.kernelDir = kernelDir;
+		this.budget = budget;
+		manifest = KernelManifest.load(kernelDir);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Mark a kernel file as used now (called when a job loads it) */
+	synchronized public void touch(File file) {
+		
+		pinned.add(file);
+		if (manifest.isListed(file))
+			manifest.touch(file);
+		else
+			file.setLastModified(System.currentTimeMillis());
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** 
+	 * Write the kernel file on the export thread and record it in the manifest. The kernel is 
+	 * shared with the job, it is closed when both the export and the returned handle are done
+	 * (the job registers the handle instead of the kernel). Failed exports are logged, readers
+	 * then recompute the kernel. If MAX_PENDING_EXPORTS are pending, the job waits for a free
+	 * slot, otherwise finished kernels would pile up in memory when the disk is slower than the jobs.
+	 */
+	public AutoCloseable export(File file, DenseKernel kernel, int bits, SparseNetwork network, String sourceKey, long buildTime, MagnumLogger log) {
+		
+		// The network is released with the job, copy what the header needs
+		String[] symbols = KernelFile.getSymbols(network);
+		AtomicInteger numUsers = new AtomicInteger(2);
+		AutoCloseable handle = () -> {
+			if (numUsers.decrementAndGet() == 0)
+				kernel.close();
+		};
+		
+		// Not synchronized while waiting, the exports update the manifest
+		if (!exportSlots.tryAcquire()) {
+			log.println("Kernel export queue full (" + MAX_PENDING_EXPORTS + " pending), waiting: " + file.getName());
+			exportSlots.acquireUninterruptibly();
+		}
+		
+		synchronized (this) {
+			pinned.add(file);
+			if (exporter == null)
+				exporter = Executors.newSingleThreadExecutor(r -> {
+					Thread thread = new Thread(r, "kernel-export");
+					thread.setDaemon(true);
+					return thread;
+				});
+			exports.put(file, exporter.submit(() -> exportTask(file, kernel, bits, symbols, sourceKey, buildTime, handle, log)));
+		}
+		return handle;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Wait until the pending export of the given file (if any) is done */
+	public void awaitExport(File file) {
+		
+		Future<?> export;
+		synchronized (this) {
+			export = exports.get(file);
+		}
+		if (export == null)
+			return;
+		try {
+			export.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The number of exports that are queued or running */
+	synchronized public int getNumPendingExports() {
+		
+		int num = 0;
+		for (Future<?> export : exports.values())
+			if (!export.isDone())
+				num++;
+		return num;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The given file is no longer used by this run, it can be evicted */
+	synchronized public void release(File file) {
+		pinned.remove(file);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Read the given file in the background to get it into the page cache (ignored if it doesn't exist) */
+	synchronized public void prefetch(File file) {
+		
+		if (!file.exists() || pinned.contains(file))
+			return;
+		pinned.add(file);
+		if (prefetcher == null)
+			prefetcher = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "kernel-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			});
+		
+		prefetcher.submit(() -> {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(PREFETCH_BUFFER);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				while (channel.read(buffer) > 0)
+					buffer.clear();
+			} catch (IOException e) {
+				// Deleted or not readable, the job will report it
+			}
+		});
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The artefact name of a kernel file, used to declare dependencies between jobs (see JobMagnum.getInputs()) */
+	public static String getArtefact(File file) {
+		return "kernel:" + file.getAbsolutePath();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Delete the least recently used kernel files until the budget is met (no-op if unlimited) */
+	synchronized public void enforceBudget(MagnumLogger log) {
+		
+		if (budget <= 0)
+			return;
+		File[] files = kernelDir.listFiles((dir, name) -> name.endsWith(KernelFile.EXTENSION) || name.endsWith(KernelEigen.EXTENSION));
+		if (files == null)
+			return;
+		
+		long total = 0;
+		for (File file : files)
+			total += file.length();
+		if (total <= budget)
+			return;
+		
+		// Least recently used first
+		long[] lastUsed = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i=0; i<files.length; i++) {
+			lastUsed[i] = manifest.getLastUsed(files[i]);
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+		
+		for (int i : order) {
+			if (total <= budget)
+				break;
+			if (pinned.contains(files[i]))
+				continue;
+			long size = files[i].length();
+			try {
+				Files.delete(files[i].toPath());
+			} catch (IOException e) {
+				// Still open (e.g., on Windows), try again next time
+				continue;
+			}
+			manifest.remove(files[i]);
+			total -= size;
+			log.println("Kernel cache: evicted " + files[i].getName() + " (" + (size >> 20) + " MB)");
+		}
+		if (total > budget)
+			log.warning("Kernel cache exceeds the budget (" + (total >> 20) + " MB), the remaining files are used by the current run");
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Stop the prefetch thread (pending prefetches are dropped) and wait for the pending exports */
+	public void close() {
+		
+		// Not synchronized while waiting, the exports update the manifest
+		ExecutorService pendingExports;
+		synchronized (this) {
+			if (prefetcher != null)
+				prefetcher.shutdownNow();
+			prefetcher = null;
+			pendingExports = exporter;
+			exporter = null;
+		}
+		if (pendingExports != null) {
+			pendingExports.shutdown();
+			try {
+				pendingExports.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Write the kernel file and record it in the manifest (run on the export thread), then free the slot */
+	private void exportTask(File file, DenseKernel kernel, int bits, String[] symbols, String sourceKey, long buildTime, AutoCloseable handle, MagnumLogger log) {
+		
+		try {
+			long checksum = KernelFile.write(file, kernel, bits, symbols, sourceKey, exportBandwidth, log);
+			manifest.put(file, sourceKey, bits, kernel.getNumNodes(), checksum, buildTime);
+			enforceBudget(log);
+		} catch (RuntimeException e) {
+			log.warning("Kernel export failed: " + file.getPath() + " (" + e.getMessage() + ")");
+		} finally {
+			exportSlots.release();
+			try {
+				handle.close();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public KernelManifest getManifest() { return manifest; }
+	public File getKernelDir() { return kernelDir; }
+	public long getBudget() { return budget; }
+	
+	public void setExportBandwidth(long exportBandwidth) { this.exportBandwidth = exportBandwidth; }
+
+}
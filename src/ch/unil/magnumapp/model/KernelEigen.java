@@ -0,0 +1,305 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * Eigendecomposition N = U diag(lambda) U' of the normalized adjacency of a network, from 
+ * which the p-step kernels of all parameters derive: K(a, p) = U diag((a-1+lambda)^p) U'
+ * (see PStepKernel). The connectivity of a gene set S with indicator vector x is
+ * 
+ *    x'K(a, p)x = sum_k (a-1+lambda_k)^p y_k^2,   y = U'x = sum_{i in S} U_i.
+ * 
+ * The projection y is computed once per gene set (and updated as genes are added along 
+ * a ranking), each kernel of a parameter sweep then only costs O(n). The decomposition 
+ * is computed in O(n^3) (see SymmetricEigen) and saved to the kernel directory, so that
+ * later sweeps on the same network only load it.
+ * 
+ * The eigenvectors are stored off-heap in float32, one row per node (row i = U_i.). 
+ * File layout: magic, version, source key (network file), number of nodes, gene symbols 
+ * in node order, eigenvalues (double), rows (float, big-endian).
+ */
+public class KernelEigen implements AutoCloseable {
+
+	/** File extension */
+	final static public String EXTENSION = ".app_eigen.bin";
+	/** File format */
+	final static private int MAGIC = 0x4d474e45;
+	final static private int VERSION = 1;
+
+	/** Number of nodes */
+	final private int numNodes;
+	/** Eigenvalues of the normalized adjacency */
+	final private double[] eigenvalues;
+	/** Eigenvectors, row i holds the entries of node i in all eigenvectors */
+	final private OffHeapRows vectors;
+	/** Projection buffer of each thread */
+	final private ThreadLocal<double[]> buffers;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Compute the eigendecomposition of the normalized adjacency of the given network */
+	public static KernelEigen compute(SparseNetwork network, MagnumLogger log) {
+		
+		int numNodes = network.getNumNodes();
+		log.println("Computing eigendecomposition (" + numNodes + " nodes, " + ((8L*numNodes*numNodes) >> 20) + " MB)...");
+		
+		// Dense N, rows are N*e_i (one step with a=1)
+		double[][] dense = new double[numNodes][];
+		try (PStepKernel adjacency = new PStepKernel(network, 1, 1)) {
+			double[] tmp = new double[numNodes];
+			for (int i=0; i<numNodes; i++) {
+				dense[i] = new double[numNodes];
+				adjacency.computeRow(i, dense[i], tmp);
+			}
+		}
+		SymmetricEigen eigen = new SymmetricEigen(dense);
+		
+		KernelEigen kernelEigen = new KernelEigen(numNodes, eigen.getEigenvalues().clone());
+		float[] row = new float[numNodes];
+		for (int i=0; i<numNodes; i++) {
+			for (int k=0; k<numNodes; k++)
+				row[k] = (float) eigen.getEigenvector(i, k);
+			kernelEigen.setRow(i, row);
+		}
+		return kernelEigen;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The eigendecomposition file of the given network in the given directory */
+	public static File getFile(File kernelDir, NetworkModel network) {
+		
+		String basename = network.getFile().getName().replaceAll("\\.txt(\\.gz)?$", "");
+		return new File(kernelDir, basename + EXTENSION);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Key identifying the network file (the decomposition does not depend on the kernel parameters) */
+	public static String getSourceKey(NetworkModel network) {
+		
+		File file = network.getFile();
+		return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" 
+				+ network.getIsWeighted() + "|" + network.getRemoveSelf();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Read a decomposition, returns null if the file is outdated (different source key or genes) */
+	public static KernelEigen read(File file, SparseNetwork network, String sourceKey, MagnumLogger log) {
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(sourceKey))
+				return null;
+			int numNodes = in.readInt();
+			if (numNodes != network.getNumNodes())
+				return null;
+			for (int i=0; i<numNodes; i++)
+				if (!in.readUTF().equals(GeneDictionary.getSymbol(network.getGeneId(i))))
+					return null;
+			
+			log.println("Loading eigendecomposition: " + file.getPath());
+			double[] eigenvalues = new double[numNodes];
+			for (int k=0; k<numNodes; k++)
+				eigenvalues[k] = in.readDouble();
+			
+			KernelEigen kernelEigen = new KernelEigen(numNodes, eigenvalues);
+			byte[] bytes = new byte[4*numNodes];
+			float[] row = new float[numNodes];
+			for (int i=0; i<numNodes; i++) {
+				in.readFully(bytes);
+				ByteBuffer.wrap(bytes).asFloatBuffer().get(row);
+				kernelEigen.setRow(i, row);
+			}
+			return kernelEigen;
+			
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Write the decomposition (to a temporary file first) */
+	public void write(File file, SparseNetwork network, String sourceKey, MagnumLogger log) {
+		
+		log.println("Writing eigendecomposition: " + file.getPath());
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(sourceKey);
+				out.writeInt(numNodes);
+				for (int i=0; i<numNodes; i++)
+					out.writeUTF(GeneDictionary.getSymbol(network.getGeneId(i)));
+				for (int k=0; k<numNodes; k++)
+					out.writeDouble(eigenvalues[k]);
+				
+				ByteBuffer bytes = ByteBuffer.allocate(4*numNodes);
+				for (int i=0; i<numNodes; i++) {
+					FloatBuffer row = vectors.floats(i).duplicate();
+					row.position(vectors.offset(i));
+					row.limit(vectors.offset(i) + numNodes);
+					bytes.clear();
+					bytes.asFloatBuffer().put(row);
+					out.write(bytes.array());
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The weights (a-1+lambda_k)^p of the kernel with the given parameters */
+	public double[] getWeights(double alpha, int p) {
+		
+		double[] weights = new double[numNodes];
+		for (int k=0; k<numNodes; k++)
+			weights[k] = Math.pow(alpha - 1 + eigenvalues[k], p);
+		return weights;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** 
+	 * Connectivity at each cutoff of the ranking (cutoffs are the sizes of the gene sets)
+	 * for each kernel (weights), returned as curves[kernel*numCutoffs + cutoff]
+	 */
+	public double[] computeCurves(int[] ranking, int[] cutoffSizes, double[][] weights) {
+		
+		int numCutoffs = cutoffSizes.length;
+		double[] curves = new double[weights.length*numCutoffs];
+		double[] y = buffers.get();
+		Arrays.fill(y, 0);
+		
+		int n = 0;
+		for (int c=0; c<numCutoffs; c++) {
+			// Add the genes up to this cutoff to the projection
+			for (; n<cutoffSizes[c]; n++) {
+				FloatBuffer row = vectors.floats(ranking[n]);
+				int offset = vectors.offset(ranking[n]);
+				for (int k=0; k<numNodes; k++)
+					y[k] += row.get(offset + k);
+			}
+			for (int t=0; t<weights.length; t++) {
+				double[] w = weights[t];
+				double sum = 0;
+				for (int k=0; k<numNodes; k++)
+					sum += w[k] * y[k] * y[k];
+				curves[t*numCutoffs + c] = sum;
+			}
+		}
+		return curves;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Compare the connectivity of the given nodes with the exact (matrix-free) kernel */
+	public void printValidation(PStepKernel exact, int[] nodes, int numNodes, MagnumLogger log) {
+		
+		double[][] weights = { getWeights(exact.getAlpha(), exact.getP()) };
+		double eigen = computeCurves(nodes, new int[] {numNodes}, weights)[0];
+		double matrixFree = new MatrixFreeKernel(exact).sumWithin(nodes, numNodes, null);
+		
+		log.println("Eigendecomposition validation (" + numNodes + " genes, a=" + exact.getAlpha() + ", p=" + exact.getP() + "):");
+		log.println("- Connectivity (matrix-free):        " + matrixFree);
+		log.println("- Connectivity (eigendecomposition): " + eigen);
+		log.println("- Relative difference:               " + String.format("%.2e", Math.abs(eigen - matrixFree) / Math.abs(matrixFree)));
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Free the off-heap eigenvectors */
+	@Override
+	public void close() {
+		vectors.close();
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Constructor, allocates the eigenvectors */
+	private KernelEigen(int numNodes, double[] eigenvalues) {
+		
+		this.numNodes = numNodes;
+		this.eigenvalues = eigenvalues;
+		vectors = new OffHeapRows(numNodes, numNodes, 4);
+		buffers = ThreadLocal.withInitial(() -> new double[numNodes]);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Set row i */
+	private void setRow(int i, float[] row) {
+		
+		FloatBuffer segment = vectors.floats(i).duplicate();
+		segment.position(vectors.offset(i));
+		segment.put(row, 0, numNodes);
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public int getNumNodes() { return numNodes; }
+	public double[] getEigenvalues() { return eigenvalues; }
+	public long getMemory() { return vectors.getMemory() + 8L*numNodes; }
+	
+}
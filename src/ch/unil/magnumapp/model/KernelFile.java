@@ -0,0 +1,233 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * Binary file format for the dense kernels computed by the app (network_kernels directory).
+ * 
+ * Precision (absolute error of each entry K_ij, where m_i = max_j |K_ij|):
+ * - 32 bits: float, at most 2^-24 |K_ij|
+ * - 16 bits: quantized with one scale per row, at most m_i / 65534
+ * - 8 bits:  quantized with one scale per row, at most m_i / 254
+ * The error of the connectivity of a gene set S is thus at most |S| * sum_{i in S} m_i / 65534
+ * (16 bits). Use KernelBenchmark to compare the p-values of the different precisions.
+ * 
+ * Layout: magic, version, source key (network file and kernel parameters), bits, number of 
+ * nodes, gene symbols in node order, row scales (8/16 bits), row-major values (big-endian).
+ */
+public class KernelFile {
+
+	/** File extension */
+	final static public String EXTENSION = ".app_kernel.bin";
+	/** Supported precisions */
+	final static public int[] BITS = {8, 16, 32};
+	
+	/** Format */
+	final static private int MAGIC = 0x4d474e4b;
+	final static private int VERSION = 1;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** The kernel file of the given network in the given directory */
+	public static File getFile(File kernelDir, NetworkModel network) {
+		
+		String basename = network.getFile().getName().replaceAll("\\.txt(\\.gz)?$", "");
+		return new File(kernelDir, basename + EXTENSION);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Key identifying the network file and the kernel parameters */
+	public static String getSourceKey(NetworkModel network, PStepKernel kernel) {
+		
+		File file = network.getFile();
+		return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" 
+				+ network.getIsWeighted() + "|" + network.getRemoveSelf() + "|" + kernel.getAlpha() + "|" + kernel.getP();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The gene symbols of the nodes (written in the header) */
+	public static String[] getSymbols(SparseNetwork network) {
+		
+		String[] symbols = new String[network.getNumNodes()];
+		for (int i=0; i<symbols.length; i++)
+			symbols[i] = GeneDictionary.getSymbol(network.getGeneId(i));
+		return symbols;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Write the kernel with the given precision (to a temporary file first), returns the CRC32 of the file (see KernelManifest) */
+	public static long write(File file, DenseKernel kernel, int bits, SparseNetwork network, String sourceKey, MagnumLogger log) {
+		return write(file, kernel, bits, getSymbols(network), sourceKey, 0, log);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Write the kernel for the given gene symbols (node order) with a bandwidth limit (bytes per second, 0 for unlimited) */
+	public static long write(File file, DenseKernel kernel, int bits, String[] symbols, String sourceKey, long bytesPerSecond, MagnumLogger log) {
+		
+		log.println("Writing " + bits + "-bit kernel: " + file.getPath());
+		int numNodes = kernel.getNumNodes();
+		QuantizedKernel quantized = (bits == 32) ? null : QuantizedKernel.quantize(kernel, bits);
+		
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(
+					new ThrottledOutputStream(new FileOutputStream(tmp), bytesPerSecond), crc), 1 << 16))) {
+				writeHeader(out, sourceKey, bits, symbols);
+				
+				if (quantized != null)
+					for (int i=0; i<numNodes; i++)
+						out.writeFloat(quantized.getScales()[i]);
+				
+				ByteBuffer row = ByteBuffer.allocate(numNodes * bits/8);
+				byte[] row8 = new byte[numNodes];
+				short[] row16 = new short[numNodes];
+				float[] row32 = new float[numNodes];
+				for (int i=0; i<numNodes; i++) {
+					row.clear();
+					if (bits == 8) {
+						quantized.getRow(i, row8);
+						row.put(row8);
+					} else if (bits == 16) {
+						quantized.getRow(i, row16);
+						row.asShortBuffer().put(row16);
+					} else {
+						kernel.getRow(i, row32);
+						row.asFloatBuffer().put(row32);
+					}
+					out.write(row.array());
+				}
+			} finally {
+				if (quantized != null)
+					quantized.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return crc.getValue();
+			
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** 
+	 * Read a kernel (DenseKernel for 32 bits, QuantizedKernel otherwise). Returns null if 
+	 * the file is outdated (different source key or genes than the given network).
+	 */
+	public static Kernel read(File file, SparseNetwork network, String sourceKey, MagnumLogger log) {
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(sourceKey))
+				return null;
+			int bits = in.readInt();
+			int numNodes = in.readInt();
+			if (numNodes != network.getNumNodes())
+				return null;
+			for (int i=0; i<numNodes; i++)
+				if (!in.readUTF().equals(GeneDictionary.getSymbol(network.getGeneId(i))))
+					return null;
+			
+			log.println("Loading " + bits + "-bit kernel: " + file.getPath());
+			byte[] row = new byte[numNodes * bits/8];
+			
+			if (bits == 32) {
+				DenseKernel kernel = new DenseKernel(numNodes);
+				float[] row32 = new float[numNodes];
+				for (int i=0; i<numNodes; i++) {
+					in.readFully(row);
+					ByteBuffer.wrap(row).asFloatBuffer().get(row32);
+					kernel.setRow(i, row32);
+				}
+				return kernel;
+				
+			} else {
+				QuantizedKernel kernel = new QuantizedKernel(numNodes, bits);
+				short[] row16 = new short[numNodes];
+				for (int i=0; i<numNodes; i++)
+					kernel.getScales()[i] = in.readFloat();
+				for (int i=0; i<numNodes; i++) {
+					in.readFully(row);
+					if (bits == 8) {
+						kernel.setRow(i, row);
+					} else {
+						ByteBuffer.wrap(row).asShortBuffer().get(row16);
+						kernel.setRow(i, row16);
+					}
+				}
+				return kernel;
+			}
+			
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Write the header */
+	private static void writeHeader(DataOutputStream out, String sourceKey, int bits, String[] symbols) throws IOException {
+		
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(sourceKey);
+		out.writeInt(bits);
+		out.writeInt(symbols.length);
+		for (String symbol : symbols)
+			out.writeUTF(symbol);
+	}
+
+}
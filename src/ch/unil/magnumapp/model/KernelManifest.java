@@ -0,0 +1,224 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Manifest of the kernel files in the kernel directory (kernel_manifest.txt), written by
+ * the jobs that export kernels. One tab-separated line per kernel file:
+ * 
+ *    file  sourceKey  bits  numNodes  size  lastModified  crc32  buildTime(ms)  created  lastUsed
+ * 
+ * A kernel file is up to date if its entry has the same source key (network file and kernel
+ * parameters, see KernelFile.getSourceKey()) and the file was not changed since it was written.
+ * The checksum is only verified on request (it requires reading the whole file). The time
+ * of last use (ms) is updated when a job loads the kernel (see KernelCache).
+ * Jobs of the same run share one instance, all methods are synchronized.
+ */
+public class KernelManifest {
+
+	/** The manifest filename */
+	final static public String FILENAME = "kernel_manifest.txt";
+	/** Number of fields of an entry */
+	final static private int NUM_FIELDS = 10;
+	
+	/** The manifest file */
+	private File file;
+	/** The entries (tab-separated fields) by kernel filename */
+	private LinkedHashMap<String, String[]> entries = new LinkedHashMap<>();
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Load the manifest of the given kernel directory (empty if it does not exist yet) */
+	public static KernelManifest load(File kernelDir) {
+		
+		KernelManifest manifest = new KernelManifest();
+		manifest.file = new File(kernelDir, FILENAME);
+		if (!manifest.file.exists())
+			return manifest;
+		
+		try {
+			for (String line : Files.readAllLines(manifest.file.toPath(), StandardCharsets.UTF_8)) {
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\t");
+				// Manifests of the previous version have no time of last use
+				if (fields.length == NUM_FIELDS-1) {
+					fields = Arrays.copyOf(fields, NUM_FIELDS);
+					fields[NUM_FIELDS-1] = fields[5];
+				}
+				if (fields.length != NUM_FIELDS)
+					throw new RuntimeException("Invalid line in " + manifest.file.getPath() + ": " + line);
+				manifest.entries.put(fields[0], fields);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return manifest;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** True if the kernel file is listed with the given source key and was not changed since */
+	synchronized public boolean isUpToDate(File kernelFile, String sourceKey) {
+		
+		String[] entry = entries.get(kernelFile.getName());
+		return entry != null && entry[1].equals(sourceKey) && kernelFile.exists()
+				&& Long.parseLong(entry[4]) == kernelFile.length() 
+				&& Long.parseLong(entry[5]) == kernelFile.lastModified();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** True if the kernel file has an entry (with any source key) */
+	synchronized public boolean isListed(File kernelFile) {
+		return entries.containsKey(kernelFile.getName());
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Verify the checksum of a listed kernel file (reads the whole file) */
+	public boolean verifyChecksum(File kernelFile) {
+		
+		String[] entry;
+		synchronized (this) {
+			entry = entries.get(kernelFile.getName());
+		}
+		return entry != null && Long.parseLong(entry[6]) == checksum(kernelFile);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Add or replace the entry of a kernel file that was just written, and save the manifest */
+	synchronized public void put(File kernelFile, String sourceKey, int bits, int numNodes, long checksum, long buildTime) {
+		
+		String created = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+		entries.put(kernelFile.getName(), new String[] {kernelFile.getName(), sourceKey, Integer.toString(bits), 
+				Integer.toString(numNodes), Long.toString(kernelFile.length()), Long.toString(kernelFile.lastModified()),
+				Long.toString(checksum), Long.toString(buildTime), created, Long.toString(System.currentTimeMillis())});
+		save();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Set the time of last use of a listed kernel file to now, and save the manifest */
+	synchronized public void touch(File kernelFile) {
+		
+		String[] entry = entries.get(kernelFile.getName());
+		if (entry == null)
+			return;
+		entry[NUM_FIELDS-1] = Long.toString(System.currentTimeMillis());
+		save();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Remove the entry of a kernel file (if listed), and save the manifest */
+	synchronized public void remove(File kernelFile) {
+		
+		if (entries.remove(kernelFile.getName()) != null)
+			save();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Time of last use of a listed kernel file, the modification time of the file otherwise (ms) */
+	synchronized public long getLastUsed(File kernelFile) {
+		
+		String[] entry = entries.get(kernelFile.getName());
+		return (entry == null) ? kernelFile.lastModified() : Long.parseLong(entry[NUM_FIELDS-1]);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** CRC32 of the given file */
+	public static long checksum(File file) {
+		
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = new FileInputStream(file)) {
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				crc.update(buffer, 0, n);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return crc.getValue();
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Write the manifest (to a temporary file first) */
+	private void save() {
+		
+		ArrayList<String> lines = new ArrayList<>();
+		lines.add("# file\tsourceKey\tbits\tnumNodes\tsize\tlastModified\tcrc32\tbuildTime(ms)\tcreated\tlastUsed");
+		for (String[] entry : entries.values())
+			lines.add(String.join("\t", entry));
+		
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public File getFile() { return file; }
+	synchronized public int getNumEntries() { return entries.size(); }
+
+}
@@ -0,0 +1,58 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+/**
+ * How the network kernels are computed: by the magnum engine (full dense kernels),
+ * or by the app (approximate or memory-efficient kernels, see ConnectivityEnrichment)
+ */
+public enum KernelMode {
+
+	/** Dense kernels computed by magnum */
+	ENGINE("Full (magnum)"),
+	/** Top-k entries per row (SparseKernel) */
+	SPARSE("Sparse top-k"),
+	/** Products with the sparse network, no kernel matrix (MatrixFreeKernel) */
+	MATRIX_FREE("Matrix-free"),
+	/** Dense kernel in single precision, can be exported and reloaded (DenseKernel, KernelFile) */
+	DENSE_FLOAT("Dense float32"),
+	/** Kernels of a grid of parameters derived from one eigendecomposition (KernelEigen, JobParameterSweep) */
+	EIGEN_SWEEP("Parameter sweep");
+	
+	/** The text shown in the gui */
+	private String label;
+	
+	/** Constructor */
+	private KernelMode(String label) {
+		this.label = label;
+	}
+	
+	@Override
+	public String toString() {
+		return label;
+	}
+	
+}
@@ -0,0 +1,228 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * Derives the dense kernel of a network variant (see NetworkDelta) from the kernel of 
+ * its base network. The p-step kernel is a polynomial of the normalized adjacency N, so
+ * K_ij only depends on the walks of length <= p between i and j. The rows of N that 
+ * change are those of the touched nodes T (nodes with different edges or weights in the 
+ * variant, which includes the neighbors of removed nodes). The kernel thus only changes in
+ * the rows (and columns) of the nodes within distance p of T. These rows are recomputed
+ * exactly, the other rows are copied from the base kernel. The update is exact up to the
+ * precision of the base kernel file.
+ * 
+ * The polynomial kernel has no inverse form, so low-rank (Woodbury) updates or warm-
+ * started solves do not apply. When most rows change, the caller recomputes the kernel.
+ */
+public class KernelUpdate {
+
+	/** Recompute the whole kernel if more than this fraction of the rows changes */
+	final static public double MAX_CHANGED_FRACTION = 0.5;
+
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** 
+	 * The kernel of the network of variantExact, derived from the kernel of the given base 
+	 * network. Returns null if more than maxFraction of the rows change.
+	 */
+	public static DenseKernel derive(Kernel baseKernel, SparseNetwork base, PStepKernel variantExact, double maxFraction, MagnumLogger log) {
+		
+		SparseNetwork variant = variantExact.getNetwork();
+		int numNodes = variant.getNumNodes();
+		
+		// Base node of each variant node (-1 for new nodes)
+		int[] baseNode = new int[numNodes];
+		for (int i=0; i<numNodes; i++)
+			baseNode[i] = base.getLocalIndex(variant.getGeneId(i));
+		
+		boolean[] touched = getTouchedNodes(base, variant, baseNode);
+		boolean[] changed = expand(variant, touched, variantExact.getP());
+		int numTouched = 0;
+		int numChanged = 0;
+		for (int i=0; i<numNodes; i++) {
+			if (touched[i]) numTouched++;
+			if (changed[i]) numChanged++;
+		}
+		log.println("Kernel update from base network: " + numTouched + " touched nodes, " 
+				+ numChanged + " of " + numNodes + " rows change");
+		if (numChanged > maxFraction * numNodes) {
+			log.println("- Too many changes, recomputing the kernel");
+			return null;
+		}
+		
+		DenseKernel kernel = new DenseKernel(numNodes);
+		
+		// Rows in parallel chunks, the buffers are freed with the chunk (not kept by the pool threads)
+		int numChunks = (numNodes + ParallelLoop.CHUNK_SIZE - 1) / ParallelLoop.CHUNK_SIZE;
+		ParallelLoop.forEach(numChunks, chunk -> {
+			float[] row = new float[numNodes];
+			double[][] buffer = null;
+			int end = Math.min(numNodes, (chunk + 1)*ParallelLoop.CHUNK_SIZE);
+			for (int i=chunk*ParallelLoop.CHUNK_SIZE; i<end; i++) {
+				if (changed[i]) {
+					// Only allocated if a row of the chunk changes
+					if (buffer == null)
+						buffer = new double[2][numNodes];
+					variantExact.computeRow(i, buffer[0], buffer[1]);
+					for (int j=0; j<numNodes; j++)
+						row[j] = (float) buffer[0][j];
+				} else {
+					// New nodes are touched, so they are farther than p steps from unchanged rows
+					for (int j=0; j<numNodes; j++)
+						row[j] = (baseNode[j] == -1) ? 0 : (float) baseKernel.get(baseNode[i], baseNode[j]);
+				}
+				kernel.setRow(i, row);
+			}
+		});
+		return kernel;
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** 
+	 * Derive the kernel of the given network variant from the kernel file of its base network in the 
+	 * kernel directory. Returns null if the file is not available or outdated, or if too many rows change.
+	 */
+	public static DenseKernel derive(NetworkModel variant, File kernelDir, PStepKernel variantExact, MagnumLogger log) {
+		
+		NetworkModel baseModel = NetworkDelta.load(variant.getFile()).getBaseModel(variant);
+		File baseKernelFile = getBaseKernelFile(variant, kernelDir);
+		if (!baseKernelFile.exists()) {
+			log.println("No kernel file for the base network: " + baseKernelFile.getPath());
+			return null;
+		}
+		
+		try (SparseNetwork base = SparseNetwork.load(baseModel.getFile(), baseModel.getIsWeighted(), baseModel.getRemoveSelf(), log)) {
+			Kernel baseKernel = KernelFile.read(baseKernelFile, base, KernelFile.getSourceKey(baseModel, variantExact), log);
+			if (baseKernel == null) {
+				log.println("Kernel file of the base network is outdated: " + baseKernelFile.getPath());
+				return null;
+			}
+			try {
+				return derive(baseKernel, base, variantExact, MAX_CHANGED_FRACTION, log);
+			} finally {
+				baseKernel.close();
+			}
+		}
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** The kernel file of the base network of the given variant in the kernel directory */
+	public static File getBaseKernelFile(NetworkModel variant, File kernelDir) {
+		
+		NetworkModel baseModel = NetworkDelta.load(variant.getFile()).getBaseModel(variant);
+		return KernelFile.getFile(kernelDir, baseModel);
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Nodes of the variant whose edges (mapped to the base) or weights differ from the base */
+	private static boolean[] getTouchedNodes(SparseNetwork base, SparseNetwork variant, int[] baseNode) {
+		
+		int[] rowPtr = variant.getRowPtr();
+		IntBuffer colIdx = variant.getColIdx();
+		FloatBuffer weights = variant.getWeights();
+		int[] baseRowPtr = base.getRowPtr();
+		IntBuffer baseColIdx = base.getColIdx();
+		FloatBuffer baseWeights = base.getWeights();
+		
+		// Weights of the current base row, valid where stamp == row + 1
+		float[] baseRow = new float[base.getNumNodes()];
+		int[] stamp = new int[base.getNumNodes()];
+		
+		boolean[] touched = new boolean[variant.getNumNodes()];
+		for (int i=0; i<touched.length; i++) {
+			int b = baseNode[i];
+			if (b == -1 || rowPtr[i+1] - rowPtr[i] != baseRowPtr[b+1] - baseRowPtr[b]) {
+				touched[i] = true;
+				continue;
+			}
+			for (int k=baseRowPtr[b]; k<baseRowPtr[b+1]; k++) {
+				baseRow[baseColIdx.get(k)] = baseWeights.get(k);
+				stamp[baseColIdx.get(k)] = i + 1;
+			}
+			for (int k=rowPtr[i]; k<rowPtr[i+1]; k++) {
+				int bj = baseNode[colIdx.get(k)];
+				if (bj == -1 || stamp[bj] != i + 1 || baseRow[bj] != weights.get(k)) {
+					touched[i] = true;
+					break;
+				}
+			}
+		}
+		return touched;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Nodes within the given distance of the touched nodes (breadth-first search) */
+	private static boolean[] expand(SparseNetwork network, boolean[] touched, int distance) {
+		
+		int[] rowPtr = network.getRowPtr();
+		IntBuffer colIdx = network.getColIdx();
+		boolean[] reached = Arrays.copyOf(touched, touched.length);
+		
+		int[] frontier = new int[touched.length];
+		int frontierSize = 0;
+		for (int i=0; i<touched.length; i++)
+			if (touched[i])
+				frontier[frontierSize++] = i;
+		
+		int[] next = new int[touched.length];
+		for (int step=0; step<distance && frontierSize > 0; step++) {
+			int nextSize = 0;
+			for (int f=0; f<frontierSize; f++) {
+				int i = frontier[f];
+				for (int k=rowPtr[i]; k<rowPtr[i+1]; k++) {
+					int j = colIdx.get(k);
+					if (!reached[j]) {
+						reached[j] = true;
+						next[nextSize++] = j;
+					}
+				}
+			}
+			int[] tmp = frontier; frontier = next; next = tmp;
+			frontierSize = nextSize;
+		}
+		return reached;
+	}
+	
+}
@@ -0,0 +1,159 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * Matrix-free PStepKernel: the dense kernel is never formed, the connectivity of a 
+ * gene set is computed from sparse matrix-vector products with its indicator vector x.
+ * Since K = M^p with M = (a-1)I + N symmetric, x'Kx = |M^(p/2) x|^2 for even p, which 
+ * needs only p/2 products (the first one only visits the rows of the gene set). This 
+ * is exact (no Krylov approximation needed for a polynomial kernel). Thread-safe, each 
+ * thread has its own work arrays.
+ */
+public class MatrixFreeKernel implements Kernel {
+
+	/** The kernel */
+	final private PStepKernel kernel;
+	/** Work arrays of each thread */
+	final private ThreadLocal<double[][]> buffers;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Constructor */
+	public MatrixFreeKernel(PStepKernel kernel) {
+		
+		this.kernel = kernel;
+		int numNodes = kernel.getNumNodes();
+		buffers = ThreadLocal.withInitial(() -> new double[2][numNodes]);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Kernel entry (computes the full row, use sumWithin() where possible) */
+	@Override
+	public double get(int i, int j) {
+		
+		double[][] buffer = buffers.get();
+		kernel.computeRow(i, buffer[0], buffer[1]);
+		return buffer[0][j];
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** x'Kx for the indicator vector x of the given nodes (the mask is not used) */
+	@Override
+	public double sumWithin(int[] nodes, int numNodes, boolean[] mask) {
+		
+		double[][] buffer = buffers.get();
+		double[] v = buffer[0];
+		double[] tmp = buffer[1];
+		
+		// v = M^(p/2) x
+		int half = kernel.getP() / 2;
+		if (half == 0) {
+			// p = 1: x'Mx = (Mx)'x
+			kernel.multiplyStepIndicator(nodes, numNodes, v);
+			double sum = 0;
+			for (int n=0; n<numNodes; n++)
+				sum += v[nodes[n]];
+			return sum;
+		}
+		kernel.multiplyStepIndicator(nodes, numNodes, v);
+		for (int step=1; step<half; step++) {
+			kernel.multiplyStep(v, tmp);
+			double[] swap = v; v = tmp; tmp = swap;
+		}
+		
+		// Even p: |v|^2, odd p: v'Mv
+		double sum = 0;
+		if (kernel.getP() % 2 == 0) {
+			for (int i=0; i<v.length; i++)
+				sum += v[i]*v[i];
+		} else {
+			kernel.multiplyStep(v, tmp);
+			for (int i=0; i<v.length; i++)
+				sum += v[i]*tmp[i];
+		}
+		return sum;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Nothing to free, the PStepKernel and the network are closed by their owner */
+	@Override
+	public void close() {
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Memory used by the normalized adjacency and the work arrays of one thread (bytes) */
+	@Override
+	public long getMemory() {
+		return kernel.getMemory() + 16L*kernel.getNumNodes();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** 
+	 * Validate against the dense kernel rows: the connectivity of the given gene set is 
+	 * recomputed by summing explicit rows of the kernel, and the relative difference is logged
+	 */
+	public void printValidation(int[] nodes, int numNodes, MagnumLogger log) {
+		
+		double[] row = new double[kernel.getNumNodes()];
+		double[] tmp = new double[kernel.getNumNodes()];
+		double dense = 0;
+		for (int n=0; n<numNodes; n++) {
+			kernel.computeRow(nodes[n], row, tmp);
+			for (int m=0; m<numNodes; m++)
+				dense += row[nodes[m]];
+		}
+		double matrixFree = sumWithin(nodes, numNodes, null);
+		
+		log.println("Matrix-free kernel validation (" + numNodes + " genes):");
+		log.println("- Connectivity (dense rows):  " + dense);
+		log.println("- Connectivity (matrix-free): " + matrixFree);
+		log.println("- Relative difference:        " + String.format("%.2e", Math.abs(dense - matrixFree) / Math.abs(dense)));
+		log.println("- Memory:                     " + (getMemory() >> 20) + " MB (dense: " + ((8L*row.length*row.length) >> 20) + " MB)");
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	@Override
+	public int getNumNodes() { return kernel.getNumNodes(); }
+	
+}
@@ -28,6 +28,7 @@ package ch.unil.magnumapp.model;
 import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -56,6 +57,8 @@ public class NetworkCollection {
     private NetworkGroup fantom5HighLevel;
     /** 394 individual networks */
     private ArrayList<NetworkGroup> fantom5Individual;
+    /** The high-level network of the cluster of each individual network */
+    private HashMap<NetworkModel, NetworkModel> clusterNetworks = new HashMap<>();
     
     /** PPI networks */
     private NetworkGroup ppiNetworks;
@@ -120,7 +123,7 @@ public class NetworkCollection {
 	// PRIVATE METHODS
 	
 	/** Load network/cluster id-name table */
-	private LinkedHashMap<String, String> loadIdNameTable(String resourceName) {
+	static LinkedHashMap<String, String> loadIdNameTable(String resourceName) {
 		
 		LinkedHashMap<String, String> map = new LinkedHashMap<>();
 		InputStream in = AppSettings.class.getClassLoader().getResourceAsStream(resourceName);
@@ -186,9 +189,11 @@ public class NetworkCollection {
 
 		// Initialize the 32 high-level networks
 		fantom5HighLevel = new NetworkGroup("32 high-level networks", "32_high-level_networks");
+		LinkedHashMap<String, NetworkModel> highLevelNets = new LinkedHashMap<>();
 		for (Entry<String, String> entry : clusterNames.entrySet()) {
 			NetworkModel net = new NetworkModel(entry.getValue(), entry.getKey() + ".txt.gz", true, true, true);
 			fantom5HighLevel.add(net);
+			highLevelNets.put(entry.getKey(), net);
 		}
 		
 		// Initialize the 394 individual networks
@@ -205,6 +210,7 @@ public class NetworkCollection {
 				String netName = networkNames.get(netId);
 				NetworkModel net = new NetworkModel(netName, netId + ".txt.gz", true, true, true);
 				group.add(net);
+				clusterNetworks.put(net, highLevelNets.get(clusterId));
 			}
 		}
 	}
@@ -324,6 +330,11 @@ public class NetworkCollection {
 	// ============================================================================
 	// SETTERS AND GETTERS
 
+	/** The high-level network of the cluster of the given individual FANTOM5 network (null for other networks) */
+	public NetworkModel getClusterNetwork(NetworkModel network) {
+		return clusterNetworks.get(network);
+	}
+
 	public TreeItem<NetworkModel> getNetworkTree() {
 		return networkTree;
 	}
@@ -0,0 +1,157 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * A network variant described as changes to a base network (file extension .delta.txt),
+ * supported by the kernels computed by the app (see SparseNetwork.load()). If the dense
+ * kernel of the base network is in the kernel directory, the kernel of the variant is
+ * derived from it (see KernelUpdate). Example:
+ * 
+ *    # Base network, relative to this file
+ *    baseNetwork = fantom5_networks/adipose_tissue.txt.gz
+ *    # Remove self-loops
+ *    removeSelf = true
+ *    # Remove edges with a lower weight
+ *    minWeight = 0.1
+ *    # Remove genes
+ *    removeGenes = GENE1, GENE2
+ *    
+ * The base network is loaded with the flags of the variant (weighted, remove self), 
+ * the changes are then applied. Nodes without remaining edges are removed.
+ */
+public class NetworkDelta {
+
+	/** File extension */
+	final static public String EXTENSION = ".delta.txt";
+
+	/** The base network file */
+	private File baseFile;
+	/** Remove self-loops of the base network */
+	private boolean removeSelf = false;
+	/** Remove edges with a lower weight (NaN for no threshold) */
+	private float minWeight = Float.NaN;
+	/** Genes to remove */
+	private HashSet<String> removedGenes = new HashSet<>();
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** True if the given file describes a network variant */
+	public static boolean isDeltaFile(File file) {
+		return file != null && file.getName().endsWith(EXTENSION);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Parse the given file */
+	public static NetworkDelta load(File file) {
+		
+		NetworkDelta delta = new NetworkDelta();
+		try {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				int sep = line.indexOf('=');
+				if (sep == -1)
+					throw new RuntimeException(file.getName() + ": expected 'key = value': " + line);
+				String key = line.substring(0, sep).trim();
+				String value = line.substring(sep+1).trim();
+				
+				if (key.equals("baseNetwork")) {
+					File base = new File(value);
+					delta.baseFile = base.isAbsolute() ? base : new File(file.getAbsoluteFile().getParentFile(), value);
+				} else if (key.equals("removeSelf")) {
+					delta.removeSelf = Boolean.parseBoolean(value);
+				} else if (key.equals("minWeight")) {
+					delta.minWeight = Float.parseFloat(value);
+				} else if (key.equals("removeGenes")) {
+					for (String gene : value.split(","))
+						if (!gene.trim().isEmpty())
+							delta.removedGenes.add(gene.trim());
+				} else {
+					throw new RuntimeException(file.getName() + ": unknown key: " + key);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		if (delta.baseFile == null)
+			throw new RuntimeException(file.getName() + ": no baseNetwork given");
+		if (isDeltaFile(delta.baseFile))
+			throw new RuntimeException(file.getName() + ": the base network cannot be a variant itself");
+		return delta;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The variant of the given base network */
+	public SparseNetwork apply(SparseNetwork base, MagnumLogger log) {
+		
+		boolean[] removedNodes = new boolean[base.getNumNodes()];
+		for (String gene : removedGenes) {
+			int id = GeneDictionary.lookup(gene);
+			int node = (id == -1) ? -1 : base.getLocalIndex(id);
+			if (node != -1)
+				removedNodes[node] = true;
+		}
+		SparseNetwork variant = base.filter(removeSelf, minWeight, removedNodes);
+		log.println("- Variant: " + variant.getNumNodes() + " nodes, " + variant.getNumEdges() + " undirected edges");
+		return variant;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The model of the base network (same flags as the given variant) */
+	public NetworkModel getBaseModel(NetworkModel variant) {
+		
+		NetworkModel base = new NetworkModel(baseFile.getName(), baseFile.getName(), 
+				variant.getIsDirected(), variant.getIsWeighted(), variant.getRemoveSelf());
+		base.setFile(baseFile);
+		return base;
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public File getBaseFile() { return baseFile; }
+	
+}
@@ -0,0 +1,172 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import ch.unil.magnumapp.AppSettings;
+import edu.mit.magnum.FileParser;
+
+/**
+ * Hierarchical clustering of the 394 FANTOM5 networks (R hclust format), 
+ * loaded from the bundled network_clustering_dendrogram.txt
+ */
+public class NetworkDendrogram {
+
+	/** The bundled dendrogram of the FANTOM5 individual networks */
+	final static public String FANTOM5_DENDROGRAM = "ch/unil/magnumapp/resources/fantom5_networks/network_clustering_dendrogram.txt";
+	/** Table with the names of the networks */
+	final static public String FANTOM5_NETWORK_NAMES = "ch/unil/magnumapp/resources/fantom5_networks/394_network_names.txt";
+	
+	/** Network ids (filenames without extension) */
+	private String[] labels;
+	/** Network names (used for display and in the p-value files) */
+	private String[] names;
+	/** Order of the leaves in the dendrogram (zero-based indexes of labels) */
+	private int[] order;
+	/** Merges (hclust format: negative = leaf -i, positive = merge i, one-based) */
+	private int[][] merge;
+	/** Height of the merges */
+	private double[] height;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Constructor, loads the bundled FANTOM5 dendrogram */
+	public NetworkDendrogram() {
+		this(FANTOM5_DENDROGRAM, FANTOM5_NETWORK_NAMES);
+	}
+
+	
+	/** Constructor, loads the dendrogram and names from the given resources */
+	public NetworkDendrogram(String dendrogramResource, String namesResource) {
+
+		InputStream in = AppSettings.class.getClassLoader().getResourceAsStream(dendrogramResource);
+		FileParser reader = new FileParser(in);
+		
+		// Labels
+		expectSection(reader, "# Labels");
+		labels = reader.readLine();
+		
+		// Order
+		expectSection(reader, "# Order");
+		String[] nextLine = reader.readLine();
+		if (nextLine.length != labels.length)
+			reader.error("Expected " + labels.length + " leaves in order, found " + nextLine.length);
+		order = new int[labels.length];
+		for (int i=0; i<order.length; i++)
+			order[i] = Integer.parseInt(nextLine[i]) - 1;
+		
+		// Merges
+		expectSection(reader, "# Merge");
+		merge = new int[labels.length-1][2];
+		height = new double[labels.length-1];
+		for (int i=0; i<merge.length; i++) {
+			nextLine = reader.readLine();
+			if (nextLine == null || nextLine.length != 3)
+				reader.error("Expected " + merge.length + " merges with 3 columns");
+			merge[i][0] = Integer.parseInt(nextLine[0]);
+			merge[i][1] = Integer.parseInt(nextLine[1]);
+			height[i] = Double.parseDouble(nextLine[2]);
+		}
+		reader.close();
+
+		// Names
+		LinkedHashMap<String, String> nameTable = NetworkCollection.loadIdNameTable(namesResource);
+		names = new String[labels.length];
+		for (int i=0; i<labels.length; i++) {
+			names[i] = nameTable.get(labels[i]);
+			if (names[i] == null)
+				throw new RuntimeException("No name found for network in dendrogram: " + labels[i]);
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The network names in the order of the dendrogram leaves */
+	public ArrayList<String> getOrderedNames() {
+		
+		ArrayList<String> ordered = new ArrayList<>(order.length);
+		for (int i : order)
+			ordered.add(names[i]);
+		return ordered;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The zero-based indexes of the leaves below the given node (hclust notation: negative = leaf, positive = merge) */
+	public ArrayList<Integer> getLeaves(int node) {
+		
+		ArrayList<Integer> leaves = new ArrayList<>();
+		addLeaves(node, leaves);
+		return leaves;
+	}
+
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Read the next line and check that it is the given section header */
+	private void expectSection(FileParser reader, String header) {
+		
+		String[] nextLine = reader.readLine();
+		if (nextLine == null || !nextLine[0].trim().equals(header))
+			reader.error("Expected section '" + header + "'");
+	}
+	
+	
+    // ----------------------------------------------------------------------------
+
+	/** Recursively add the leaves below the given node */
+	private void addLeaves(int node, ArrayList<Integer> leaves) {
+		
+		if (node < 0) {
+			leaves.add(-node - 1);
+		} else {
+			addLeaves(merge[node-1][0], leaves);
+			addLeaves(merge[node-1][1], leaves);
+		}
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public int getNumLeaves() { return labels.length; }
+	public String getLabel(int i) { return labels[i]; }
+	public String getName(int i) { return names[i]; }
+	public int[] getMerge(int i) { return merge[i]; }
+	public double getHeight(int i) { return height[i]; }
+	
+	/** The root node (last merge, hclust notation) */
+	public int getRoot() { return merge.length; }
+	
+}
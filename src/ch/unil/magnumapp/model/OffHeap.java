@@ -0,0 +1,106 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Allocation of off-heap (direct) buffers that are freed explicitly instead of by 
+ * the garbage collector, used for large kernels and network adjacency. Buffers must 
+ * not be accessed after they were freed (this would crash the JVM), classes using 
+ * them set their references to null when closed. The total is limited by
+ * -XX:MaxDirectMemorySize (default: same as -Xmx).
+ */
+public class OffHeap {
+
+	/** Java 9+: Unsafe.invokeCleaner(ByteBuffer) */
+	static private Method invokeCleaner = null;
+	/** The Unsafe instance (Java 9+) */
+	static private Object unsafe = null;
+	/** Java 8: DirectByteBuffer.cleaner() */
+	static private Method cleanerMethod = null;
+	/** Java 8: Cleaner.clean() */
+	static private Method cleanMethod = null;
+	
+	static {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+		} catch (Exception e) {
+			invokeCleaner = null;
+			try {
+				ByteBuffer probe = ByteBuffer.allocateDirect(1);
+				cleanerMethod = probe.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			} catch (Exception e2) {
+				// Not supported, buffers are freed by the garbage collector
+				cleanerMethod = null;
+			}
+		}
+	}
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Allocate a direct buffer in native byte order */
+	public static ByteBuffer allocate(long numElements, int elementBytes) {
+		
+		long numBytes = numElements * elementBytes;
+		if (numBytes > Integer.MAX_VALUE)
+			throw new RuntimeException("Off-heap buffer too large: " + numBytes + " bytes");
+		return ByteBuffer.allocateDirect((int) numBytes).order(ByteOrder.nativeOrder());
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Free a direct buffer now (the buffer must not be used anymore) */
+	public static void free(ByteBuffer buffer) {
+		
+		if (buffer == null || !buffer.isDirect())
+			return;
+		try {
+			if (invokeCleaner != null) {
+				invokeCleaner.invoke(unsafe, buffer);
+			} else if (cleanerMethod != null) {
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null)
+					cleanMethod.invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// Freed by the garbage collector
+		}
+	}
+	
+}
@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Off-heap row-major matrix of bytes, shorts or floats. Rows are stored in segments of 
+ * at most 1 GB (direct buffers are limited to 2 GB), all memory is freed by close().
+ * Access is by absolute index only, so that the buffers can be shared by threads.
+ */
+public class OffHeapRows implements AutoCloseable {
+
+	/** Maximum size of a segment (bytes) */
+	final static private long MAX_SEGMENT_BYTES = 1L << 30;
+	
+	/** Number of rows */
+	final private int numRows;
+	/** Number of elements per row */
+	final private int rowLength;
+	/** Bytes per element (1, 2 or 4) */
+	final private int elementBytes;
+	/** Number of rows per segment */
+	final private int rowsPerSegment;
+	
+	/** The segments */
+	private ByteBuffer[] segments;
+	/** Short views of the segments (2 bytes per element) */
+	private ShortBuffer[] shortViews;
+	/** Float views of the segments (4 bytes per element) */
+	private FloatBuffer[] floatViews;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor, allocates the memory (initialized with zeros) */
+	public OffHeapRows(int numRows, int rowLength, int elementBytes) {
+		
+		this.numRows = numRows;
+		this.rowLength = rowLength;
+		this.elementBytes = elementBytes;
+		
+		long rowBytes = Math.max(1, (long) rowLength * elementBytes);
+		if (rowBytes > MAX_SEGMENT_BYTES)
+			throw new RuntimeException("Row too large for off-heap storage: " + rowBytes + " bytes");
+		rowsPerSegment = (int) Math.max(1, Math.min(numRows, MAX_SEGMENT_BYTES / rowBytes));
+		
+		int numSegments = (numRows + rowsPerSegment - 1) / rowsPerSegment;
+		segments = new ByteBuffer[numSegments];
+		shortViews = new ShortBuffer[numSegments];
+		floatViews = new FloatBuffer[numSegments];
+		
+		try {
+			for (int s=0; s<numSegments; s++) {
+				int rows = Math.min(rowsPerSegment, numRows - s*rowsPerSegment);
+				segments[s] = OffHeap.allocate((long) rows * rowLength, elementBytes);
+				if (elementBytes == 2)
+					shortViews[s] = segments[s].asShortBuffer();
+				else if (elementBytes == 4)
+					floatViews[s] = segments[s].asFloatBuffer();
+			}
+		} catch (OutOfMemoryError e) {
+			// Free what was allocated so far
+			close();
+			throw e;
+		}
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The segment (byte buffer) of the given row */
+	public ByteBuffer bytes(int row) {
+		return segments[row / rowsPerSegment];
+	}
+	
+	/** The segment (short view) of the given row */
+	public ShortBuffer shorts(int row) {
+		return shortViews[row / rowsPerSegment];
+	}
+	
+	/** The segment (float view) of the given row */
+	public FloatBuffer floats(int row) {
+		return floatViews[row / rowsPerSegment];
+	}
+
+	/** Index of the first element of the given row in its segment */
+	public int offset(int row) {
+		return (row % rowsPerSegment) * rowLength;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Free the memory */
+	@Override
+	public void close() {
+		
+		if (segments == null)
+			return;
+		for (ByteBuffer segment : segments)
+			OffHeap.free(segment);
+		segments = null;
+		shortViews = null;
+		floatViews = null;
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public int getNumRows() { return numRows; }
+	public int getRowLength() { return rowLength; }
+	public long getMemory() { return (long) numRows * rowLength * elementBytes; }
+	
+}
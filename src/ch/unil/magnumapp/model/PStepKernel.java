@@ -0,0 +1,181 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The p-step random walk kernel K = (aI - L)^p of a network, where L = I - D^-1/2 A D^-1/2 
+ * is the normalized Laplacian (magnum default: a=2, p=4). The kernel is a polynomial of 
+ * the sparse normalized adjacency N = D^-1/2 A D^-1/2, products K*x are thus computed 
+ * exactly with p sparse matrix-vector products, without forming the dense kernel.
+ * The normalized adjacency is stored off-heap and freed by close().
+ */
+public class PStepKernel implements AutoCloseable {
+
+	/** Default parameters (same as magnum) */
+	final static public double DEFAULT_ALPHA = 2;
+	final static public int DEFAULT_P = 4;
+	
+	/** The network */
+	final private SparseNetwork network;
+	/** Parameter a */
+	final private double alpha;
+	/** Number of steps p */
+	final private int p;
+	
+	/** Normalized adjacency N (same structure as the network, off-heap) */
+	private DoubleBuffer normWeights;
+	/** The off-heap buffer of normWeights */
+	private ByteBuffer normWeightsBuffer;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Constructor with default parameters */
+	public PStepKernel(SparseNetwork network) {
+		this(network, DEFAULT_ALPHA, DEFAULT_P);
+	}
+
+	
+	/** Constructor */
+	public PStepKernel(SparseNetwork network, double alpha, int p) {
+		
+		this.network = network;
+		this.alpha = alpha;
+		this.p = p;
+		
+		// N_ij = w_ij / sqrt(d_i d_j)
+		int[] rowPtr = network.getRowPtr();
+		IntBuffer colIdx = network.getColIdx();
+		FloatBuffer weights = network.getWeights();
+		double[] invSqrtDeg = network.getDegrees();
+		for (int i=0; i<invSqrtDeg.length; i++)
+			invSqrtDeg[i] = (invSqrtDeg[i] > 0) ? 1/Math.sqrt(invSqrtDeg[i]) : 0;
+		
+		normWeightsBuffer = OffHeap.allocate(network.getNumEntries(), 8);
+		normWeights = normWeightsBuffer.asDoubleBuffer();
+		for (int i=0; i<rowPtr.length-1; i++)
+			for (int k=rowPtr[i]; k<rowPtr[i+1]; k++)
+				normWeights.put(k, weights.get(k) * invSqrtDeg[i] * invSqrtDeg[colIdx.get(k)]);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** y = K*x, tmp is a work array of the same size (x is not modified) */
+	public void multiply(double[] x, double[] y, double[] tmp) {
+		
+		System.arraycopy(x, 0, y, 0, x.length);
+		for (int step=0; step<p; step++) {
+			multiplyStep(y, tmp);
+			System.arraycopy(tmp, 0, y, 0, y.length);
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Row i of the kernel (the kernel is symmetric, row i = K*e_i) */
+	public void computeRow(int i, double[] row, double[] tmp) {
+		
+		Arrays.fill(row, 0);
+		row[i] = 1;
+		for (int step=0; step<p; step++) {
+			multiplyStep(row, tmp);
+			System.arraycopy(tmp, 0, row, 0, row.length);
+		}
+	}
+	
+	
+    // ----------------------------------------------------------------------------
+
+	/** Free the off-heap normalized adjacency (the network is closed separately) */
+	@Override
+	public void close() {
+		
+		OffHeap.free(normWeightsBuffer);
+		normWeightsBuffer = null;
+		normWeights = null;
+	}
+	
+	
+	// ============================================================================
+	// PACKAGE METHODS
+
+	/** 
+	 * y = ((a-1)I + N)*x for the indicator vector x of the given nodes. Only the rows of 
+	 * these nodes are visited (N is symmetric, column i = row i).
+	 */
+	void multiplyStepIndicator(int[] nodes, int numNodes, double[] y) {
+		
+		int[] rowPtr = network.getRowPtr();
+		IntBuffer colIdx = network.getColIdx();
+		double diag = alpha - 1;
+		
+		Arrays.fill(y, 0);
+		for (int n=0; n<numNodes; n++) {
+			int i = nodes[n];
+			y[i] += diag;
+			for (int k=rowPtr[i]; k<rowPtr[i+1]; k++)
+				y[colIdx.get(k)] += normWeights.get(k);
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** y = ((a-1)I + N)*x */
+	void multiplyStep(double[] x, double[] y) {
+		
+		int[] rowPtr = network.getRowPtr();
+		IntBuffer colIdx = network.getColIdx();
+		double diag = alpha - 1;
+		
+		for (int i=0; i<y.length; i++) {
+			double sum = diag * x[i];
+			for (int k=rowPtr[i]; k<rowPtr[i+1]; k++)
+				sum += normWeights.get(k) * x[colIdx.get(k)];
+			y[i] = sum;
+		}
+	}
+
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public SparseNetwork getNetwork() { return network; }
+	public int getNumNodes() { return network.getNumNodes(); }
+	public double getAlpha() { return alpha; }
+	public int getP() { return p; }
+	public long getMemory() { return 12L*network.getNumEntries() + 4L*network.getRowPtr().length; }
+	
+}
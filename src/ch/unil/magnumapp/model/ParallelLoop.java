@@ -0,0 +1,71 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel loop over the indexes 0..n-1 that always drains before it returns. A plain 
+ * parallel forEach returns as soon as one index fails (e.g. interrupt thrown by the 
+ * logger), while the other threads are still reading the kernels. These may then be
+ * freed by the job (see OffHeap), which would crash the JVM. Here, the first failure
+ * cancels the indexes that did not start yet, and it is rethrown once all running 
+ * indexes finished.
+ */
+public class ParallelLoop {
+
+	/** Number of kernel rows per parallel chunk for loops that allocate row buffers once per chunk */
+	final static public int CHUNK_SIZE = 64;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Run the body for each index in parallel, rethrow the first failure after all threads finished */
+	public static void forEach(int n, IntConsumer body) {
+		
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		IntStream.range(0, n).parallel().forEach(i -> {
+			// Cancelled
+			if (failure.get() != null)
+				return;
+			try {
+				body.accept(i);
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+			}
+		});
+		
+		Throwable e = failure.get();
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * Allocates a global permutation budget over the networks of a sweep, instead of the 
+ * same number of permutations for every network. All networks are first screened with 
+ * a small number of permutations. Then, in each round, the networks whose p-value is 
+ * not resolved get GROWTH times more permutations (up to the maximum per network), 
+ * the networks closest to the threshold first, until the budget is spent.
+ * 
+ * A p-value is resolved if its confidence interval (Wilson score interval of the 
+ * fraction of permutations with a larger statistic) does not contain the Bonferroni 
+ * threshold alpha / number of networks. Each round only runs the additional 
+ * permutations of the networks (see PermutationState).
+ */
+public class PermutationBudget {
+
+	/** Default family-wise significance level */
+	final static public double DEFAULT_ALPHA = 0.05;
+	/** Permutations of the screening round */
+	final static public int SCREEN_PERMUTATIONS = 1000;
+	/** Factor by which the permutations of an unresolved network grow in each round */
+	final static public int GROWTH = 10;
+	/** Quantile of the confidence intervals (99%, two-sided) */
+	final static private double Z = 2.576;
+	
+	/** The networks of the sweep */
+	private List<NetworkModel> networks;
+	/** The global budget (total number of permutations) */
+	private long budget;
+	/** Permutations spent so far */
+	private long spent = 0;
+	/** Maximum number of permutations per network (size of the permutation plan) */
+	private int maxPermutations;
+	/** Bonferroni threshold */
+	private double threshold;
+	/** Number of rounds so far (including screening) */
+	private int numRounds = 0;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Constructor */
+	public PermutationBudget(List<NetworkModel> networks, long budget, int maxPermutations, double alpha) {
+		
+		this.networks = networks;
+		this.budget = budget;
+		this.maxPermutations = maxPermutations;
+		threshold = alpha / networks.size();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The screening round: all networks with a small number of permutations */
+	public LinkedHashMap<NetworkModel, Integer> getScreening(MagnumLogger log) {
+		
+		int numScreen = getNumScreenPermutations();
+		LinkedHashMap<NetworkModel, Integer> round = new LinkedHashMap<>();
+		for (NetworkModel network : networks)
+			round.put(network, numScreen);
+		spent = (long) numScreen * networks.size();
+		numRounds = 1;
+		
+		log.println("Permutation budget: " + budget + " permutations for " + networks.size() + " networks (Bonferroni threshold " 
+				+ String.format("%.3g", threshold) + ")");
+		log.println("- Round 1: screening with " + numScreen + " permutations per network\n");
+		return round;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** 
+	 * The networks of the next round and their new number of permutations, given the p-values 
+	 * and number of permutations of the results so far. Empty if all p-values are resolved or 
+	 * the budget is spent.
+	 */
+	public LinkedHashMap<NetworkModel, Integer> getNextRound(Map<String, Double> pvals, Map<String, Integer> counts, MagnumLogger log) {
+		
+		// Unresolved networks, closest to the threshold first
+		ArrayList<NetworkModel> unresolved = new ArrayList<>();
+		for (NetworkModel network : networks)
+			if (counts.containsKey(network.getName()) && counts.get(network.getName()) < maxPermutations
+					&& !isResolved(pvals.get(network.getName()), counts.get(network.getName())))
+				unresolved.add(network);
+		unresolved.sort(Comparator.comparingDouble(network -> Math.abs(Math.log(pvals.get(network.getName()) / threshold))));
+		
+		LinkedHashMap<NetworkModel, Integer> round = new LinkedHashMap<>();
+		for (NetworkModel network : unresolved) {
+			int count = counts.get(network.getName());
+			long target = Math.min(maxPermutations, (long) count * GROWTH);
+			target = Math.min(target, count + budget - spent);
+			if (target <= count)
+				break;
+			round.put(network, (int) target);
+			spent += target - count;
+		}
+		
+		if (!round.isEmpty()) {
+			numRounds++;
+			log.println("Permutation budget: " + unresolved.size() + " networks unresolved, spent " + spent + " of " + budget);
+			log.println("- Round " + numRounds + ": " + round.size() + " networks get more permutations\n");
+		}
+		return round;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Print the final permutation counts and the networks that are still unresolved */
+	public void printSummary(Map<String, Double> pvals, Map<String, Integer> counts, MagnumLogger log) {
+		
+		int numSignificant = 0;
+		int numUnresolved = 0;
+		for (NetworkModel network : networks) {
+			String name = network.getName();
+			if (!counts.containsKey(name))
+				continue;
+			if (!isResolved(pvals.get(name), counts.get(name)))
+				numUnresolved++;
+			else if (pvals.get(name) < threshold)
+				numSignificant++;
+		}
+		log.println("Permutation budget: spent " + spent + " of " + budget + " permutations in " + numRounds + " rounds");
+		log.println("- " + numSignificant + " networks significant, " + numUnresolved + " unresolved (at "
+				+ String.format("%.3g", threshold) + ", see the Permutations column of the result file)\n");
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The permutations per network of the screening round */
+	public int getNumScreenPermutations() {
+		return Math.min(SCREEN_PERMUTATIONS, maxPermutations);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Wilson score interval of the p-value (1 + numLarger) / (1 + numPermutations) */
+	public static double[] getConfidenceInterval(double pval, int numPermutations) {
+		
+		// Fraction of the permutations with a larger statistic
+		double numLarger = Math.max(0, pval * (1 + numPermutations) - 1);
+		double p = numLarger / numPermutations;
+		double z2 = Z*Z / numPermutations;
+		double center = (p + z2/2) / (1 + z2);
+		double halfWidth = Z * Math.sqrt(p*(1-p)/numPermutations + z2/(4*numPermutations)) / (1 + z2);
+		return new double[] {Math.max(0, center - halfWidth), Math.min(1, center + halfWidth)};
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** True if the confidence interval of the p-value doesn't contain the threshold */
+	private boolean isResolved(double pval, int numPermutations) {
+		
+		double[] interval = getConfidenceInterval(pval, numPermutations);
+		return threshold < interval[0] || threshold > interval[1];
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public long getBudget() { return budget; }
+	public long getSpent() { return spent; }
+	public double getThreshold() { return threshold; }
+	
+}
@@ -0,0 +1,141 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.util.SplittableRandom;
+
+/**
+ * The random gene permutations of a sweep, defined once per GWAS and shared 
+ * read-only by the jobs of all networks (see ConnectivityEnrichment.setPlan()). 
+ * All networks are thus scored against the same null draws, which makes their
+ * p-values comparable.
+ * 
+ * A permutation is a random order of the ranks of the gene scores. The random gene
+ * set of a network at a given cutoff is the first genes in this order that are in 
+ * the network, which is a uniform random gene set of the network. The orders are not
+ * stored: permutation i is drawn on demand by a Fisher-Yates shuffle seeded from the
+ * seed of the plan and i, which stops as soon as the set is complete (typically after
+ * 10-15% of the genes). The plan is thus reproducible, takes no memory whatever the
+ * number of permutations, and a top-up continues the same sequence (see PermutationState).
+ */
+public class PermutationPlan {
+
+	/** Seed of the plans created by the App (the same for all sweeps) */
+	final static public long DEFAULT_SEED = 20150301;
+	/** Version of the draws, part of the keys of saved permutation states */
+	final static public int VERSION = 2;
+	
+	/** Number of genes (ranks) */
+	final private int numGenes;
+	/** The seed */
+	final private long seed;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Create the plan for the ranks of the given number of genes */
+	public static PermutationPlan create(int numGenes, long seed) {
+		return new PermutationPlan(numGenes, seed);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** A workspace for fill(), one per thread (the identity order of the ranks and the undo list of the shuffle) */
+	public int[] createWorkspace() {
+		
+		int[] workspace = new int[2*numGenes];
+		for (int r=0; r<numGenes; r++)
+			workspace[r] = r;
+		return workspace;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** 
+	 * Write the first maxSize nodes of the given permutation to ranking. The network is 
+	 * given by the node of each rank (-1 if not in the network), it must have at least
+	 * maxSize nodes with a score. The workspace is restored before returning.
+	 */
+	public void fill(int perm, int[] rankToNode, int[] ranking, int maxSize, int[] workspace) {
+		
+		SplittableRandom random = new SplittableRandom(getPermutationSeed(perm));
+		int n = 0;
+		int k = 0;
+		for (; k<numGenes && n<maxSize; k++) {
+			int swap = k + random.nextInt(numGenes - k);
+			int rank = workspace[swap];
+			workspace[swap] = workspace[k];
+			workspace[k] = rank;
+			workspace[numGenes + k] = swap;
+			
+			int node = (rank < rankToNode.length) ? rankToNode[rank] : -1;
+			if (node >= 0)
+				ranking[n++] = node;
+		}
+		if (n < maxSize)
+			throw new RuntimeException("The network has only " + n + " genes with a score");
+		
+		// Undo the swaps in reverse order (identity order again)
+		for (k--; k>=0; k--) {
+			int swap = workspace[numGenes + k];
+			int tmp = workspace[k]; workspace[k] = workspace[swap]; workspace[swap] = tmp;
+		}
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Constructor */
+	private PermutationPlan(int numGenes, long seed) {
+		
+		this.numGenes = numGenes;
+		this.seed = seed;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Seed of the given permutation (SplitMix64 finalizer, neighboring permutations are uncorrelated) */
+	private long getPermutationSeed(int perm) {
+		
+		long z = seed + 0x9E3779B97F4A7C15L * (perm + 1);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public int getNumGenes() { return numGenes; }
+	public long getSeed() { return seed; }
+	
+}
@@ -0,0 +1,210 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The permutation counts of an enrichment result, saved so that a later run with more 
+ * permutations only draws the additional ones (see ConnectivityEnrichment.setResume()).
+ * 
+ * The permutations of the app are taken from the PermutationPlan, which draws the same
+ * permutations in the same order for a given seed, whatever their total number. The 
+ * state thus stores the number of permutations done (the position in the plan), the 
+ * number of permutations with a statistic at least as large as the observed one, and 
+ * the mean curves used to compute the statistics. A top-up keeps these mean curves, so 
+ * that the counts of both runs are for the same statistic and can simply be added.
+ * 
+ * The key identifies the gene scores, network, kernel and plan of the result, states 
+ * with another key are ignored. Format: one "name<tab>values" line per field.
+ */
+public class PermutationState {
+
+	/** File extension */
+	final static public String EXTENSION = ".perm_state.txt";
+	
+	/** The gene scores, network, kernel and plan of the result */
+	final private String key;
+	/** Number of permutations done (next permutation of the plan) */
+	final private int numPermutations;
+	/** Number of permutations with a statistic >= observed, for each kernel */
+	final private int[] numLarger;
+	/** Observed statistic of each kernel */
+	final private double[] observedStatistics;
+	/** Mean curves over the permutations (see ConnectivityEnrichment) */
+	final private double[] meanCurves;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Constructor */
+	public PermutationState(String key, int numPermutations, int[] numLarger, double[] observedStatistics, double[] meanCurves) {
+		
+		this.key = key;
+		this.numPermutations = numPermutations;
+		this.numLarger = numLarger;
+		this.observedStatistics = observedStatistics;
+		this.meanCurves = meanCurves;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The state file of the given job in the given directory */
+	public static File getFile(File dir, String jobName) {
+		return new File(dir, jobName + EXTENSION);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Load the state, returns null if the file doesn't exist or has another key */
+	public static PermutationState load(File file, String key) {
+		
+		if (!file.exists())
+			return null;
+		
+		HashMap<String, String[]> fields = new HashMap<>();
+		try {
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] values = line.split("\t");
+				fields.put(values[0], values);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		if (!fields.containsKey("key") || fields.get("key").length != 2 || !fields.get("key")[1].equals(key))
+			return null;
+		try {
+			int numPermutations = Integer.parseInt(fields.get("numPermutations")[1]);
+			double[] observedStatistics = parse(fields.get("observedStatistics"));
+			double[] meanCurves = parse(fields.get("meanCurves"));
+			double[] counts = parse(fields.get("numLarger"));
+			int[] numLarger = new int[counts.length];
+			for (int t=0; t<counts.length; t++)
+				numLarger[t] = (int) counts[t];
+			if (numLarger.length != observedStatistics.length)
+				throw new RuntimeException("Inconsistent number of kernels");
+			return new PermutationState(key, numPermutations, numLarger, observedStatistics, meanCurves);
+			
+		} catch (RuntimeException e) {
+			throw new RuntimeException("Invalid permutation state file: " + file.getPath() + " (" + e.getMessage() + ")", e);
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Write the state (to a temporary file first) */
+	public void write(File file) {
+		
+		ArrayList<String> lines = new ArrayList<>();
+		lines.add("# Permutation state of an enrichment result (see PermutationState)");
+		lines.add("key\t" + key);
+		lines.add("numPermutations\t" + numPermutations);
+		lines.add(format("numLarger", numLarger));
+		lines.add(format("observedStatistics", observedStatistics));
+		lines.add(format("meanCurves", meanCurves));
+		
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The empirical p-value of the given kernel */
+	public double getPval(int kernelIndex) {
+		return (1.0 + numLarger[kernelIndex]) / (1.0 + numPermutations);
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Parse the values of a line (the first field is the name) */
+	private static double[] parse(String[] fields) {
+		
+		if (fields == null || fields.length < 2)
+			throw new RuntimeException("Missing field");
+		double[] values = new double[fields.length - 1];
+		for (int i=0; i<values.length; i++)
+			values[i] = Double.parseDouble(fields[i+1]);
+		return values;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Format a line */
+	private static String format(String name, int[] values) {
+		
+		StringBuilder line = new StringBuilder(name);
+		for (int value : values)
+			line.append("\t").append(value);
+		return line.toString();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Format a line (doubles are written with full precision) */
+	private static String format(String name, double[] values) {
+		
+		StringBuilder line = new StringBuilder(name);
+		for (double value : values)
+			line.append("\t").append(value);
+		return line.toString();
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public String getKey() { return key; }
+	public int getNumPermutations() { return numPermutations; }
+	public int getNumKernels() { return numLarger.length; }
+	public int[] getNumLarger() { return numLarger; }
+	public double[] getObservedStatistics() { return observedStatistics; }
+	public double[] getMeanCurves() { return meanCurves; }
+	
+}
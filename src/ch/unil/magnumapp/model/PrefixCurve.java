@@ -0,0 +1,97 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+/**
+ * Incremental evaluation of the connectivity curve of a ranking. Adding the gene g at 
+ * rank position p to the set of the genes ranked before it increases the sum of the 
+ * kernel entries within the set by
+ * 
+ *    inc[p] = K_gg + sum_{j before g} (K_gj + K_jg)
+ * 
+ * and the connectivity at each cutoff is the prefix sum of these increments. The whole
+ * curve thus costs about one pass over the largest gene set, instead of recomputing
+ * the sum for every cutoff. Row kernels (dense, quantized) use the symmetry of the
+ * kernel (inc[p] = K_gg + 2 sum_j K_gj, see GatherSum). The sparse kernel is not 
+ * symmetric (top-k per row): each stored entry K_ij within the set is added to the 
+ * increment of the later of the two genes. Other kernels (matrix-free) are evaluated 
+ * at each cutoff.
+ */
+public class PrefixCurve {
+
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** True if the curve of the given kernel can be computed incrementally */
+	public static boolean isIncremental(Kernel kernel) {
+		return kernel instanceof RowKernel || kernel instanceof SparseKernel;
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** 
+	 * Connectivity at each cutoff of the ranking (cutoffs are the sizes of the gene sets).
+	 * Position is a work array with one entry per node, -1 before and after the call.
+	 */
+	public static double[] compute(Kernel kernel, int[] ranking, int[] cutoffSizes, int[] position) {
+		
+		int size = cutoffSizes[cutoffSizes.length-1];
+		double[] increments = new double[size];
+		
+		if (kernel instanceof RowKernel) {
+			RowKernel rowKernel = (RowKernel) kernel;
+			for (int p=0; p<size; p++) {
+				int g = ranking[p];
+				increments[p] = kernel.get(g, g) + 2*rowKernel.sumRow(g, ranking, 0, p);
+			}
+			
+		} else if (kernel instanceof SparseKernel) {
+			SparseKernel sparseKernel = (SparseKernel) kernel;
+			for (int p=0; p<size; p++)
+				position[ranking[p]] = p;
+			for (int p=0; p<size; p++)
+				sparseKernel.addRowIncrements(ranking[p], position, increments);
+			for (int p=0; p<size; p++)
+				position[ranking[p]] = -1;
+			
+		} else {
+			throw new IllegalArgumentException("Kernel does not support incremental evaluation");
+		}
+		
+		// Prefix sums
+		double[] curve = new double[cutoffSizes.length];
+		double sum = 0;
+		int p = 0;
+		for (int c=0; c<cutoffSizes.length; c++) {
+			for (; p<cutoffSizes[c]; p++)
+				sum += increments[p];
+			curve[c] = sum;
+		}
+		return curve;
+	}
+	
+}
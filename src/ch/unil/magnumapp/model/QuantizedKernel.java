@@ -0,0 +1,241 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Dense kernel quantized to 8 or 16 bits with one scale per row: K_ij = scale_i * q_ij,
+ * with q_ij = round(K_ij / scale_i) and scale_i = max_j |K_ij| / (2^(bits-1) - 1).
+ * The absolute error of each entry is at most scale_i / 2, i.e. max_j |K_ij| / 254 
+ * (8 bits) or max_j |K_ij| / 65534 (16 bits). See KernelFile. Values are stored 
+ * off-heap and freed by close().
+ */
+public class QuantizedKernel implements RowKernel {
+
+	/** Number of nodes */
+	final private int numNodes;
+	/** Number of bits (8 or 16) */
+	final private int bits;
+	/** Scale of each row */
+	final private float[] scales;
+	/** Row-major values (off-heap) */
+	private OffHeapRows values;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Quantize a dense kernel */
+	public static QuantizedKernel quantize(DenseKernel kernel, int bits) {
+		
+		int numNodes = kernel.getNumNodes();
+		QuantizedKernel quantized = new QuantizedKernel(numNodes, bits);
+		float[] row = new float[numNodes];
+		byte[] row8 = (bits == 8) ? new byte[numNodes] : null;
+		short[] row16 = (bits == 16) ? new short[numNodes] : null;
+		
+		for (int i=0; i<numNodes; i++) {
+			kernel.getRow(i, row);
+			float max = 0;
+			for (int j=0; j<numNodes; j++)
+				max = Math.max(max, Math.abs(row[j]));
+			float scale = (max > 0) ? max / getMaxLevel(bits) : 1;
+			quantized.scales[i] = scale;
+			
+			for (int j=0; j<numNodes; j++) {
+				int q = Math.round(row[j] / scale);
+				if (bits == 8)
+					row8[j] = (byte) q;
+				else
+					row16[j] = (short) q;
+			}
+			if (bits == 8)
+				quantized.setRow(i, row8);
+			else
+				quantized.setRow(i, row16);
+		}
+		return quantized;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Kernel entry */
+	@Override
+	public double get(int i, int j) {
+		
+		int index = values.offset(i) + j;
+		return scales[i] * ((bits == 8) ? values.bytes(i).get(index) : values.shorts(i).get(index));
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum of the entries within the given nodes (the mask is not used), see GatherSum */
+	@Override
+	public double sumWithin(int[] nodes, int numNodes, boolean[] mask) {
+		return GatherSum.getScalar() ? sumSquare(nodes, numNodes) : sumTriangle(nodes, numNodes);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum of the entries within the given nodes, reference loop over the full square */
+	public double sumSquare(int[] nodes, int numNodes) {
+		
+		double sum = 0;
+		for (int n=0; n<numNodes; n++)
+			sum += sumRow(nodes[n], nodes, 0, numNodes);
+		return sum;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum of the entries within the given nodes, fast loop over the upper triangle of the sorted nodes */
+	public double sumTriangle(int[] nodes, int numNodes) {
+		
+		int[] sorted = GatherSum.sorted(nodes, numNodes);
+		double sum = 0;
+		for (int n=0; n<numNodes; n++) {
+			int i = sorted[n];
+			int offset = values.offset(i);
+			// Integer sum of the diagonal + twice the upper triangle of the row, then scaled
+			long rowSum;
+			if (bits == 8) {
+				ByteBuffer row = values.bytes(i);
+				rowSum = row.get(offset + i) + 2*GatherSum.sum(row, offset, sorted, n+1, numNodes);
+			} else {
+				ShortBuffer row = values.shorts(i);
+				rowSum = row.get(offset + i) + 2*GatherSum.sum(row, offset, sorted, n+1, numNodes);
+			}
+			sum += scales[i] * (double) rowSum;
+		}
+		return sum;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum of the entries of row i at the given nodes (integer sum, then scaled) */
+	@Override
+	public double sumRow(int i, int[] nodes, int from, int to) {
+		
+		int offset = values.offset(i);
+		long rowSum = (bits == 8) ? GatherSum.sum(values.bytes(i), offset, nodes, from, to) 
+				: GatherSum.sum(values.shorts(i), offset, nodes, from, to);
+		return scales[i] * (double) rowSum;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Memory used by the kernel (bytes, mostly off-heap) */
+	@Override
+	public long getMemory() {
+		return values.getMemory() + 4L*numNodes;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Free the off-heap memory */
+	@Override
+	public void close() {
+		values.close();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The largest quantization level for the given number of bits */
+	public static int getMaxLevel(int bits) {
+		return (1 << (bits-1)) - 1;
+	}
+	
+	
+	// ============================================================================
+	// PACKAGE METHODS
+
+	/** Constructor, allocates the values */
+	QuantizedKernel(int numNodes, int bits) {
+		
+		if (bits != 8 && bits != 16)
+			throw new IllegalArgumentException("Quantized kernels have 8 or 16 bits");
+		
+		this.numNodes = numNodes;
+		this.bits = bits;
+		scales = new float[numNodes];
+		values = new OffHeapRows(numNodes, numNodes, bits/8);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Copy row i (8 bits) to the given array */
+	void getRow(int i, byte[] row) {
+		
+		ByteBuffer segment = values.bytes(i).duplicate();
+		segment.position(values.offset(i));
+		segment.get(row, 0, numNodes);
+	}
+
+	/** Copy row i (16 bits) to the given array */
+	void getRow(int i, short[] row) {
+		
+		ShortBuffer segment = values.shorts(i).duplicate();
+		segment.position(values.offset(i));
+		segment.get(row, 0, numNodes);
+	}
+
+	/** Set row i (8 bits) */
+	void setRow(int i, byte[] row) {
+		
+		ByteBuffer segment = values.bytes(i).duplicate();
+		segment.position(values.offset(i));
+		segment.put(row, 0, numNodes);
+	}
+
+	/** Set row i (16 bits) */
+	void setRow(int i, short[] row) {
+		
+		ShortBuffer segment = values.shorts(i).duplicate();
+		segment.position(values.offset(i));
+		segment.put(row, 0, numNodes);
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	@Override
+	public int getNumNodes() { return numNodes; }
+	public int getBits() { return bits; }
+	float[] getScales() { return scales; }
+	
+}
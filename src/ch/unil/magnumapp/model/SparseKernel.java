@@ -0,0 +1,326 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * Sparse approximation of a PStepKernel in compressed sparse row format: only the 
+ * k largest entries per row (and/or the entries above a threshold) are kept. The 
+ * diagonal is always kept. Rows are computed in parallel without ever storing the
+ * dense kernel. The entries are stored off-heap and freed by close().
+ */
+public class SparseKernel implements Kernel {
+
+	/** Default number of entries kept per row */
+	final static public int DEFAULT_TOP_K = 100;
+	/** Number of rows sampled to estimate the approximation error */
+	final static public int NUM_ERROR_SAMPLE_ROWS = 200;
+	
+	/** Row pointers (numNodes+1) */
+	final private int[] rowPtr;
+	/** Column indexes, sorted within each row */
+	private IntBuffer colIdx;
+	/** Values */
+	private FloatBuffer values;
+	/** The off-heap buffers of colIdx and values */
+	private ByteBuffer colIdxBuffer;
+	private ByteBuffer valuesBuffer;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** 
+	 * Compute the sparse kernel, keeping the topK largest entries of each row (all 
+	 * entries if topK <= 0) that are larger than the threshold (no threshold if <= 0) 
+	 */
+	public static SparseKernel compute(PStepKernel exact, int topK, double threshold) {
+		
+		int numNodes = exact.getNumNodes();
+		int[][] rowCols = new int[numNodes][];
+		float[][] rowValues = new float[numNodes][];
+		
+		// Rows in parallel chunks, the buffers are freed with the chunk (not kept by the pool threads)
+		int numChunks = (numNodes + ParallelLoop.CHUNK_SIZE - 1) / ParallelLoop.CHUNK_SIZE;
+		ParallelLoop.forEach(numChunks, chunk -> {
+			double[] row = new double[numNodes];
+			double[] tmp = new double[numNodes];
+			int end = Math.min(numNodes, (chunk + 1)*ParallelLoop.CHUNK_SIZE);
+			for (int i=chunk*ParallelLoop.CHUNK_SIZE; i<end; i++) {
+				exact.computeRow(i, row, tmp);
+				
+				int[] cols = selectRow(row, i, topK, threshold);
+				float[] vals = new float[cols.length];
+				for (int k=0; k<cols.length; k++)
+					vals[k] = (float) row[cols[k]];
+				rowCols[i] = cols;
+				rowValues[i] = vals;
+			}
+		});
+		return new SparseKernel(rowCols, rowValues);
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Kernel entry (binary search in the row) */
+	@Override
+	public double get(int i, int j) {
+		
+		int low = rowPtr[i];
+		int high = rowPtr[i+1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int col = colIdx.get(mid);
+			if (col < j)
+				low = mid + 1;
+			else if (col > j)
+				high = mid - 1;
+			else
+				return values.get(mid);
+		}
+		return 0;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Sum of the entries within the given nodes (uses the mask) */
+	@Override
+	public double sumWithin(int[] nodes, int numNodes, boolean[] mask) {
+		
+		double sum = 0;
+		for (int n=0; n<numNodes; n++) {
+			int i = nodes[n];
+			for (int k=rowPtr[i]; k<rowPtr[i+1]; k++)
+				if (mask[colIdx.get(k)])
+					sum += values.get(k);
+		}
+		return sum;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Memory used by the kernel (bytes) */
+	@Override
+	public long getMemory() {
+		return 4L*rowPtr.length + 8L*getNumEntries();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Free the off-heap memory */
+	@Override
+	public void close() {
+		
+		OffHeap.free(colIdxBuffer);
+		OffHeap.free(valuesBuffer);
+		colIdxBuffer = null;
+		valuesBuffer = null;
+		colIdx = null;
+		values = null;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Log the approximation error, estimated on a sample of rows of the exact kernel */
+	public void printErrorReport(PStepKernel exact, MagnumLogger log) {
+		
+		int numNodes = getNumNodes();
+		int numSamples = Math.min(NUM_ERROR_SAMPLE_ROWS, numNodes);
+		double[] row = new double[numNodes];
+		double[] approx = new double[numNodes];
+		double[] tmp = new double[numNodes];
+		
+		double sumSqError = 0;
+		double sumSqExact = 0;
+		double maxAbsError = 0;
+		double sumRetained = 0;
+		double sumExact = 0;
+		
+		for (int s=0; s<numSamples; s++) {
+			// Evenly spaced rows
+			int i = (int) ((long) s * numNodes / numSamples);
+			exact.computeRow(i, row, tmp);
+			Arrays.fill(approx, 0);
+			for (int k=rowPtr[i]; k<rowPtr[i+1]; k++)
+				approx[colIdx.get(k)] = values.get(k);
+			
+			for (int j=0; j<numNodes; j++) {
+				double error = row[j] - approx[j];
+				sumSqError += error*error;
+				sumSqExact += row[j]*row[j];
+				maxAbsError = Math.max(maxAbsError, Math.abs(error));
+				sumRetained += approx[j];
+				sumExact += row[j];
+			}
+		}
+		
+		long denseMemory = 8L*numNodes*numNodes;
+		log.println("Sparse kernel approximation (" + numSamples + " sampled rows):");
+		log.println("- Entries per row:         " + String.format("%.1f", (double) getNumEntries() / numNodes));
+		log.println("- Relative Frobenius error: " + String.format("%.2e", Math.sqrt(sumSqError / sumSqExact)));
+		log.println("- Max absolute error:      " + String.format("%.2e", maxAbsError));
+		log.println("- Kernel mass retained:    " + String.format("%.2f%%", 100*sumRetained / sumExact));
+		log.println("- Memory:                  " + (getMemory() >> 20) + " MB (dense: " + (denseMemory >> 20) + " MB)");
+	}
+	
+	
+	// ============================================================================
+	// PACKAGE METHODS
+
+	/** 
+	 * Add each entry K_ij of row i with j in the gene set to increments[max(p_i, p_j)], 
+	 * where position is the rank position in the set (-1 if not in the set), see PrefixCurve
+	 */
+	void addRowIncrements(int i, int[] position, double[] increments) {
+		
+		int pi = position[i];
+		for (int k=rowPtr[i]; k<rowPtr[i+1]; k++) {
+			int pj = position[colIdx.get(k)];
+			if (pj >= 0)
+				increments[Math.max(pi, pj)] += values.get(k);
+		}
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Constructor */
+	private SparseKernel(int[][] rowCols, float[][] rowValues) {
+		
+		int numNodes = rowCols.length;
+		rowPtr = new int[numNodes+1];
+		for (int i=0; i<numNodes; i++)
+			rowPtr[i+1] = rowPtr[i] + rowCols[i].length;
+		
+		colIdxBuffer = OffHeap.allocate(rowPtr[numNodes], 4);
+		valuesBuffer = OffHeap.allocate(rowPtr[numNodes], 4);
+		colIdx = colIdxBuffer.asIntBuffer();
+		values = valuesBuffer.asFloatBuffer();
+		for (int i=0; i<numNodes; i++) {
+			// Relative puts, rows are in order
+			colIdx.put(rowCols[i]);
+			values.put(rowValues[i]);
+			rowCols[i] = null;
+			rowValues[i] = null;
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Columns of the entries kept for row i (sorted) */
+	private static int[] selectRow(double[] row, int i, int topK, double threshold) {
+		
+		int n = row.length;
+		
+		// Candidates above the threshold (the diagonal is handled separately)
+		int[] candidates = new int[n];
+		int numCandidates = 0;
+		for (int j=0; j<n; j++)
+			if (j != i && row[j] != 0 && (threshold <= 0 || row[j] >= threshold))
+				candidates[numCandidates++] = j;
+		
+		// Top k of the candidates: min-heap of size k
+		if (topK > 0 && numCandidates > topK - 1) {
+			int k = Math.max(0, topK - 1);
+			int[] heap = new int[k];
+			int size = 0;
+			for (int c=0; c<numCandidates; c++) {
+				int j = candidates[c];
+				if (size < k) {
+					heap[size] = j;
+					siftUp(heap, size++, row);
+				} else if (k > 0 && row[j] > row[heap[0]]) {
+					heap[0] = j;
+					siftDown(heap, k, row);
+				}
+			}
+			candidates = heap;
+			numCandidates = size;
+		}
+		
+		int[] cols = Arrays.copyOf(candidates, numCandidates + 1);
+		cols[numCandidates] = i;
+		Arrays.sort(cols);
+		return cols;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Min-heap (by row value) sift up */
+	private static void siftUp(int[] heap, int pos, double[] row) {
+		
+		while (pos > 0) {
+			int parent = (pos - 1) / 2;
+			if (row[heap[pos]] >= row[heap[parent]])
+				break;
+			int tmp = heap[pos]; heap[pos] = heap[parent]; heap[parent] = tmp;
+			pos = parent;
+		}
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Min-heap (by row value) sift down from the root */
+	private static void siftDown(int[] heap, int size, double[] row) {
+		
+		int pos = 0;
+		while (true) {
+			int child = 2*pos + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && row[heap[child+1]] < row[heap[child]])
+				child++;
+			if (row[heap[pos]] <= row[heap[child]])
+				break;
+			int tmp = heap[pos]; heap[pos] = heap[child]; heap[child] = tmp;
+			pos = child;
+		}
+	}
+
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	@Override
+	public int getNumNodes() { return rowPtr.length - 1; }
+	public int getNumEntries() { return rowPtr[rowPtr.length-1]; }
+	
+}
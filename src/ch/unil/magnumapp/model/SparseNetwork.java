@@ -0,0 +1,337 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import edu.mit.magnum.FileParser;
+import edu.mit.magnum.MagnumLogger;
+
+/**
+ * Undirected network in compressed sparse row (CSR) format. Nodes have a local 
+ * index (0..numNodes-1), the corresponding gene ids of the GeneDictionary are 
+ * given by getGeneId(). Directed networks are symmetrized (kernels are computed
+ * on the undirected network), duplicate edges keep the largest weight.
+ * 
+ * File format: one edge per line (gene1 gene2 [weight]), '#' for comments. Network 
+ * variants described by a NetworkDelta file are loaded from their base network.
+ * 
+ * The edges are stored off-heap and freed by close().
+ */
+public class SparseNetwork implements AutoCloseable {
+
+	/** Gene ids of the nodes */
+	final private int[] geneIds;
+	/** Local index of each gene id, -1 for genes that are not in the network */
+	final private int[] localIndex;
+	/** Row pointers (numNodes+1) */
+	final private int[] rowPtr;
+	/** Column indexes of the edges, sorted within each row (off-heap) */
+	private IntBuffer colIdx;
+	/** Edge weights (off-heap) */
+	private FloatBuffer weights;
+	/** The off-heap buffers of colIdx and weights */
+	private ByteBuffer colIdxBuffer;
+	private ByteBuffer weightsBuffer;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+	    
+	/** Load the network from the given file */
+	public static SparseNetwork load(File file, boolean isWeighted, boolean removeSelf, MagnumLogger log) {
+		
+		if (NetworkDelta.isDeltaFile(file)) {
+			log.println("Loading network variant: " + file.getPath());
+			NetworkDelta delta = NetworkDelta.load(file);
+			try (SparseNetwork base = load(delta.getBaseFile(), isWeighted, removeSelf, log)) {
+				return delta.apply(base, log);
+			}
+		}
+		
+		log.println("Loading network: " + file.getPath());
+		FileParser reader = new FileParser(log, file);
+		
+		// Local index of each gene id (grown as needed, truncated at the end)
+		int[] index = new int[GeneDictionary.size() + 1024];
+		Arrays.fill(index, -1);
+		int[] nodes = new int[1024];
+		int numNodes = 0;
+		
+		// Edge list, each edge is added in both directions
+		int[] from = new int[1024];
+		int[] to = new int[1024];
+		float[] w = new float[1024];
+		int numEntries = 0;
+		
+		while (true) {
+			String[] nextLine = reader.readLine();
+			if (nextLine == null)
+				break;
+			if (nextLine.length == 0 || nextLine[0].startsWith("#"))
+				continue;
+			if (nextLine.length < 2 || (isWeighted && nextLine.length < 3))
+				reader.error("Expected " + (isWeighted ? 3 : 2) + " columns (gene1, gene2" + (isWeighted ? ", weight)" : ")"));
+			
+			int id1 = GeneDictionary.getId(nextLine[0]);
+			int id2 = GeneDictionary.getId(nextLine[1]);
+			if (id1 == id2 && removeSelf)
+				continue;
+			float weight = isWeighted ? Float.parseFloat(nextLine[2]) : 1f;
+			
+			// Map to local indexes
+			int maxId = Math.max(id1, id2);
+			if (maxId >= index.length) {
+				int oldLength = index.length;
+				index = Arrays.copyOf(index, Math.max(2*oldLength, maxId+1));
+				Arrays.fill(index, oldLength, index.length, -1);
+			}
+			for (int id : new int[] {id1, id2}) {
+				if (index[id] == -1) {
+					if (numNodes == nodes.length)
+						nodes = Arrays.copyOf(nodes, 2*nodes.length);
+					nodes[numNodes] = id;
+					index[id] = numNodes++;
+				}
+			}
+			
+			if (numEntries + 2 > from.length) {
+				from = Arrays.copyOf(from, 2*from.length);
+				to = Arrays.copyOf(to, 2*to.length);
+				w = Arrays.copyOf(w, 2*w.length);
+			}
+			from[numEntries] = index[id1];
+			to[numEntries] = index[id2];
+			w[numEntries++] = weight;
+			if (id1 != id2) {
+				from[numEntries] = index[id2];
+				to[numEntries] = index[id1];
+				w[numEntries++] = weight;
+			}
+		}
+		reader.close();
+		
+		SparseNetwork network = new SparseNetwork(Arrays.copyOf(nodes, numNodes), from, to, w, numEntries);
+		log.println("- " + network.getNumNodes() + " nodes, " + network.getNumEdges() + " undirected edges");
+		return network;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The local index of the given gene id, -1 if it is not in the network */
+	public int getLocalIndex(int geneId) {
+		return (geneId < localIndex.length) ? localIndex[geneId] : -1;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Number of undirected edges (self-loops count once) */
+	public int getNumEdges() {
+		
+		int numSelf = 0;
+		for (int i=0; i<getNumNodes(); i++)
+			for (int k=rowPtr[i]; k<rowPtr[i+1]; k++)
+				if (colIdx.get(k) == i)
+					numSelf++;
+		return (getNumEntries() + numSelf) / 2;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Weighted degree of each node */
+	public double[] getDegrees() {
+		
+		double[] degrees = new double[getNumNodes()];
+		for (int i=0; i<degrees.length; i++)
+			for (int k=rowPtr[i]; k<rowPtr[i+1]; k++)
+				degrees[i] += weights.get(k);
+		return degrees;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** The rank in the given gene scores of each node, -1 for nodes without score */
+	public int[] getRanks(GeneScores geneScores) {
+		
+		int[] ranks = new int[getNumNodes()];
+		for (int i=0; i<ranks.length; i++)
+			ranks[i] = geneScores.getRank(geneIds[i]);
+		return ranks;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Free the off-heap memory */
+	@Override
+	public void close() {
+		
+		OffHeap.free(colIdxBuffer);
+		OffHeap.free(weightsBuffer);
+		colIdxBuffer = null;
+		weightsBuffer = null;
+		colIdx = null;
+		weights = null;
+	}
+	
+	
+	// ============================================================================
+	// PACKAGE METHODS
+
+	/** 
+	 * A copy without self-loops (if removeSelf is set), edges with a lower weight than 
+	 * minWeight (if not NaN) and the given nodes. Nodes without remaining edges are removed.
+	 */
+	SparseNetwork filter(boolean removeSelf, float minWeight, boolean[] removedNodes) {
+		
+		int numEntries = getNumEntries();
+		int[] from = new int[numEntries];
+		int[] to = new int[numEntries];
+		float[] w = new float[numEntries];
+		int[] newIndex = new int[getNumNodes()];
+		Arrays.fill(newIndex, -1);
+		int numNodes = 0;
+		int numKept = 0;
+		
+		// Entries are already in both directions, new indexes in order of first occurrence
+		for (int i=0; i<getNumNodes(); i++) {
+			for (int k=rowPtr[i]; k<rowPtr[i+1]; k++) {
+				int j = colIdx.get(k);
+				float weight = weights.get(k);
+				if (removedNodes[i] || removedNodes[j] || (removeSelf && i == j) || weight < minWeight)
+					continue;
+				if (newIndex[i] == -1)
+					newIndex[i] = numNodes++;
+				if (newIndex[j] == -1)
+					newIndex[j] = numNodes++;
+				from[numKept] = newIndex[i];
+				to[numKept] = newIndex[j];
+				w[numKept++] = weight;
+			}
+		}
+		
+		int[] ids = new int[numNodes];
+		for (int i=0; i<getNumNodes(); i++)
+			if (newIndex[i] != -1)
+				ids[newIndex[i]] = geneIds[i];
+		return new SparseNetwork(ids, from, to, w, numKept);
+	}
+	
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Constructor, builds the CSR structure from the given directed entries */
+	private SparseNetwork(int[] geneIds, int[] from, int[] to, float[] w, int numEntries) {
+		
+		this.geneIds = geneIds;
+		int numNodes = geneIds.length;
+		
+		localIndex = new int[GeneDictionary.size()];
+		Arrays.fill(localIndex, -1);
+		for (int i=0; i<numNodes; i++)
+			localIndex[geneIds[i]] = i;
+		
+		// Count entries per row and fill (not yet sorted, may contain duplicates)
+		int[] ptr = new int[numNodes+1];
+		for (int k=0; k<numEntries; k++)
+			ptr[from[k]+1]++;
+		for (int i=0; i<numNodes; i++)
+			ptr[i+1] += ptr[i];
+		
+		int[] cols = new int[numEntries];
+		float[] vals = new float[numEntries];
+		int[] next = Arrays.copyOf(ptr, numNodes);
+		for (int k=0; k<numEntries; k++) {
+			int pos = next[from[k]]++;
+			cols[pos] = to[k];
+			vals[pos] = w[k];
+		}
+		
+		// Sort each row and merge duplicates (largest weight)
+		rowPtr = new int[numNodes+1];
+		int numUnique = 0;
+		long[] row = new long[16];
+		float[] rowVals = new float[16];
+		for (int i=0; i<numNodes; i++) {
+			int len = ptr[i+1] - ptr[i];
+			if (row.length < len) {
+				row = new long[Math.max(len, 2*row.length)];
+				rowVals = new float[row.length];
+			}
+			// Pack column (high bits) and position in row (low bits) to sort both at once
+			for (int k=0; k<len; k++) {
+				row[k] = ((long) cols[ptr[i]+k] << 32) | k;
+				rowVals[k] = vals[ptr[i]+k];
+			}
+			Arrays.sort(row, 0, len);
+			
+			int last = -1;
+			for (int k=0; k<len; k++) {
+				int col = (int) (row[k] >>> 32);
+				float val = rowVals[(int) row[k]];
+				if (col == last) {
+					if (val > vals[numUnique-1])
+						vals[numUnique-1] = val;
+				} else {
+					// In place, numUnique <= ptr[i]+k
+					cols[numUnique] = col;
+					vals[numUnique++] = val;
+					last = col;
+				}
+			}
+			rowPtr[i+1] = numUnique;
+		}
+		colIdxBuffer = OffHeap.allocate(numUnique, 4);
+		weightsBuffer = OffHeap.allocate(numUnique, 4);
+		colIdx = colIdxBuffer.asIntBuffer();
+		weights = weightsBuffer.asFloatBuffer();
+		colIdx.put(cols, 0, numUnique);
+		weights.put(vals, 0, numUnique);
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	public int getNumNodes() { return geneIds.length; }
+	public int getGeneId(int node) { return geneIds[node]; }
+	public int[] getRowPtr() { return rowPtr; }
+	public int getNumEntries() { return rowPtr[rowPtr.length-1]; }
+	/** Off-heap column indexes (absolute access only) */
+	public IntBuffer getColIdx() { return colIdx; }
+	/** Off-heap weights (absolute access only) */
+	public FloatBuffer getWeights() { return weights; }
+	
+}
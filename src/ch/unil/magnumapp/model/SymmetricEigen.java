@@ -0,0 +1,255 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+/**
+ * Eigendecomposition of a dense symmetric matrix A = V diag(d) V' by Householder
+ * tridiagonalization and the implicit QL algorithm (tred2 and tql2 of the public
+ * domain JAMA library / EISPACK). Both steps work on the transposed eigenvector
+ * matrix (the input is symmetric, so it is its own transpose), so that the inner 
+ * loops run along rows. O(n^3) time and one n x n double matrix.
+ */
+class SymmetricEigen {
+
+	/** Eigenvalues (not sorted) */
+	final private double[] d;
+	/** Work array (off-diagonal of the tridiagonal matrix) */
+	final private double[] e;
+	/** Input matrix, replaced by the transposed eigenvectors (see getEigenvector()) */
+	final private double[][] v;
+	/** Size */
+	final private int n;
+	
+	
+	// ============================================================================
+	// PACKAGE METHODS
+	    
+	/** Decompose the given symmetric matrix (overwritten) */
+	SymmetricEigen(double[][] a) {
+		
+		n = a.length;
+		v = a;
+		d = new double[n];
+		e = new double[n];
+		tred2();
+		tql2();
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Entry i of eigenvector k */
+	double getEigenvector(int i, int k) {
+		return v[k][i];
+	}
+
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Householder reduction to tridiagonal form (JAMA, on the transposed matrix) */
+	private void tred2() {
+		
+		for (int j=0; j<n; j++)
+			d[j] = v[j][n-1];
+
+		for (int i=n-1; i>0; i--) {
+			// Scale to avoid under/overflow
+			double scale = 0;
+			double h = 0;
+			for (int k=0; k<i; k++)
+				scale += Math.abs(d[k]);
+			
+			if (scale == 0) {
+				e[i] = d[i-1];
+				for (int j=0; j<i; j++) {
+					d[j] = v[j][i-1];
+					v[j][i] = 0;
+					v[i][j] = 0;
+				}
+			} else {
+				// Generate Householder vector
+				for (int k=0; k<i; k++) {
+					d[k] /= scale;
+					h += d[k] * d[k];
+				}
+				double f = d[i-1];
+				double g = Math.sqrt(h);
+				if (f > 0)
+					g = -g;
+				e[i] = scale * g;
+				h = h - f * g;
+				d[i-1] = f - g;
+				for (int j=0; j<i; j++)
+					e[j] = 0;
+
+				// Apply similarity transformation to remaining columns
+				for (int j=0; j<i; j++) {
+					f = d[j];
+					v[i][j] = f;
+					g = e[j] + v[j][j] * f;
+					for (int k=j+1; k<=i-1; k++) {
+						g += v[j][k] * d[k];
+						e[k] += v[j][k] * f;
+					}
+					e[j] = g;
+				}
+				f = 0;
+				for (int j=0; j<i; j++) {
+					e[j] /= h;
+					f += e[j] * d[j];
+				}
+				double hh = f / (h + h);
+				for (int j=0; j<i; j++)
+					e[j] -= hh * d[j];
+				for (int j=0; j<i; j++) {
+					f = d[j];
+					g = e[j];
+					for (int k=j; k<=i-1; k++)
+						v[j][k] -= (f * e[k] + g * d[k]);
+					d[j] = v[j][i-1];
+					v[j][i] = 0;
+				}
+			}
+			d[i] = h;
+		}
+
+		// Accumulate transformations
+		for (int i=0; i<n-1; i++) {
+			v[i][n-1] = v[i][i];
+			v[i][i] = 1;
+			double h = d[i+1];
+			if (h != 0) {
+				for (int k=0; k<=i; k++)
+					d[k] = v[i+1][k] / h;
+				for (int j=0; j<=i; j++) {
+					double g = 0;
+					for (int k=0; k<=i; k++)
+						g += v[i+1][k] * v[j][k];
+					for (int k=0; k<=i; k++)
+						v[j][k] -= g * d[k];
+				}
+			}
+			for (int k=0; k<=i; k++)
+				v[i+1][k] = 0;
+		}
+		for (int j=0; j<n; j++) {
+			d[j] = v[j][n-1];
+			v[j][n-1] = 0;
+		}
+		v[n-1][n-1] = 1;
+		e[0] = 0;
+	}
+
+	
+    // ----------------------------------------------------------------------------
+
+	/** Symmetric tridiagonal QL algorithm (JAMA), rotations applied to the rows of v (transposed) */
+	private void tql2() {
+		
+		for (int i=1; i<n; i++)
+			e[i-1] = e[i];
+		e[n-1] = 0;
+
+		double f = 0;
+		double tst1 = 0;
+		double eps = Math.pow(2, -52);
+		for (int l=0; l<n; l++) {
+			// Find small subdiagonal element
+			tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+			int m = l;
+			while (m < n) {
+				if (Math.abs(e[m]) <= eps*tst1)
+					break;
+				m++;
+			}
+
+			// If m == l, d[l] is an eigenvalue, otherwise iterate
+			if (m > l) {
+				do {
+					// Compute implicit shift
+					double g = d[l];
+					double p = (d[l+1] - g) / (2 * e[l]);
+					double r = Math.hypot(p, 1);
+					if (p < 0)
+						r = -r;
+					d[l] = e[l] / (p + r);
+					d[l+1] = e[l] * (p + r);
+					double dl1 = d[l+1];
+					double h = g - d[l];
+					for (int i=l+2; i<n; i++)
+						d[i] -= h;
+					f = f + h;
+
+					// Implicit QL transformation
+					p = d[m];
+					double c = 1;
+					double c2 = c;
+					double c3 = c;
+					double el1 = e[l+1];
+					double s = 0;
+					double s2 = 0;
+					for (int i=m-1; i>=l; i--) {
+						c3 = c2;
+						c2 = c;
+						s2 = s;
+						g = c * e[i];
+						h = c * p;
+						r = Math.hypot(p, e[i]);
+						e[i+1] = s * r;
+						s = e[i] / r;
+						c = p / r;
+						p = c * d[i] - s * g;
+						d[i+1] = h + s * (c * g + s * d[i]);
+
+						// Accumulate transformation (rows i and i+1 of the transposed vectors)
+						double[] vi = v[i];
+						double[] vi1 = v[i+1];
+						for (int k=0; k<n; k++) {
+							h = vi1[k];
+							vi1[k] = s * vi[k] + c * h;
+							vi[k] = c * vi[k] - s * h;
+						}
+					}
+					p = -s * s2 * c3 * el1 * e[l] / dl1;
+					e[l] = s * p;
+					d[l] = c * p;
+
+				} while (Math.abs(e[l]) > eps*tst1);
+			}
+			d[l] = d[l] + f;
+			e[l] = 0;
+		}
+	}
+	
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+	/** The eigenvalues, the eigenvector of d[k] is getEigenvector(., k) */
+	double[] getEigenvalues() { return d; }
+	
+}
@@ -0,0 +1,101 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.model;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream limited to the given bandwidth, used to write kernel files in the background
+ * without starving the I/O of the running jobs. The writer sleeps whenever it is ahead of
+ * the allowed average rate (measured since the stream was opened).
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+
+	/** Bandwidth limit (bytes per second), 0 for unlimited */
+	private long bytesPerSecond;
+	/** Bytes written so far */
+	private long numBytes = 0;
+	/** Time when the stream was opened (ns) */
+	private long t0;
+	
+	
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor */
+	public ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+		
+		super(out);
+		this.bytesPerSecond = bytesPerSecond;
+		t0 = System.nanoTime();
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	@Override
+	public void write(int b) throws IOException {
+		
+		out.write(b);
+		throttle(1);
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		
+		out.write(b, off, len);
+		throttle(len);
+	}
+
+	
+	// ============================================================================
+	// PRIVATE METHODS
+
+	/** Sleep until the average rate is within the limit */
+	private void throttle(int len) throws IOException {
+		
+		numBytes += len;
+		if (bytesPerSecond <= 0)
+			return;
+		
+		long aheadNs = numBytes * 1000000000L / bytesPerSecond - (System.nanoTime() - t0);
+		if (aheadNs > 1000000) {
+			try {
+				Thread.sleep(aheadNs / 1000000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Kernel export interrupted");
+			}
+		}
+	}
+
+}
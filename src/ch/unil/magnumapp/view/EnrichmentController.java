@@ -28,14 +28,31 @@ package ch.unil.magnumapp.view;
 import java.io.File;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 
 import ch.unil.magnumapp.AppSettings;
 import ch.unil.magnumapp.App;
 import ch.unil.magnumapp.JobMagnum;
 import ch.unil.magnumapp.JobEnrichment;
+import ch.unil.magnumapp.JobParameterSweep;
+import ch.unil.magnumapp.JobPipeline;
+import ch.unil.magnumapp.JobPrecomputeKernel;
+import ch.unil.magnumapp.JobPreview;
+import ch.unil.magnumapp.model.GeneScores;
+import ch.unil.magnumapp.model.HierarchicalSweep;
+import ch.unil.magnumapp.model.KernelCache;
+import ch.unil.magnumapp.model.KernelMode;
+import ch.unil.magnumapp.model.NetworkDelta;
 import ch.unil.magnumapp.model.NetworkModel;
+import ch.unil.magnumapp.model.PermutationBudget;
+import ch.unil.magnumapp.model.PermutationPlan;
+import ch.unil.magnumapp.model.SparseKernel;
 import edu.mit.magnum.FileExport;
 import edu.mit.magnum.MagnumSettings;
 import javafx.application.Platform;
@@ -84,6 +101,22 @@ public class EnrichmentController extends ViewController {
 	
 	/** Writes the enrichment scores for each job */
 	private FileExport scoreWriter;
+	/** Live plot of the current run (null if disabled) */
+	private EnrichmentPlotController livePlot;
+	/** Gene scores of the current run, preprocessed once and shared by all jobs */
+	private GeneScores geneScores;
+	/** Permutations of the current run, shared by all jobs (kernels computed by the app) */
+	private PermutationPlan permutationPlan;
+	/** The kernel directory of the current run, managed with a disk budget (kernels computed by the app) */
+	private KernelCache kernelCache;
+	/** Loads the networks of upcoming jobs and writes the results in the background */
+	private JobPipeline pipeline;
+	/** The p-values of the current run by network name (filled by the write stage, read between stages) */
+	private HashMap<String, Double> runScores = new HashMap<>();
+	/** The number of permutations of these p-values */
+	private HashMap<String, Integer> runPermutations = new HashMap<>();
+	/** The current run is a preview (see JobPreview) */
+	private boolean preview = false;
 	
 	/** Flag to disable the warning for multiple cores */
 	private boolean disableNumCoresWarning = false;
@@ -120,6 +153,10 @@ public class EnrichmentController extends ViewController {
     private Button outputDirBrowseButton;
     @FXML
     private CheckBox exportKernelsCheckBox;
+    @FXML
+    private CheckBox useJobQueueCheckBox;
+    @FXML
+    private CheckBox topUpPermutationsCheckBox;
     
     /** Parameters */
     @FXML
@@ -139,8 +176,46 @@ public class EnrichmentController extends ViewController {
     @FXML
     private Label numCoresLabel;
     @FXML
+    private Label kernelModeLabel;
+    @FXML
+    private ChoiceBox<KernelMode> kernelModeChoiceBox;
+    @FXML
+    private Label kernelTopKLabel;
+    @FXML
+    private TextField kernelTopKTextField;
+    @FXML
+    private Label kernelSweepLabel;
+    @FXML
+    private TextField kernelSweepTextField;
+    @FXML
+    private CheckBox hierarchicalCheckBox;
+    @FXML
+    private Label hierarchicalLabel;
+    @FXML
+    private Label descendThresholdLabel;
+    @FXML
+    private TextField descendThresholdTextField;
+    @FXML
+    private Label verifyPercentLabel;
+    @FXML
+    private TextField verifyPercentTextField;
+    @FXML
+    private CheckBox permutationBudgetCheckBox;
+    @FXML
+    private Label permutationBudgetLabel;
+    @FXML
+    private Label totalPermutationsLabel;
+    @FXML
+    private TextField totalPermutationsTextField;
+    @FXML
     private Button exportSettingsButton;
     @FXML
+    private Button precomputeKernelsButton;
+    @FXML
+    private Button previewButton;
+    @FXML
+    private Label previewLabel;
+    @FXML
     private Button runButton;
     
     /** Results */
@@ -151,8 +226,12 @@ public class EnrichmentController extends ViewController {
     @FXML
 	private Button plotButton;
     @FXML
+    private Button heatmapButton;
+    @FXML
     private CheckBox bonferroniCheckBox;
     @FXML
+    private CheckBox livePlotCheckBox;
+    @FXML
     private Hyperlink downloadRScriptsLink;
     @FXML
     private Hyperlink exampleFileLink;
@@ -176,6 +255,56 @@ public class EnrichmentController extends ViewController {
     	    }
     	});
     	
+    	// Kernel mode, the number of entries per row only applies to sparse kernels and the grid to parameter sweeps
+    	kernelModeChoiceBox.getItems().addAll(KernelMode.values());
+    	kernelModeChoiceBox.getSelectionModel().selectFirst();
+    	kernelModeChoiceBox.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
+    		kernelTopKTextField.setDisable(newValue != KernelMode.SPARSE);
+    		kernelTopKLabel.setDisable(newValue != KernelMode.SPARSE);
+    		kernelSweepTextField.setDisable(newValue != KernelMode.EIGEN_SWEEP);
+    		kernelSweepLabel.setDisable(newValue != KernelMode.EIGEN_SWEEP);
+    	});
+    	kernelTopKTextField.setDisable(true);
+    	kernelTopKLabel.setDisable(true);
+    	kernelSweepTextField.setDisable(true);
+    	kernelSweepLabel.setDisable(true);
+    	kernelTopKTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+    		if (!newValue.matches("\\d*"))
+    			kernelTopKTextField.setText(oldValue);
+    	});
+    	
+    	// Hierarchical sweep, the threshold and verification sample only apply if it is selected
+    	hierarchicalCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> {
+    		descendThresholdTextField.setDisable(!newValue);
+    		descendThresholdLabel.setDisable(!newValue);
+    		verifyPercentTextField.setDisable(!newValue);
+    		verifyPercentLabel.setDisable(!newValue);
+    	});
+    	descendThresholdTextField.setDisable(true);
+    	descendThresholdLabel.setDisable(true);
+    	verifyPercentTextField.setDisable(true);
+    	verifyPercentLabel.setDisable(true);
+    	descendThresholdTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+    		if (!newValue.matches("[\\d.eE-]*"))
+    			descendThresholdTextField.setText(oldValue);
+    	});
+    	verifyPercentTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+    		if (!newValue.matches("\\d*"))
+    			verifyPercentTextField.setText(oldValue);
+    	});
+    	
+    	// Permutation budget, the total only applies if it is selected
+    	permutationBudgetCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> {
+    		totalPermutationsTextField.setDisable(!newValue);
+    		totalPermutationsLabel.setDisable(!newValue);
+    	});
+    	totalPermutationsTextField.setDisable(true);
+    	totalPermutationsLabel.setDisable(true);
+    	totalPermutationsTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+    		if (!newValue.matches("\\d*"))
+    			totalPermutationsTextField.setText(oldValue);
+    	});
+    	
     	// Number of cores
     	int numCoresSyst = Runtime.getRuntime().availableProcessors();
     	for (int i=1; i<=numCoresSyst; i++)
@@ -239,10 +368,21 @@ public class EnrichmentController extends ViewController {
         
         usePrecomputedKernelsCheckBox.setSelected(prefs.getBoolean("usePrecomputedKernels", true));
         exportKernelsCheckBox.setSelected(prefs.getBoolean("exportKernels", false));
+        useJobQueueCheckBox.setSelected(prefs.getBoolean("useJobQueue", false));
+        topUpPermutationsCheckBox.setSelected(prefs.getBoolean("topUpPermutations", false));
         excludeHlaGenesCheckBox.setSelected(prefs.getBoolean("excludeHlaGenes", true));
         excludeXYChromosomesCheckBox.setSelected(prefs.getBoolean("excludeXYChromosomes", true));
         bonferroniCheckBox.setSelected(prefs.getBoolean("bonferroni", true));
+        livePlotCheckBox.setSelected(prefs.getBoolean("livePlot", true));
         numPermutationsProperty.set(prefs.getInt("numPermutations", 10000));
+        kernelModeChoiceBox.getSelectionModel().select(KernelMode.valueOf(prefs.get("kernelMode", KernelMode.ENGINE.name())));
+        kernelTopKTextField.setText(Integer.toString(prefs.getInt("kernelTopK", SparseKernel.DEFAULT_TOP_K)));
+        kernelSweepTextField.setText(prefs.get("kernelSweep", "1.5, 2, 3; 2, 4"));
+        hierarchicalCheckBox.setSelected(prefs.getBoolean("hierarchical", false));
+        descendThresholdTextField.setText(prefs.get("descendThreshold", Double.toString(HierarchicalSweep.DEFAULT_THRESHOLD)));
+        verifyPercentTextField.setText(Integer.toString(prefs.getInt("verifyPercent", 5)));
+        permutationBudgetCheckBox.setSelected(prefs.getBoolean("permutationBudget", false));
+        totalPermutationsTextField.setText(Long.toString(prefs.getLong("totalPermutations", 10000000)));
         
         // Initialize stuff that's not saved
     	pvalFileProperty.set(null);
@@ -266,11 +406,22 @@ public class EnrichmentController extends ViewController {
 
     	prefs.putBoolean("usePrecomputedKernels", usePrecomputedKernelsCheckBox.isSelected());
     	prefs.putBoolean("exportKernels", exportKernelsCheckBox.isSelected());
+    	prefs.putBoolean("useJobQueue", useJobQueueCheckBox.isSelected());
+    	prefs.putBoolean("topUpPermutations", topUpPermutationsCheckBox.isSelected());
     	prefs.putBoolean("excludeHlaGenes", excludeHlaGenesCheckBox.isSelected());
     	prefs.putBoolean("excludeXYChromosomes", excludeXYChromosomesCheckBox.isSelected());
     	prefs.putBoolean("bonferroni", bonferroniCheckBox.isSelected());
+    	prefs.putBoolean("livePlot", livePlotCheckBox.isSelected());
 
     	prefs.putInt("numPermutations", numPermutationsProperty.get());
+    	prefs.put("kernelMode", getKernelMode().name());
+    	prefs.putInt("kernelTopK", getKernelTopK());
+    	prefs.put("kernelSweep", kernelSweepTextField.getText());
+    	prefs.putBoolean("hierarchical", hierarchicalCheckBox.isSelected());
+    	prefs.put("descendThreshold", descendThresholdTextField.getText());
+    	prefs.putInt("verifyPercent", getVerifyPercent());
+    	prefs.putBoolean("permutationBudget", permutationBudgetCheckBox.isSelected());
+    	prefs.putLong("totalPermutations", getTotalPermutations());
     	prefs.putInt("numCores", numCoresChoiceBox.getSelectionModel().getSelectedIndex());    	
     }
 
@@ -306,14 +457,68 @@ public class EnrichmentController extends ViewController {
     
     // ----------------------------------------------------------------------------
 
-    /** Get the job name for this network (geneScoreName--networkName) */
-    public void writeScore(String networkName, double score, String settingsFile) {
+    /** Get the shared job queue dir based on current output dir */
+    public File getJobQueueDir() {
+    	
+    	if (outputDirProperty.get() == null)
+    		return null;
+    	return new File(outputDirProperty.get(), "job_queue");
+    }
+
+    
+    // ----------------------------------------------------------------------------
+
+    /** Get the dir of the saved permutation counts based on current output dir */
+    public File getPermutationStateDir() {
+    	
+    	if (outputDirProperty.get() == null)
+    		return null;
+    	return new File(outputDirProperty.get(), "permutation_state");
+    }
+
+    
+    // ----------------------------------------------------------------------------
+
+    /** Write the score of a network to the result file (by the write stage of the pipeline during a run) */
+    public void writeScore(String networkName, double score, String settingsFile, int numPermutations) {
+    	
+    	if (pipeline != null)
+    		pipeline.write(() -> recordScore(networkName, score, settingsFile, numPermutations));
+    	else
+    		recordScore(networkName, score, settingsFile, numPermutations);
+    }
+
+    
+	// ----------------------------------------------------------------------------
+	
+    /** Write a line to the result file and update the live plot (networks refined by a permutation budget are written again) */
+    private void recordScore(String networkName, double score, String settingsFile, int numPermutations) {
     	
+    	runScores.put(networkName, score);
+    	runPermutations.put(networkName, numPermutations);
     	if (scoreWriter == null)
     		initScoreWriter();
     	
-    	scoreWriter.println(networkName + "\t" + App.mag.utils.toStringScientific10(score) + "\t" + settingsFile);
+    	scoreWriter.println(networkName + "\t" + App.mag.utils.toStringScientific10(score) + "\t" + settingsFile + "\t" + numPermutations);
     	scoreWriter.flush();
+    	
+    	if (livePlot != null)
+    		livePlot.addResult(networkName, score);
+    }
+
+    
+	// ----------------------------------------------------------------------------
+	
+    /** Thread-safe: show an intermediate estimate of a preview job (not written to the result file) */
+    public void previewScore(String networkName, double pval, double[] interval, int numPermutations, KernelMode mode) {
+    	
+    	String text = "Preview: " + networkName + "  p = " + String.format("%.3g [%.3g, %.3g]", pval, interval[0], interval[1])
+    			+ "  (" + numPermutations + " permutations, " + mode + ")";
+    	Platform.runLater(() -> previewLabel.setText(text));
+    	
+    	EnrichmentPlotController plot = livePlot;
+    	if (plot != null)
+    		plot.addResult(networkName, pval);
     }
 
     
@@ -416,10 +621,10 @@ public class EnrichmentController extends ViewController {
     private void handleRunButton() {
 
     	// Check that required options are set
-    	if (!checkOptions())
+    	if (!checkOptions(true))
     		return;
     	    	
-    	if (selectedNetworks.size() > 1) {
+    	if (selectedNetworks.size() > 1 && !preview) {
     		if (showMultipleNetworksWarning(selectedNetworks.size()) != ButtonType.OK)
     			return;
     	}
@@ -439,35 +644,164 @@ public class EnrichmentController extends ViewController {
 			geneScoreFileProperty.set(
 					AppSettings.exportResource("ch/unil/magnumapp/resources/fantom5_networks/macular_degeneration_neovascular.txt", exampleDir));			
 		}
-		
-    	// Create the thread controller / dialog
-    	JobController jobManager = (JobController) ViewController.loadFxml("view/ThreadStatus.fxml");
-    	jobManager.setOutputDir(outputDirProperty.get()); // Has to be done before creating the jobs
 
-    	// Create a job for each network
-    	ArrayList<JobMagnum> jobs = new ArrayList<>();
-    	for (TreeItem<NetworkModel> item_i : selectedNetworks) {
-    		JobEnrichment job_i = new JobEnrichment(jobManager, getJobName(item_i.getValue()), this, item_i.getValue());
-    		jobs.add(job_i);
+		// Parse, filter and rank the gene scores once for all networks of the in-app kernel modes
+		// (the engine reads the file itself in each job)
+		geneScores = null;
+		File cacheDir = app.getPreferencesController().getCacheGeneScores() ? new File(outputDirProperty.get(), "gene_score_cache") : null;
+		try {
+			if (getKernelMode() != KernelMode.ENGINE)
+				geneScores = GeneScores.load(geneScoreFileProperty.get(), getExcludeHlaGenes(), getExcludeXYChromosomes(), 
+						app.getPreferencesController().getGeneCoordinatesFile(), cacheDir, App.log);
+		} catch (Exception e) {
+			App.log.printStackTrace(e);
+			Alert alert = new Alert(AlertType.ERROR);
+			alert.setTitle("Error");
+			alert.setHeaderText("Invalid gene score file!");
+			alert.setContentText(e.getMessage());
+			alert.showAndWait();
+			if (exportGeneScores)
+				geneScoreFileProperty.set(null);
+			app.getRootLayout().setDisable(false);
+			return;
+		}
+		
+		// Permutations shared by all networks (kernels computed by the app)
+		permutationPlan = null;
+		if (getKernelMode() != KernelMode.ENGINE)
+			permutationPlan = PermutationPlan.create(geneScores.getNumGenes(), PermutationPlan.DEFAULT_SEED);
+		kernelCache = new KernelCache(getKernelDir(), app.getPreferencesController().getKernelCacheBudget());
+		kernelCache.setExportBandwidth(app.getPreferencesController().getKernelExportBandwidth());
+		kernelCache.enforceBudget(App.log);
+		
+    	// The networks of the run, the hierarchical sweep starts with the high-level networks
+    	ArrayList<NetworkModel> networks = new ArrayList<>();
+    	for (TreeItem<NetworkModel> item_i : selectedNetworks)
+    		networks.add(item_i.getValue());
+    	HierarchicalSweep sweep = null;
+    	if (hierarchicalCheckBox.isSelected() && !preview) {
+    		sweep = new HierarchicalSweep(networks, app.getNetworkCollection(), getDescendThreshold(), getVerifyPercent()/100.0, new Random());
+    		networks = sweep.getFirstStage();
     	}
     	
     	// A new score writer will be created when the first result is ready
     	scoreWriter = null;
+    	runScores.clear();
+    	runPermutations.clear();
+    	
+    	// The live plot is updated as the jobs finish
+    	livePlot = null;
+    	if (livePlotCheckBox.isSelected() || preview) {
+    		String gwasName = App.mag.utils.extractBasicFilename(geneScoreFileProperty.get().getName(), false);
+    		int numResults = (sweep != null) ? sweep.getMaxNumNetworks() : networks.size();
+    		if (getKernelMode() == KernelMode.EIGEN_SWEEP)
+    			numResults *= getKernelSweep().length;
+    		livePlot = new EnrichmentPlotController(gwasName, numResults, bonferroniCheckBox.isSelected());
+    		livePlot.showLive();
+    	}
 
-    	// Start the jobs
-    	int numCores = numCoresChoiceBox.getSelectionModel().getSelectedItem();
-		jobManager.start(jobs, numCores); 
+    	// Start the jobs, with a permutation budget the networks with unresolved p-values are topped up in rounds
+    	boolean stopped;
+    	if (permutationBudgetCheckBox.isSelected() && !preview) {
+    		PermutationBudget budget = new PermutationBudget(networks, getTotalPermutations(), getNumPermutations(), PermutationBudget.DEFAULT_ALPHA);
+    		LinkedHashMap<NetworkModel, Integer> round = budget.getScreening(App.log);
+    		do {
+    			stopped = runJobs(new ArrayList<>(round.keySet()), round);
+    			round = stopped ? new LinkedHashMap<>() : budget.getNextRound(runScores, runPermutations, App.log);
+    		} while (!round.isEmpty());
+    		budget.printSummary(runScores, runPermutations, App.log);
+    	} else {
+    		stopped = runJobs(networks, null);
+    	}
+    	
+    	// The second stage of the hierarchical sweep depends on the p-values of the first
+    	if (sweep != null && !stopped) {
+    		ArrayList<NetworkModel> secondStage = sweep.getSecondStage(runScores, App.log);
+    		if (!secondStage.isEmpty())
+    			runJobs(secondStage, null);
+    		sweep.printVerification(runScores, App.log);
+    	}
 		
 		// Cleanup
 		if (scoreWriter != null) {
 			scoreWriter.close();
 			pvalFileProperty.set(scoreWriter.getFile());
 		}
+		livePlot = null;
+		geneScores = null;
+		permutationPlan = null;
 		if (exportGeneScores)
 			geneScoreFileProperty.set(null);
-    	app.getRootLayout().setDisable(false);
-    	plotButton.setDisable(false);
-    	System.gc();
+		closeKernelCache(kernelCache, () -> {
+			app.getRootLayout().setDisable(false);
+			plotButton.setDisable(false);
+			System.gc();
+		});
+		kernelCache = null;
+    }
+
+    
+    // ----------------------------------------------------------------------------
+
+    /** Preview button: the same run, with estimates that are refined as the jobs progress */
+    @FXML
+    private void handlePreviewButton() {
+    	
+    	preview = true;
+    	previewLabel.setText("");
+    	try {
+    		handleRunButton();
+    	} finally {
+    		preview = false;
+    	}
+    }
+
+    
+    // ----------------------------------------------------------------------------
+
+    /** Precompute kernels button */
+    @FXML
+    private void handlePrecomputeKernelsButton() {
+
+    	if (!checkOptions())
+    		return;
+    	
+    	// Variants last, they wait for the kernels of their base networks (see JobMagnum.getInputs())
+    	ArrayList<NetworkModel> networks = new ArrayList<>();
+    	for (TreeItem<NetworkModel> item_i : selectedNetworks)
+    		if (item_i.getValue().getName().startsWith("Example"))
+    			App.log.println("Skipping example network (kernel is computed when it is exported): " + item_i.getValue().getName());
+    		else if (!NetworkDelta.isDeltaFile(item_i.getValue().getFile()))
+    			networks.add(item_i.getValue());
+    	for (TreeItem<NetworkModel> item_i : selectedNetworks)
+    		if (NetworkDelta.isDeltaFile(item_i.getValue().getFile()))
+    			networks.add(item_i.getValue());
+    	if (networks.isEmpty())
+    		return;
+    	
+    	app.getRootLayout().setDisable(true);
+    	KernelCache cache = new KernelCache(getKernelDir(), app.getPreferencesController().getKernelCacheBudget());
+    	
+    	JobController jobManager = (JobController) ViewController.loadFxml("view/ThreadStatus.fxml");
+    	jobManager.setOutputDir(outputDirProperty.get());
+    	jobManager.setTitle("Precompute kernels");
+    	
+    	int numCores = numCoresChoiceBox.getSelectionModel().getSelectedItem();
+    	JobPipeline kernelPipeline = new JobPipeline(networks, numCores, App.log);
+    	ArrayList<JobMagnum> jobs = new ArrayList<>();
+    	for (NetworkModel network_i : networks) {
+    		String jobName = "kernel--" + App.mag.utils.extractBasicFilename(network_i.getFile().getName(), false);
+    		jobs.add(new JobPrecomputeKernel(jobManager, jobName, network_i, cache, kernelPipeline, getKernelFileBits()));
+    	}
+    	
+    	kernelPipeline.start();
+		jobManager.start(jobs, numCores);
+		kernelPipeline.close();
+		App.log.println("Kernel manifest: " + cache.getManifest().getFile().getPath() + " (" + cache.getManifest().getNumEntries() + " kernels)");
+		closeKernelCache(cache, () -> {
+			app.getRootLayout().setDisable(false);
+			System.gc();
+		});
     }
 
     
@@ -505,6 +839,27 @@ public class EnrichmentController extends ViewController {
     }
     
 
+    // ----------------------------------------------------------------------------
+
+    /** Heatmap button */
+    @FXML
+    private void handleHeatmapButton() {
+
+    	// File chooser
+    	FileChooser fileChooser = new FileChooser();
+    	fileChooser.setTitle("Select enrichment p-value files (one per GWAS)");
+    	if (outputDirProperty.get() != null && outputDirProperty.get().exists())
+    		fileChooser.setInitialDirectory(outputDirProperty.get());
+
+    	List<File> files = fileChooser.showOpenMultipleDialog(app.getPrimaryStage());
+    	if (files == null || files.isEmpty())
+    		return;
+    	
+    	EnrichmentHeatmapController controller = new EnrichmentHeatmapController(files, bonferroniCheckBox.isSelected());
+    	controller.show();
+    }
+    
+
     // ----------------------------------------------------------------------------
 
     /** Plot example results */
@@ -529,6 +884,14 @@ public class EnrichmentController extends ViewController {
 
     /** Construct commands for command-line tool based on specified options */
     private boolean checkOptions() {
+    	return checkOptions(false);
+    }
+    
+    
+    // ----------------------------------------------------------------------------
+
+    /** Check the options, the gene scores are only checked for a run (show error dialog and return false if not valid) */
+    private boolean checkOptions(boolean run) {
     	
     	String errors = "";
     	if (selectedNetworks.isEmpty())
@@ -537,6 +900,40 @@ public class EnrichmentController extends ViewController {
     		//errors += "- No GWAS gene score file selected\n";
     	if (outputDirProperty.get() == null)
     		errors += "- No output directory selected\n";
+    	if (getKernelMode() == KernelMode.EIGEN_SWEEP && getKernelSweep() == null)
+    		errors += "- Invalid parameter sweep (format: a values; p values)\n";
+    	if (useJobQueueCheckBox.isSelected() && getKernelMode() != KernelMode.ENGINE)
+    		errors += "- The job queue only runs the magnum engine (kernel mode ENGINE)\n";
+    	if (preview && (getKernelMode() == KernelMode.ENGINE || getKernelMode() == KernelMode.EIGEN_SWEEP))
+    		errors += "- The preview needs a kernel computed by the app (no parameter sweep)\n";
+    	if (hierarchicalCheckBox.isSelected() && !preview) {
+    		if (getKernelMode() == KernelMode.EIGEN_SWEEP)
+    			errors += "- The hierarchical sweep cannot be combined with a parameter sweep\n";
+    		if (!(getDescendThreshold() > 0 && getDescendThreshold() <= 1))
+    			errors += "- Invalid p-value threshold of the hierarchical sweep (0 < p <= 1)\n";
+    		if (getVerifyPercent() > 100)
+    			errors += "- Invalid percentage of pruned networks to verify (0-100)\n";
+    	}
+    	if (permutationBudgetCheckBox.isSelected() && !preview) {
+    		if (getKernelMode() == KernelMode.ENGINE || getKernelMode() == KernelMode.EIGEN_SWEEP)
+    			errors += "- The permutation budget needs a kernel computed by the app (no parameter sweep)\n";
+    		if (hierarchicalCheckBox.isSelected())
+    			errors += "- The permutation budget cannot be combined with a hierarchical sweep\n";
+    		if (getTotalPermutations() < (long) Math.min(PermutationBudget.SCREEN_PERMUTATIONS, getNumPermutations()) * selectedNetworks.size())
+    			errors += "- The permutation budget is too small for the screening round (" 
+    					+ PermutationBudget.SCREEN_PERMUTATIONS + " permutations per network)\n";
+    	}
+    	// Without coordinates (e.g., the example gene scores), the app kernel modes need a gene coordinates file for the filters
+    	File coordinatesFile = app.getPreferencesController().getGeneCoordinatesFile();
+    	if (run && getKernelMode() != KernelMode.ENGINE && (getExcludeHlaGenes() || getExcludeXYChromosomes())
+    			&& (geneScoreFileProperty.get() == null || !GeneScores.hasCoordinates(geneScoreFileProperty.get(), getExcludeHlaGenes(), getExcludeXYChromosomes(), App.log))
+    			&& (coordinatesFile == null || !coordinatesFile.exists() || !GeneScores.hasCoordinates(coordinatesFile, getExcludeHlaGenes(), getExcludeXYChromosomes(), App.log)))
+    		errors += "- The gene score file has no coordinates (columns chromosome, start, end): to exclude HLA genes and X, Y chromosomes,\n"
+    				+ "  select a gene coordinates file in the settings or use the kernel mode ENGINE\n";
+    	if (getKernelMode() == KernelMode.ENGINE)
+    		for (TreeItem<NetworkModel> item : selectedNetworks)
+    			if (NetworkDelta.isDeltaFile(item.getValue().getFile()))
+    				errors += "- Network variants (" + NetworkDelta.EXTENSION + ") need a kernel computed by the app: " + item.getValue().getName() + "\n";
     	
     	if (!errors.equals("")) {
     		Alert alert = new Alert(AlertType.ERROR);
@@ -551,6 +948,38 @@ public class EnrichmentController extends ViewController {
     }
 
     
+    // ----------------------------------------------------------------------------
+
+    /** 
+     * Close the kernel cache and then run the given action on the FX thread. If kernel exports are 
+     * pending, they are awaited on a background thread so that the UI stays responsive (the action 
+     * typically enables the window again, a new run must not start before the exports finished).
+     */
+    private void closeKernelCache(KernelCache cache, Runnable onClosed) {
+    	
+    	int numPending = cache.getNumPendingExports();
+    	if (numPending == 0) {
+    		cache.close();
+    		onClosed.run();
+    		return;
+    	}
+    	
+    	App.log.println("Waiting for " + numPending + " kernel exports...");
+    	// Not a daemon, the exports are completed if the app is closed meanwhile
+    	Thread waiter = new Thread(() -> {
+    		try {
+    			cache.close();
+    		} finally {
+    			Platform.runLater(() -> {
+    				App.log.println("Kernel exports done");
+    				onClosed.run();
+    			});
+    		}
+    	}, "kernel-export-wait");
+    	waiter.start();
+    }
+
+    
     // ----------------------------------------------------------------------------
 
     /** Show a warning before launching job with multiple networks */
@@ -598,6 +1027,54 @@ public class EnrichmentController extends ViewController {
     }
     
 
+    // ----------------------------------------------------------------------------
+
+    /** 
+     * Run an enrichment job for each of the given networks, with the given number of permutations
+     * (null for the default of all networks), returns true if the user stopped the jobs
+     */
+    private boolean runJobs(List<NetworkModel> networks, Map<NetworkModel, Integer> numPermutations) {
+
+    	// Create the thread controller / dialog
+    	JobController jobManager = (JobController) ViewController.loadFxml("view/ThreadStatus.fxml");
+    	jobManager.setOutputDir(outputDirProperty.get()); // Has to be done before creating the jobs
+    	jobManager.setDistributed(useJobQueueCheckBox.isSelected());
+
+    	// Create a job for each network
+    	ArrayList<JobMagnum> jobs = new ArrayList<>();
+    	for (NetworkModel network_i : networks) {
+    		JobEnrichment job_i;
+    		if (preview)
+    			job_i = new JobPreview(jobManager, getJobName(network_i), this, network_i);
+    		else if (getKernelMode() == KernelMode.EIGEN_SWEEP)
+    			job_i = new JobParameterSweep(jobManager, getJobName(network_i), this, network_i);
+    		else
+    			job_i = new JobEnrichment(jobManager, getJobName(network_i), this, network_i);
+    		if (numPermutations != null)
+    			job_i.setNumPermutations(numPermutations.get(network_i));
+    		jobs.add(job_i);
+    	}
+    	
+    	// Jobs sharing a network (e.g. variants of the same base network) run back to back
+    	jobs = JobController.orderByLocality(jobs);
+    	ArrayList<NetworkModel> appNetworks = new ArrayList<>();
+    	if (getKernelMode() != KernelMode.ENGINE)
+    		for (JobMagnum job_i : jobs)
+    			appNetworks.add(((JobEnrichment) job_i).getNetwork());
+
+    	// Start the jobs, the pipeline loads one network ahead per core (the engine loads its own)
+    	int numCores = numCoresChoiceBox.getSelectionModel().getSelectedItem();
+    	pipeline = new JobPipeline(appNetworks, numCores, App.log);
+    	pipeline.start();
+		jobManager.start(jobs, numCores); 
+		
+		// All scores are written after closing the pipeline
+		pipeline.close();
+		pipeline = null;
+		return jobManager.getStopped();
+    }
+    
+
     // ----------------------------------------------------------------------------
 
     /** Get the job name for this network (geneScoreName--networkName) */
@@ -631,7 +1108,7 @@ public class EnrichmentController extends ViewController {
     	
     	// Write header
     	scoreWriter.println("# GWAS = " + gwasName);
-    	scoreWriter.println("Network\tPvalue\tSettings");
+    	scoreWriter.println("Network\tPvalue\tSettings\tPermutations");
     	scoreWriter.flush();
     }
 
@@ -669,6 +1146,19 @@ public class EnrichmentController extends ViewController {
     			"WARNING: File sizes can be >1GB! Only useful for\n" +
     			"running many GWASs on the same network."));
     	
+    	useJobQueueCheckBox.setTooltip(new Tooltip(
+    			"Write jobs to a queue in <output_directory>/job_queue,\n" +
+    			"they are run by headless workers started on any machine\n" +
+    			"with access to the output directory (shared file system):\n" +
+    			"java -cp magnum-app.jar ch.unil.magnumapp.QueueWorker <queue_dir>\n" +
+    			"(kernel mode ENGINE only)"));
+    	
+    	topUpPermutationsCheckBox.setTooltip(new Tooltip(
+    			"Save the permutation counts of each result in\n" +
+    			"<output_directory>/permutation_state. When the number\n" +
+    			"of permutations is increased, only the additional\n" +
+    			"permutations are run (kernels computed by the app)"));
+    	
     	tip = new Tooltip(
     			"Select directory for\n" +
     			"result and log files");
@@ -698,13 +1188,77 @@ public class EnrichmentController extends ViewController {
     	numCoresChoiceBox.setTooltip(tip);
     	numCoresLabel.setTooltip(tip);
     	
+    	tip = new Tooltip(
+    			"Full: dense kernels computed by magnum (exact, <8 GB per job)\n" +
+    			"Sparse top-k: the app keeps only the largest entries of each\n" +
+    			"kernel row (approximation, much less memory per job)\n" +
+    			"Matrix-free: the app never forms the kernel (exact, memory\n" +
+    			"linear in the number of edges, slower permutations)\n" +
+    			"Dense float32: half the memory of magnum kernels, exported\n" +
+    			"with the precision chosen in the settings (8, 16 or 32 bits),\n" +
+    			"kernels of network variants are derived from the base kernel\n" +
+    			"Parameter sweep: p-values for a grid of kernel parameters");
+    	kernelModeChoiceBox.setTooltip(tip);
+    	kernelModeLabel.setTooltip(tip);
+    	
+    	tip = new Tooltip(
+    			"Number of entries kept per row of sparse kernels. The\n" +
+    			"approximation error is reported in the log of each job");
+    	kernelTopKTextField.setTooltip(tip);
+    	kernelTopKLabel.setTooltip(tip);
+    	
+    	tip = new Tooltip(
+    			"Grid of kernel parameters of the parameter sweep: values of a,\n" +
+    			"then values of p (e.g., \"1.5, 2, 3; 2, 4\" for 6 kernels). The\n" +
+    			"eigendecomposition of each network is computed once and saved\n" +
+    			"to the kernel directory, all kernels are scored together");
+    	kernelSweepTextField.setTooltip(tip);
+    	kernelSweepLabel.setTooltip(tip);
+    	
     	exportSettingsButton.setTooltip(new Tooltip(
     			"Export files with the current settings, can be used to:\n" +
     			"(1) Run jobs from the command line (typically on a computing cluster)\n" +
     			"(2) Reload the settings in the App (click the \"Settings\" button)"));
     	
+    	tip = new Tooltip(
+    			"Score the high-level network of the cluster of each selected\n" +
+    			"FANTOM5 individual network first, then only the individual\n" +
+    			"networks of the clusters with p-value below the threshold.\n" +
+    			"A random sample of the pruned networks is scored to verify\n" +
+    			"that they are not enriched (see console)");
+    	hierarchicalCheckBox.setTooltip(tip);
+    	hierarchicalLabel.setTooltip(tip);
+    	descendThresholdTextField.setTooltip(tip);
+    	descendThresholdLabel.setTooltip(tip);
+    	verifyPercentTextField.setTooltip(tip);
+    	verifyPercentLabel.setTooltip(tip);
+    	
+    	tip = new Tooltip(
+    			"Screen all networks with " + PermutationBudget.SCREEN_PERMUTATIONS + " permutations, then give " + PermutationBudget.GROWTH + "x more\n" +
+    			"permutations (up to the number of permutations above) in rounds to\n" +
+    			"the networks whose p-value confidence interval contains the Bonferroni\n" +
+    			"threshold, until the total is spent. Only the additional permutations\n" +
+    			"are run (see \"Save permutation counts\"), the result file lists the\n" +
+    			"final number of permutations of each network");
+    	permutationBudgetCheckBox.setTooltip(tip);
+    	permutationBudgetLabel.setTooltip(tip);
+    	totalPermutationsTextField.setTooltip(tip);
+    	totalPermutationsLabel.setTooltip(tip);
+    	
+    	precomputeKernelsButton.setTooltip(new Tooltip(
+    			"Compute the dense kernels of the selected networks and save\n" +
+    			"them to the kernel directory, listed in kernel_manifest.txt.\n" +
+    			"Up-to-date kernels are skipped, dense float32 runs load them\n" +
+    			"if \"Use precomputed network kernels\" is checked"));
+    	
     	runButton.setTooltip(new Tooltip("Run enrichment analysis\nfor all selected networks"));
     	
+    	previewButton.setTooltip(new Tooltip(
+    			"Show a rough p-value within seconds (matrix-free kernel,\n" +
+    			"few permutations), refined in the background with the\n" +
+    			"selected kernel up to the number of permutations. The\n" +
+    			"estimates are shown below and in the live plot"));
+    	
     	tip = new Tooltip(
     			"Result file with the enrichment p-value for each network.\n" +
     			"The file can be found in the output directory of your run:\n" +
@@ -716,10 +1270,18 @@ public class EnrichmentController extends ViewController {
     			"Adjust the p-values of the N networks\n" +
     			"using Bonferroni correction"));
     	
+    	livePlotCheckBox.setTooltip(new Tooltip(
+    			"Show the enrichment score plot while the\n" +
+    			"jobs are running, updated as results arrive"));
+    	
     	plotButton.setTooltip(new Tooltip(
     			"Generate enrichment score plot\n" +
     			"(similar to Fig. 6, Marbach et al.)"));
     	
+    	heatmapButton.setTooltip(new Tooltip(
+    			"Heatmap of the enrichment scores of multiple\n" +
+    			"GWASs (select several *.pvals.txt files)"));
+    	
     	downloadRScriptsLink.setTooltip(new Tooltip(
     			"Download R-scripts\n" +
     			"to plot results"));
@@ -742,4 +1304,62 @@ public class EnrichmentController extends ViewController {
     
     public boolean getUsePrecomputedKernels() { return usePrecomputedKernelsCheckBox.isSelected(); }
     public boolean getExportKernels() { return exportKernelsCheckBox.isSelected(); }
+    public boolean getUseJobQueue() { return useJobQueueCheckBox.isSelected(); }
+    /** Save the permutation counts and top up previous results (always for a permutation budget) */
+    public boolean getTopUpPermutations() { return topUpPermutationsCheckBox.isSelected() || permutationBudgetCheckBox.isSelected(); }
+    public GeneScores getGeneScores() { return geneScores; }
+    public PermutationPlan getPermutationPlan() { return permutationPlan; }
+    public KernelCache getKernelCache() { return kernelCache; }
+    public JobPipeline getPipeline() { return pipeline; }
+    public KernelMode getKernelMode() { return kernelModeChoiceBox.getSelectionModel().getSelectedItem(); }
+    public int getKernelFileBits() { return app.getPreferencesController().getKernelFileBits(); }
+    
+    /** The p-value threshold for descending into a cluster of the hierarchical sweep, NaN if the field is invalid */
+    public double getDescendThreshold() {
+    	try {
+    		return Double.parseDouble(descendThresholdTextField.getText());
+    	} catch (NumberFormatException e) {
+    		return Double.NaN;
+    	}
+    }
+    
+    /** The global budget of the permutation budget mode (total number of permutations) */
+    public long getTotalPermutations() {
+    	String text = totalPermutationsTextField.getText();
+    	return (text == null || text.isEmpty()) ? 0 : Long.parseLong(text);
+    }
+    
+    /** The percentage of pruned networks that is scored for verification */
+    public int getVerifyPercent() {
+    	String text = verifyPercentTextField.getText();
+    	return (text == null || text.isEmpty()) ? 0 : Integer.parseInt(text);
+    }
+    
+    /** The number of entries per row of sparse kernels (default if the field is empty) */
+    public int getKernelTopK() {
+    	String text = kernelTopKTextField.getText();
+    	return (text == null || text.isEmpty()) ? SparseKernel.DEFAULT_TOP_K : Integer.parseInt(text);
+    }
+    
+    /** The {a, p} pairs of the parameter sweep grid, null if the field is invalid */
+    public double[][] getKernelSweep() {
+    	
+    	String[] parts = kernelSweepTextField.getText().split(";");
+    	if (parts.length != 2)
+    		return null;
+    	try {
+    		ArrayList<double[]> grid = new ArrayList<>();
+    		for (String alpha : parts[0].split(",")) {
+    			for (String p : parts[1].split(",")) {
+    				double[] params = {Double.parseDouble(alpha.trim()), Integer.parseInt(p.trim())};
+    				if (params[1] < 1)
+    					return null;
+    				grid.add(params);
+    			}
+    		}
+    		return grid.toArray(new double[grid.size()][]);
+    	} catch (NumberFormatException e) {
+    		return null;
+    	}
+    }
 }
@@ -0,0 +1,374 @@
+/*
+Copyright (c) 2013-2015 Daniel Marbach
+
+We release this software open source under an MIT license (see below). If this
+software was useful for your scientific work, please cite our paper available at:
+http://regulatorycircuits.org
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+ */
+package ch.unil.magnumapp.view;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import ch.unil.magnumapp.App;
+import ch.unil.magnumapp.model.NetworkDendrogram;
+import edu.mit.magnum.FileParser;
+import javafx.geometry.Insets;
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Dialog;
+import javafx.scene.control.DialogPane;
+import javafx.scene.control.Label;
+import javafx.scene.control.Tooltip;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.TextAlignment;
+
+/**
+ * Heatmap of the enrichment scores of multiple GWAS p-value files (traits) 
+ * across networks. Drawn on a canvas: only the visible tiles are rendered, 
+ * which scales to thousands of cells. Scroll to zoom, drag to pan.
+ */
+public class EnrichmentHeatmapController {
+
+	/** Space for the trait names (left) and network names (top) */
+	final static private double MARGIN_LEFT = 220;
+	final static private double MARGIN_TOP = 160;
+	/** Labels are only drawn if the tiles are at least this large */
+	final static private double MIN_LABEL_SIZE = 9;
+	/** Color of the most significant tiles, scores are interpolated from white */
+	final static private Color MAX_COLOR = Color.web("#b2182b");
+	/** Color of missing values (network not in the p-value file of a trait) */
+	final static private Color MISSING_COLOR = Color.gray(0.85);
+	
+	/** The GWAS names (rows) */
+	private ArrayList<String> traits = new ArrayList<>();
+	/** The networks in the order of the p-value files (columns) */
+	private ArrayList<String> networks;
+	/** The networks in dendrogram order (networks not in the dendrogram are appended) */
+	private ArrayList<String> networksDendrogramOrder;
+	/** The networks that are currently shown (one of the two lists above) */
+	private ArrayList<String> shownNetworks;
+	/** Scores -log10(p-value), NaN for missing values: scores[trait][network] */
+	private double[][] scores;
+	/** Max score, for the color scale */
+	private double maxScore = 0;
+	/** Index of the networks for lookup in scores */
+	private HashMap<String, Integer> networkIndex = new HashMap<>();
+	
+	/** Size of a tile (zoom) */
+	private double tileWidth = 12;
+	private double tileHeight = 18;
+	/** Offset of the visible region (pan) */
+	private double offsetX = 0;
+	private double offsetY = 0;
+	/** Last mouse position while dragging */
+	private double dragX;
+	private double dragY;
+	
+	/** The dialog */
+	private Dialog<ButtonType> dialog;
+	/** The canvas */
+	private Canvas canvas;
+	/** Tooltip showing the tile under the mouse */
+	private Tooltip tooltip = new Tooltip();
+	
+    
+	// ============================================================================
+	// PUBLIC METHODS
+
+	/** Constructor */
+    public EnrichmentHeatmapController(List<File> pvalFiles, boolean bonferroni) {
+		
+    	// Read the p-value files, networks are added in order of appearance
+    	ArrayList<LinkedHashMap<String, Double>> pvals = new ArrayList<>();
+    	LinkedHashSet<String> allNetworks = new LinkedHashSet<>();
+    	for (File file : pvalFiles) {
+    		LinkedHashMap<String, Double> map = readPvalFile(file);
+    		pvals.add(map);
+    		allNetworks.addAll(map.keySet());
+    	}
+    	networks = new ArrayList<>(allNetworks);
+    	for (int j=0; j<networks.size(); j++)
+    		networkIndex.put(networks.get(j), j);
+    	
+    	// Compute the scores
+    	scores = new double[traits.size()][networks.size()];
+    	for (int i=0; i<traits.size(); i++) {
+    		LinkedHashMap<String, Double> map = pvals.get(i);
+    		for (int j=0; j<networks.size(); j++) {
+    			Double pval = map.get(networks.get(j));
+    			if (pval == null) {
+    				scores[i][j] = Double.NaN;
+    				continue;
+    			}
+    			if (bonferroni)
+    				pval *= map.size();
+    			scores[i][j] = Math.max(0, -Math.log10(pval));
+    			maxScore = Math.max(maxScore, scores[i][j]);
+    		}
+    	}
+    	maxScore = Math.max(2, maxScore);
+    	
+    	// Dendrogram order: the networks of the dendrogram first, then the others
+    	LinkedHashSet<String> ordered = new LinkedHashSet<>();
+    	for (String name : new NetworkDendrogram().getOrderedNames())
+    		if (networkIndex.containsKey(name))
+    			ordered.add(name);
+    	ordered.addAll(networks);
+    	networksDendrogramOrder = new ArrayList<>(ordered);
+    	shownNetworks = networks;
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+    /** Show the dialog */
+    public void show() {
+
+    	initialize();
+    	dialog.showAndWait();
+    }
+
+	
+	// ============================================================================
+	// PRIVATE
+
+    /** Read a p-value file (same format as for EnrichmentPlotController), adds the gwas name to traits */
+    private LinkedHashMap<String, Double> readPvalFile(File file) {
+    	
+    	FileParser reader = new FileParser(App.log, file);
+    	String[] header = reader.readLine();
+    	if (header == null || header.length < 1 || header[0].split("=").length != 2)
+    		reader.error("Expected header: '# GWAS = <gwas_name>'");
+    	traits.add(header[0].split("=")[1].trim());
+    	
+    	// Skip the column names
+    	reader.skipLine();
+    	
+    	LinkedHashMap<String, Double> map = new LinkedHashMap<>();
+    	while (true) {
+    		String[] nextLine = reader.readLine();
+    		if (nextLine == null)
+    			break;
+    		if (nextLine.length < 2)
+    			reader.error("Expected at least two columns");
+    		map.put(nextLine[0], Double.parseDouble(nextLine[1]));
+    	}
+    	reader.close();
+    	return map;
+    }
+    
+    
+	// ----------------------------------------------------------------------------
+
+    /** Initialize the dialog */
+    private void initialize() {
+    	
+		// Create dialog
+    	dialog = new Dialog<>();
+    	DialogPane dialogPane = dialog.getDialogPane();
+    	dialog.setTitle("Connectivity enrichment heatmap");
+    	dialog.setResizable(true);
+    	dialogPane.getButtonTypes().add(ButtonType.CLOSE);
+
+    	// The canvas is resized with the dialog, it only covers the visible region
+    	canvas = new Canvas();
+    	Pane canvasPane = new Pane(canvas);
+    	canvasPane.setMinSize(0, 0);
+    	canvas.widthProperty().bind(canvasPane.widthProperty());
+    	canvas.heightProperty().bind(canvasPane.heightProperty());
+    	canvas.widthProperty().addListener(observable -> draw());
+    	canvas.heightProperty().addListener(observable -> draw());
+    	
+    	// Zoom around the mouse position
+    	canvas.setOnScroll(event -> {
+    		double factor = (event.getDeltaY() > 0) ? 1.2 : 1/1.2;
+    		double x = event.getX() - MARGIN_LEFT;
+    		double y = event.getY() - MARGIN_TOP;
+    		offsetX = (offsetX + x)*factor - x;
+    		offsetY = (offsetY + y)*factor - y;
+    		tileWidth *= factor;
+    		tileHeight *= factor;
+    		draw();
+    	});
+    	
+    	// Pan
+    	canvas.setOnMousePressed(event -> {
+    		dragX = event.getX();
+    		dragY = event.getY();
+    	});
+    	canvas.setOnMouseDragged(event -> {
+    		offsetX -= event.getX() - dragX;
+    		offsetY -= event.getY() - dragY;
+    		dragX = event.getX();
+    		dragY = event.getY();
+    		tooltip.hide();
+    		draw();
+    	});
+    	
+    	// Tooltip
+    	canvas.setOnMouseMoved(event -> updateTooltip(event.getX(), event.getY(), event.getScreenX(), event.getScreenY()));
+    	canvas.setOnMouseExited(event -> tooltip.hide());
+    	
+    	// Order of the networks
+    	CheckBox dendrogramCheckBox = new CheckBox("Order networks by clustering dendrogram (FANTOM5)");
+    	dendrogramCheckBox.selectedProperty().addListener((observable, oldValue, newValue) -> {
+    		shownNetworks = newValue ? networksDendrogramOrder : networks;
+    		draw();
+    	});
+    	Label hint = new Label("Scroll to zoom, drag to move");
+    	HBox controls = new HBox(20, dendrogramCheckBox, hint);
+    	controls.setPadding(new Insets(0, 0, 5, 0));
+    	
+    	BorderPane content = new BorderPane();
+    	content.setTop(controls);
+    	content.setCenter(canvasPane);
+    	dialogPane.setContent(content);
+    	
+    	// Determine size
+    	dialogPane.setPrefWidth(Math.min(1200, MARGIN_LEFT + networks.size()*tileWidth + 40));
+    	dialogPane.setPrefHeight(Math.min(800, MARGIN_TOP + traits.size()*tileHeight + 120));
+    }
+    
+    
+	// ----------------------------------------------------------------------------
+
+    /** Draw the visible tiles and labels */
+    private void draw() {
+    	
+    	GraphicsContext gc = canvas.getGraphicsContext2D();
+    	double width = canvas.getWidth();
+    	double height = canvas.getHeight();
+    	gc.clearRect(0, 0, width, height);
+    	
+    	// Keep the offsets in range
+    	offsetX = Math.max(0, Math.min(offsetX, shownNetworks.size()*tileWidth - (width - MARGIN_LEFT)));
+    	offsetY = Math.max(0, Math.min(offsetY, traits.size()*tileHeight - (height - MARGIN_TOP)));
+    	
+    	// The visible range
+    	int firstCol = (int) Math.floor(offsetX/tileWidth);
+    	int lastCol = Math.min(shownNetworks.size()-1, (int) Math.floor((offsetX + width - MARGIN_LEFT)/tileWidth));
+    	int firstRow = (int) Math.floor(offsetY/tileHeight);
+    	int lastRow = Math.min(traits.size()-1, (int) Math.floor((offsetY + height - MARGIN_TOP)/tileHeight));
+    	
+    	// Tiles (clipped to the data area)
+    	gc.save();
+    	gc.beginPath();
+    	gc.rect(MARGIN_LEFT, MARGIN_TOP, width - MARGIN_LEFT, height - MARGIN_TOP);
+    	gc.clip();
+    	for (int i=firstRow; i<=lastRow; i++) {
+    		double y = MARGIN_TOP + i*tileHeight - offsetY;
+    		for (int j=firstCol; j<=lastCol; j++) {
+    			double score = scores[i][networkIndex.get(shownNetworks.get(j))];
+    			gc.setFill(getColor(score));
+    			gc.fillRect(MARGIN_LEFT + j*tileWidth - offsetX, y, tileWidth + 0.5, tileHeight + 0.5);
+    		}
+    	}
+    	gc.restore();
+    	
+    	// Trait names
+    	gc.setFill(Color.BLACK);
+    	if (tileHeight >= MIN_LABEL_SIZE) {
+    		gc.save();
+    		gc.beginPath();
+    		gc.rect(0, MARGIN_TOP, MARGIN_LEFT, height - MARGIN_TOP);
+    		gc.clip();
+    		gc.setFont(Font.font(Math.min(12, tileHeight - 2)));
+    		gc.setTextAlign(TextAlignment.RIGHT);
+    		gc.setTextBaseline(VPos.CENTER);
+    		for (int i=firstRow; i<=lastRow; i++)
+    			gc.fillText(traits.get(i), MARGIN_LEFT - 5, MARGIN_TOP + (i + 0.5)*tileHeight - offsetY, MARGIN_LEFT - 10);
+    		gc.restore();
+    	}
+    	
+    	// Network names (vertical)
+    	if (tileWidth >= MIN_LABEL_SIZE) {
+    		gc.save();
+    		gc.beginPath();
+    		gc.rect(MARGIN_LEFT, 0, width - MARGIN_LEFT, MARGIN_TOP);
+    		gc.clip();
+    		gc.setFont(Font.font(Math.min(12, tileWidth - 2)));
+    		gc.setTextAlign(TextAlignment.LEFT);
+    		gc.setTextBaseline(VPos.CENTER);
+    		for (int j=firstCol; j<=lastCol; j++) {
+    			gc.save();
+    			gc.translate(MARGIN_LEFT + (j + 0.5)*tileWidth - offsetX, MARGIN_TOP - 5);
+    			gc.rotate(-90);
+    			gc.fillText(shownNetworks.get(j), 0, 0, MARGIN_TOP - 10);
+    			gc.restore();
+    		}
+    		gc.restore();
+    	}
+    }
+    
+    
+	// ----------------------------------------------------------------------------
+
+    /** Show the trait, network and p-value of the tile under the mouse */
+    private void updateTooltip(double x, double y, double screenX, double screenY) {
+    	
+    	int col = (int) Math.floor((x - MARGIN_LEFT + offsetX)/tileWidth);
+    	int row = (int) Math.floor((y - MARGIN_TOP + offsetY)/tileHeight);
+    	if (x < MARGIN_LEFT || y < MARGIN_TOP || col >= shownNetworks.size() || row >= traits.size()) {
+    		tooltip.hide();
+    		return;
+    	}
+    	
+    	String network = shownNetworks.get(col);
+    	double score = scores[row][networkIndex.get(network)];
+    	String text = traits.get(row) + "\n" + network + "\n";
+    	if (Double.isNaN(score))
+    		text += "No result";
+    	else
+    		text += "–log10(p-value) = " + String.format("%.2f", score);
+    	
+    	tooltip.setText(text);
+    	tooltip.show(canvas, screenX + 12, screenY + 12);
+    }
+    
+    
+	// ----------------------------------------------------------------------------
+
+    /** Color of a tile with the given score */
+    private Color getColor(double score) {
+    	
+    	if (Double.isNaN(score))
+    		return MISSING_COLOR;
+    	return Color.WHITE.interpolate(MAX_COLOR, score/maxScore);
+    }
+    
+	
+	// ============================================================================
+	// SETTERS AND GETTERS
+
+
+}
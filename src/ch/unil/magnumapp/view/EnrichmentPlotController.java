@@ -31,9 +31,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import ch.unil.magnumapp.App;
 import edu.mit.magnum.FileParser;
+import javafx.animation.AnimationTimer;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.chart.BarChart;
@@ -44,23 +46,40 @@ import javafx.scene.chart.XYChart.Data;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.DialogPane;
+import javafx.stage.Modality;
 
 /**
  * Controller for a single "launch job" dialog managing multiple threads
  */
 public class EnrichmentPlotController {
 
+	/** Maximum number of plot updates per second in live mode */
+	final static private int FRAME_RATE = 4;
+	
 	/** The GWAS name */
 	private String gwasName;
-	/** The pvals */
+	/** The pvals (not corrected), sorted in decreasing order */
 	private ArrayList<Double> pvals;
 	/** The networks */
 	private ObservableList<String> networks;
+	/** Bonferroni correction for the number of networks */
+	private boolean bonferroni;
+	
+	/** Results streamed from the jobs that are not yet shown (live mode) */
+	private ConcurrentLinkedQueue<Object[]> pendingResults;
+	/** Expected number of networks (live mode), used for the size of the dialog */
+	private int numNetworksExpected;
 	
 	/** The dialog */
 	private Dialog<ButtonType> dialog;
 	/** The dialog pane */
 	private DialogPane dialogPane;
+	/** The x axis */
+	private NumberAxis xAxis;
+	/** The bars */
+	private XYChart.Series<Number, String> series;
+	/** Throttles updates of the plot (live mode) */
+	private AnimationTimer timer;
 
     
 	// ============================================================================
@@ -69,6 +88,8 @@ public class EnrichmentPlotController {
 	/** Constructor */
     public EnrichmentPlotController(File pvalFile, boolean bonferroni) {
 		
+    	this.bonferroni = bonferroni;
+    	
     	// Read the p-value file
     	App.log.println("Reading p-value file ...");
     	FileParser reader;
@@ -117,14 +138,22 @@ public class EnrichmentPlotController {
     		});
     	Collections.reverse(pvals);
     	Collections.reverse(networks);
-    	
-    	// Bonferroni correction
-    	if (bonferroni) {
-    		for (int i=0; i<pvals.size(); i++)
-    			pvals.set(i, pvals.get(i)*pvals.size());
-    	}
+    	numNetworksExpected = networks.size();
 	}
 	    
+    
+    /** Constructor for a live plot, results are added using addResult() while the jobs are running */
+    public EnrichmentPlotController(String gwasName, int numNetworksExpected, boolean bonferroni) {
+    	
+    	this.gwasName = gwasName;
+    	this.numNetworksExpected = numNetworksExpected;
+    	this.bonferroni = bonferroni;
+    	
+    	pvals = new ArrayList<>();
+    	networks = FXCollections.observableArrayList();
+    	pendingResults = new ConcurrentLinkedQueue<>();
+    }
+    
 	
 	// ----------------------------------------------------------------------------
 
@@ -135,6 +164,39 @@ public class EnrichmentPlotController {
     	dialog.showAndWait();
     }
 
+    
+	// ----------------------------------------------------------------------------
+
+    /** Show the live plot without blocking, it is updated at a fixed frame rate until closed */
+    public void showLive() {
+
+    	initialize();
+    	dialog.initModality(Modality.NONE);
+    	dialog.setTitle("Connectivity enrichment scores (live)");
+    	
+    	timer = new AnimationTimer() {
+    		private long lastUpdate = 0;
+    		@Override
+    		public void handle(long now) {
+    			if (now - lastUpdate < 1000000000L/FRAME_RATE)
+    				return;
+    			lastUpdate = now;
+    			update();
+    		}
+    	};
+    	dialog.setOnHidden(event -> timer.stop());
+    	timer.start();
+    	dialog.show();
+    }
+
+    
+	// ----------------------------------------------------------------------------
+
+    /** Thread-safe: add the result of a job to the live plot (shown at the next frame) */
+    public void addResult(String network, double pval) {
+    	pendingResults.add(new Object[] {network, pval});
+    }
+
 	
 	// ============================================================================
 	// PRIVATE
@@ -152,7 +214,7 @@ public class EnrichmentPlotController {
     	dialogPane.getButtonTypes().add(ButtonType.CLOSE);
 
     	// Create the axes
-    	NumberAxis xAxis = new NumberAxis();
+    	xAxis = new NumberAxis();
     	CategoryAxis yAxis = new CategoryAxis();
     	xAxis.setLabel("–log10(p-value)");  
     	xAxis.setMinorTickVisible(false);
@@ -166,16 +228,14 @@ public class EnrichmentPlotController {
     	chart.setLegendVisible(false);
     	chart.setCategoryGap(2);
     	chart.setBarGap(0);
+    	// Animations of hundreds of inserted bars would keep the FX thread busy
+    	chart.setAnimated(pendingResults == null);
     	dialogPane.setContent(chart);
 
     	// Add the data
-    	XYChart.Series<Number, String> series = new XYChart.Series<>();
-    	double maxScore = 0;
+    	series = new XYChart.Series<>();
     	for (int i=0; i<pvals.size(); i++) {
-    		double score = -Math.log10(pvals.get(i));
-    		if (score > maxScore)
-    			maxScore = score;
-    		Data<Number, String> data = new XYChart.Data<Number, String>(score, networks.get(i));
+    		Data<Number, String> data = new XYChart.Data<Number, String>(getScore(i), networks.get(i));
     		series.getData().add(data);
     	}
     	chart.getData().add(series);
@@ -183,14 +243,76 @@ public class EnrichmentPlotController {
     	// Set x-range
     	xAxis.setAutoRanging(false);
     	xAxis.setLowerBound(0);
-    	xAxis.setUpperBound(Math.max(2, Math.ceil(2*maxScore)/2.0));
     	xAxis.setTickUnit(0.5);
+    	updateRange();
 
     	// Determine size
     	dialogPane.setPrefWidth(600);
-    	dialogPane.setPrefHeight(networks.size()*22.5 + 180);
+    	dialogPane.setPrefHeight(numNetworksExpected*22.5 + 180);
 
     }
+    
+    
+	// ----------------------------------------------------------------------------
+
+    /** FX thread: insert the pending results at their sorted position, no need to re-parse the file */
+    private void update() {
+    	
+    	if (pendingResults.isEmpty())
+    		return;
+    	
+    	Object[] result;
+    	while ((result = pendingResults.poll()) != null) {
+    		String network = (String) result[0];
+    		double pval = (Double) result[1];
+    		
+    		// A network that is run again replaces the previous bar (categories must be unique)
+    		int previous = networks.indexOf(network);
+    		if (previous != -1) {
+    			series.getData().remove(previous);
+    			networks.remove(previous);
+    			pvals.remove(previous);
+    		}
+    		
+    		// Sorted in decreasing order, the most significant network is at the top
+    		int index = Collections.binarySearch(pvals, pval, Collections.reverseOrder());
+    		if (index < 0)
+    			index = -index - 1;
+    		pvals.add(index, pval);
+    		networks.add(index, network);
+    		series.getData().add(index, new XYChart.Data<Number, String>(0, network));
+    	}
+    	
+    	// The Bonferroni correction changes for all networks as the count grows
+    	for (int i=0; i<pvals.size(); i++)
+    		series.getData().get(i).setXValue(getScore(i));
+    	updateRange();
+    }
+
+    
+	// ----------------------------------------------------------------------------
+
+    /** The plotted score of the i'th network: -log10 of the (corrected) p-value */
+    private double getScore(int i) {
+    	
+    	double pval = pvals.get(i);
+    	if (bonferroni)
+    		pval *= pvals.size();
+    	return -Math.log10(pval);
+    }
+
+    
+	// ----------------------------------------------------------------------------
+
+    /** Set the upper bound of the x-axis based on the max score */
+    private void updateRange() {
+
+    	double maxScore = 0;
+    	for (int i=0; i<pvals.size(); i++)
+    		maxScore = Math.max(maxScore, getScore(i));
+    	xAxis.setUpperBound(Math.max(2, Math.ceil(2*maxScore)/2.0));
+    }
+    
 	
 	// ============================================================================
 	// SETTERS AND GETTERS
@@ -27,6 +27,9 @@ package ch.unil.magnumapp.view;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import javafx.scene.shape.Rectangle;
 import ch.unil.magnumapp.App;
@@ -48,9 +51,14 @@ import javafx.scene.control.ButtonBar.ButtonData;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
+import javafx.stage.Modality;
 
 /**
- * Controller for a single "launch job" dialog managing multiple threads
+ * Controller for a single "launch job" dialog managing multiple threads. Jobs declare the
+ * artefacts they produce and use (see JobMagnum.getOutputs() and getInputs()), they form a 
+ * DAG: a job starts as soon as the producers of its inputs finished (successfully or not, 
+ * the job then builds the input itself), inputs without producer are available. An output 
+ * is released (JobMagnum.release()) when its last consumer finished.
  */
 public class JobController extends ViewController {
 
@@ -64,11 +72,27 @@ public class JobController extends ViewController {
 	private int numCores;
 	/** The output directory for the jobs */
 	private File outputDir;
-
-	/** The next job in line */
-	private int nextJob;
+	/** Jobs are run by headless workers of a shared job queue, all of them are submitted at once */
+	private boolean distributed = false;
+	/** Title of the dialog */
+	private String title = "Connectivity enrichment";
+
+	/** The jobs that were started */
+	private boolean[] started;
+	/** Number of unfinished producers of each artefact */
+	private HashMap<String, Integer> numProducers;
+	/** Number of unfinished consumers of each artefact */
+	private HashMap<String, Integer> numConsumers;
+	/** The producers of each artefact */
+	private HashMap<String, ArrayList<JobMagnum>> producers;
+	/** The inputs of each job (declared once, their producers are looked up for each scheduling decision) */
+	private HashMap<JobMagnum, List<String>> inputs;
+	/** The outputs of each job */
+	private HashMap<JobMagnum, List<String>> outputs;
 	/** No more jobs are running (they finished with success, error or interrupt) */
 	private boolean allDone;
+	/** The jobs were stopped by the user */
+	private boolean stopped = false;
 	
 	/** Jobs in queue */
 	private IntegerProperty numJobsQueued = new SimpleIntegerProperty();
@@ -127,6 +151,8 @@ public class JobController extends ViewController {
 	public void start(ArrayList<JobMagnum> jobs, int numCores) {
 		
 		// Initialize jobs
+		if (distributed)
+			numCores = jobs.size();
 		if (numCores > jobs.size())
 			this.numCores = jobs.size();
 		else
@@ -137,7 +163,9 @@ public class JobController extends ViewController {
     	String networkS = ((jobs.size() == 1) ? "" : "s");
     	String coreS = ((numCores == 1) ? "" : "s");
     	String headerText = "Running: " + jobs.size() + " network" + networkS;
-    	if (numCores > this.numCores)
+    	if (distributed)
+    		headerText += " (distributed via shared job queue)";
+    	else if (numCores > this.numCores)
     		headerText += " (" + this.numCores + " out of " + numCores + " core" + coreS + " used)";
     	else
     		headerText += " (" + this.numCores + " core" + coreS + " used)";
@@ -148,13 +176,15 @@ public class JobController extends ViewController {
 		App.log.setConsole(console);
 		App.log.println(headerText);
 		App.log.println("- Output directory: " + App.app.getEnrichmentController().getOutputDir().getPath() + "\n");
+		if (distributed)
+			App.log.println("==> NOTE: Jobs are submitted to the shared job queue, start workers on any machine using:\n"
+					      + "==>    java -cp magnum-app.jar ch.unil.magnumapp.QueueWorker " + App.app.getEnrichmentController().getJobQueueDir().getPath() + "\n");
 		if (this.numCores > 1)
 			App.log.println("==> NOTE: Using multiple cores, console output of individual jobs turned OFF!\n"
 					      + "==> See the log files in the output directory instead: <job_name>.log.txt\n");
 
 		// Start the first jobs (jobFinished() callback will start the subsequent jobs)
-		for (int i=0; i<this.numCores; i++)
-			startNextJob();
+		startReadyJobs();
 		// Show dialog and wait
     	alert.showAndWait();
 		
@@ -163,12 +193,36 @@ public class JobController extends ViewController {
 	}
 	
 
+	// ----------------------------------------------------------------------------
+
+	/** 
+	 * Group jobs with the same locality key (see JobMagnum.getLocalityKey()), so that jobs sharing 
+	 * a network run back to back while its files are hot. Groups are in the order of their first
+	 * job, the order within groups is preserved. Call before creating a JobPipeline for the jobs.
+	 */
+	public static ArrayList<JobMagnum> orderByLocality(ArrayList<JobMagnum> jobs) {
+		
+		LinkedHashMap<Object, ArrayList<JobMagnum>> groups = new LinkedHashMap<>();
+		for (JobMagnum job : jobs) {
+			// Jobs without key are their own group
+			Object key = (job.getLocalityKey() == null) ? job : job.getLocalityKey();
+			groups.computeIfAbsent(key, k -> new ArrayList<>()).add(job);
+		}
+		
+		ArrayList<JobMagnum> ordered = new ArrayList<>();
+		for (ArrayList<JobMagnum> group : groups.values())
+			ordered.addAll(group);
+		return ordered;
+	}
+	
+	
 	// ----------------------------------------------------------------------------
 
 	/** JavaFX thread: scheduled using Platform.runLater() by the launched jobs upon completion */
 	public void jobFinished(JobMagnum job, Throwable e) {
 		
 		reduce(numJobsRunning);
+		updateArtefacts(job);
 
 		if (interrupted) {
 	    	App.log.println("Job interrupted: " + job.getJobName());
@@ -226,7 +280,7 @@ public class JobController extends ViewController {
 		}
 
 		if (numJobsQueued.get() != 0)
-			startNextJob();
+			startReadyJobs();
 		else if (numJobsRunning.get() == 0)
 			allJobsDone();
 	}
@@ -248,6 +302,7 @@ public class JobController extends ViewController {
 			updateStatusLabel("Status: JOBS STOPPED!", "status-error-label");
 			statusGridPane.setDisable(true);
 			interrupted = false;
+			stopped = true;
 		
 		} else if (numJobsAborted.get() > 0) {
 			updateStatusLabel("Status: FINISHED WITH ERRORS! (See console and log files for details)", "status-error-label");
@@ -281,8 +336,12 @@ public class JobController extends ViewController {
     	dialog.getStylesheets().add(
     			   getClass().getResource("MagnumAppStyle.css").toExternalForm());
 
+    	// Only block the main window, so that the live plot stays responsive
+    	alert.initOwner(app.getPrimaryStage());
+    	alert.initModality(Modality.WINDOW_MODAL);
+    	
     	// Header text
-    	alert.setTitle("Connectivity enrichment");
+    	alert.setTitle(title);
     	alert.setHeaderText(headerText);
     	
     	// The content
@@ -376,10 +435,25 @@ public class JobController extends ViewController {
 		numJobsRunning.set(0);
 		numJobsFinished.set(0);
 		numJobsAborted.set(0);
-		nextJob = 0;
-
-		for (JobMagnum job_i : jobs)
+		started = new boolean[jobs.size()];
+
+		// The artefacts of the DAG
+		numProducers = new HashMap<>();
+		numConsumers = new HashMap<>();
+		producers = new HashMap<>();
+		inputs = new HashMap<>();
+		outputs = new HashMap<>();
+		for (JobMagnum job_i : jobs) {
 			job_i.setController(this);
+			inputs.put(job_i, job_i.getInputs());
+			outputs.put(job_i, job_i.getOutputs());
+			for (String output : outputs.get(job_i)) {
+				numProducers.merge(output, 1, Integer::sum);
+				producers.computeIfAbsent(output, k -> new ArrayList<>()).add(job_i);
+			}
+			for (String input : inputs.get(job_i))
+				numConsumers.merge(input, 1, Integer::sum);
+		}
 	}
 
 	
@@ -395,12 +469,84 @@ public class JobController extends ViewController {
 	
 	// ----------------------------------------------------------------------------
 
-	/** Called by jobFinished(), runs on the FX thread */
-	private void startNextJob() {
+	/** Start ready jobs on the free cores, runs on the FX thread */
+	private void startReadyJobs() {
+		
+		while (numJobsRunning.get() < numCores && numJobsQueued.get() > 0) {
+			int next = nextReadyJob();
+			if (next == -1) {
+				if (numJobsRunning.get() > 0)
+					return;
+				// Nothing runs that could make a job ready (cycle), start in list order
+				next = nextQueuedJob();
+				App.log.println("WARNING: Circular job dependencies, starting: " + jobs.get(next).getJobName());
+			}
+			startJob(next);
+		}
+	}
+	
+	
+	// ----------------------------------------------------------------------------
+
+	/** The first queued job whose inputs are available, -1 if none */
+	private int nextReadyJob() {
+		
+		for (int i=0; i<jobs.size(); i++)
+			if (!started[i] && isReady(jobs.get(i)))
+				return i;
+		return -1;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** The first queued job */
+	private int nextQueuedJob() {
+		
+		for (int i=0; i<jobs.size(); i++)
+			if (!started[i])
+				return i;
+		return -1;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** True if all producers of the inputs of the given job finished */
+	private boolean isReady(JobMagnum job) {
+		
+		for (String input : inputs.get(job))
+			if (numProducers.getOrDefault(input, 0) > 0)
+				return false;
+		return true;
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Update the artefact counts for a finished job, release outputs that have no more consumers */
+	private void updateArtefacts(JobMagnum job) {
+		
+		for (String output : outputs.get(job)) {
+			numProducers.merge(output, -1, Integer::sum);
+			if (numConsumers.getOrDefault(output, 0) == 0)
+				job.release(output);
+		}
+		for (String input : inputs.get(job)) {
+			if (numConsumers.merge(input, -1, Integer::sum) == 0)
+				for (JobMagnum producer : producers.getOrDefault(input, new ArrayList<>()))
+					producer.release(input);
+		}
+	}
+
+	
+	// ----------------------------------------------------------------------------
+
+	/** Start the given job */
+	private void startJob(int tbdJob) {
 
 		// Update counts before start for good measure
-		int tbdJob = nextJob;
-    	nextJob++;
+		started[tbdJob] = true;
     	reduce(numJobsQueued);
     	increment(numJobsRunning);
     	assert assertJobCountsConsistency();
@@ -412,6 +558,11 @@ public class JobController extends ViewController {
     	if (numCores == 1)
     		App.log.println("=========================================================================\n");
     	jobs.get(tbdJob).start();
+    	
+    	// The job that will likely start when the next one finishes
+    	int next = nextReadyJob();
+    	if (next != -1)
+    		jobs.get(next).prefetch();
 	}
 	
 	
@@ -433,7 +584,10 @@ public class JobController extends ViewController {
 		
 		int total = numJobsQueued.get() + numJobsRunning.get() + numJobsFinished.get() + numJobsAborted.get();
 		assert total == jobs.size();
-		assert nextJob == total - numJobsQueued.get();
+		int numStarted = 0;
+		for (boolean s : started)
+			if (s) numStarted++;
+		assert numStarted == total - numJobsQueued.get();
 		return true;
 	}
 
@@ -444,7 +598,10 @@ public class JobController extends ViewController {
 	// SETTERS AND GETTERS
 
 	public boolean getInterrupted() { return interrupted; }
+	public boolean getStopped() { return stopped; }
 	public File getOutputDir() { return outputDir; }
 	public void setOutputDir(File outputDir) { this.outputDir = outputDir; }
+	public void setDistributed(boolean distributed) { this.distributed = distributed; }
+	public void setTitle(String title) { this.title = title; }
 
 }
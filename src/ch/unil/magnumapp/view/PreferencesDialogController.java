@@ -29,13 +29,16 @@ import java.io.File;
 import java.util.prefs.BackingStoreException;
 
 import ch.unil.magnumapp.App;
+import ch.unil.magnumapp.model.KernelFile;
 import edu.mit.magnum.Magnum;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.DialogPane;
+import javafx.scene.control.TextField;
 import javafx.stage.FileChooser;
 
 
@@ -56,6 +59,18 @@ public class PreferencesDialogController extends ViewController {
 	@FXML
     private CheckBox rememberSettingsCheckBox;
 	@FXML
+    private CheckBox cacheGeneScoresCheckBox;
+	@FXML
+    private ChoiceBox<Integer> kernelFileBitsChoiceBox;
+	@FXML
+    private TextField kernelCacheSizeTextField;
+	@FXML
+    private TextField kernelExportSpeedTextField;
+	@FXML
+    private TextField geneCoordinatesTextField;
+	@FXML
+    private Button geneCoordinatesBrowseButton;
+	@FXML
     private Button resetToDefaultsButton;
 	@FXML
     private Button loadFromFileButton;
@@ -68,12 +83,22 @@ public class PreferencesDialogController extends ViewController {
 	@Override
 	public void loadPreferences() {
         rememberSettingsCheckBox.setSelected(prefs.getBoolean("rememberSettings", true));
+        cacheGeneScoresCheckBox.setSelected(prefs.getBoolean("cacheGeneScores", true));
+        kernelFileBitsChoiceBox.getSelectionModel().select((Integer) prefs.getInt("kernelFileBits", 16));
+        kernelCacheSizeTextField.setText(Integer.toString(prefs.getInt("kernelCacheSize", 0)));
+        kernelExportSpeedTextField.setText(Integer.toString(prefs.getInt("kernelExportSpeed", 0)));
+        geneCoordinatesTextField.setText(prefs.get("geneCoordinatesFile", ""));
 	}
 	
 	/** Save preferences */
 	@Override
 	public void savePreferences() {
 		prefs.putBoolean("rememberSettings", rememberSettingsCheckBox.isSelected());
+		prefs.putBoolean("cacheGeneScores", cacheGeneScoresCheckBox.isSelected());
+		prefs.putInt("kernelFileBits", getKernelFileBits());
+		prefs.putInt("kernelCacheSize", getKernelCacheSize());
+		prefs.putInt("kernelExportSpeed", getKernelExportSpeed());
+		prefs.put("geneCoordinatesFile", geneCoordinatesTextField.getText().trim());
 	}
 	
 	
@@ -86,6 +111,28 @@ public class PreferencesDialogController extends ViewController {
 	@Override
 	public void init() {
 		
+    	// Precision of exported app kernels
+    	for (int bits : KernelFile.BITS)
+    		kernelFileBitsChoiceBox.getItems().add(bits);
+    	kernelFileBitsChoiceBox.getSelectionModel().select((Integer) 16);
+    	
+    	// Disk budget of the kernel directory (GB)
+    	kernelCacheSizeTextField.setText("0");
+    	kernelCacheSizeTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+    		if (!newValue.matches("\\d*"))
+    			kernelCacheSizeTextField.setText(oldValue);
+    	});
+    	
+    	// Bandwidth of background kernel exports (MB/s)
+    	kernelExportSpeedTextField.setText("0");
+    	kernelExportSpeedTextField.textProperty().addListener((observable, oldValue, newValue) -> {
+    		if (!newValue.matches("\\d*"))
+    			kernelExportSpeedTextField.setText(oldValue);
+    	});
+    	
+    	// Gene coordinates for the filters of the app kernel modes (none by default)
+    	geneCoordinatesTextField.setText("");
+    	
     	// The dialog pane defined in the fxml file
     	dialogPane = (DialogPane) root;
     	// (The OK button is not available in scene builder...)
@@ -125,6 +172,20 @@ public class PreferencesDialogController extends ViewController {
     }
 
     
+	// ----------------------------------------------------------------------------
+
+    /** Gene coordinates browse button handle */
+    @FXML
+    private void handleGeneCoordinatesBrowseButton() {
+    	
+    	FileChooser fileChooser = new FileChooser();
+    	fileChooser.setTitle("Select a gene coordinates file");
+    	File file = fileChooser.showOpenDialog(app.getPrimaryStage());
+    	if (file != null)
+    		geneCoordinatesTextField.setText(file.getAbsolutePath());
+    }
+
+    
 	// ----------------------------------------------------------------------------
 
     /** Load from file button handle */
@@ -150,5 +211,31 @@ public class PreferencesDialogController extends ViewController {
 	// ============================================================================
 	// GETTERS AND SETTERS
 
+    public boolean getCacheGeneScores() { return cacheGeneScoresCheckBox.isSelected(); }
+    public int getKernelFileBits() { return kernelFileBitsChoiceBox.getSelectionModel().getSelectedItem(); }
+    
+    /** Disk budget of the kernel directory in GB (0 = unlimited) */
+    public int getKernelCacheSize() {
+    	String text = kernelCacheSizeTextField.getText();
+    	return (text == null || text.isEmpty()) ? 0 : Integer.parseInt(text);
+    }
+    
+    /** Disk budget of the kernel directory in bytes (0 = unlimited) */
+    public long getKernelCacheBudget() { return (long) getKernelCacheSize() << 30; }
+    
+    /** Bandwidth of background kernel exports in MB/s (0 = unlimited) */
+    public int getKernelExportSpeed() {
+    	String text = kernelExportSpeedTextField.getText();
+    	return (text == null || text.isEmpty()) ? 0 : Integer.parseInt(text);
+    }
+    
+    /** Bandwidth of background kernel exports in bytes per second (0 = unlimited) */
+    public long getKernelExportBandwidth() { return (long) getKernelExportSpeed() << 20; }
+    
+    /** Gene coordinates file for the filters of the app kernel modes (null if none) */
+    public File getGeneCoordinatesFile() {
+    	String text = geneCoordinatesTextField.getText();
+    	return (text == null || text.trim().isEmpty()) ? null : new File(text.trim());
+    }
     
 }